@@ -0,0 +1,93 @@
+
+package com.alexhanson.bench;
+
+import com.alexhanson.main.InHouse;
+import com.alexhanson.main.Inventory;
+import com.alexhanson.main.Part;
+import com.alexhanson.main.Product;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the throughput of Inventory.runProduction() for plans of tens of thousands of
+ * lines, accepted and rejected. Run with "ant bench".
+ * @author Alex Hanson
+ */
+public class ProductionRunBenchmark {
+
+    final private static int PARTS = 5_000;
+    final private static int PRODUCTS = 60_000;
+    final private static int PARTS_PER_PRODUCT = 4;
+    final private static int[] PLAN_LINES = {1_000, 10_000, 50_000};
+    final private static int WARMUP = 5;
+    final private static int RUNS = 20;
+
+    /**
+     * @param args Not used.
+     */
+    public static void main(String[] args) {
+
+        Random random = new Random(42);
+
+        for(int id = 1; id <= PARTS; id++)
+            Inventory.addPart(new InHouse(id, "Part " + id, 1 + random.nextInt(100), 1_000_000_000, 0, Integer.MAX_VALUE, 1));
+
+        for(int id = 1; id <= PRODUCTS; id++) {
+            Product product = new Product(id, "Product " + id, 100, 0, 0, Integer.MAX_VALUE);
+
+            for(int i = 0; i < PARTS_PER_PRODUCT; i++) {
+                Part part = Inventory.lookupPart(1 + random.nextInt(PARTS));
+                product.addAssociatedPart(part, 1 + random.nextInt(3));
+            }
+
+            Inventory.addProduct(product);
+        }
+
+        System.out.printf("%d parts, %d products, %d parts per product%n", PARTS, PRODUCTS, PARTS_PER_PRODUCT);
+
+        for(int lines : PLAN_LINES) {
+            Map<Integer, Integer> plan = plan(lines, 1, random);
+            Map<Integer, Integer> tooLarge = plan(lines, 1_000_000_000, random);
+
+            report("accepted", lines, time(plan, true));
+            report("rejected", lines, time(tooLarge, false));
+        }
+    }
+
+    // A plan building units of each of the first lines products.
+    private static Map<Integer, Integer> plan(int lines, int units, Random random) {
+
+        Map<Integer, Integer> plan = new HashMap<>();
+
+        for(int id = 1; id <= lines; id++)
+            plan.put(id, units + random.nextInt(2));
+
+        return plan;
+    }
+
+    // Median time of a run of plan in nanoseconds, checking the expected outcome.
+    private static long time(Map<Integer, Integer> plan, boolean accepted) {
+
+        long[] times = new long[RUNS];
+
+        for(int i = -WARMUP; i < RUNS; i++) {
+            long start = System.nanoTime();
+
+            if(Inventory.runProduction(plan) != accepted)
+                throw new IllegalStateException("Plan " + (accepted ? "rejected" : "accepted") + " unexpectedly");
+
+            if(i >= 0)
+                times[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(times);
+
+        return times[RUNS / 2];
+    }
+
+    private static void report(String outcome, int lines, long nanos) {
+        System.out.printf("%6d lines %s: %8.2f ms, %,12.0f lines/s%n", lines, outcome, nanos / 1e6, lines / (nanos / 1e9));
+    }
+}
@@ -0,0 +1,225 @@
+
+package com.alexhanson.bench;
+
+import com.alexhanson.main.InHouse;
+import com.alexhanson.main.Inventory;
+import com.alexhanson.main.JournalShipper;
+import com.alexhanson.main.Part;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replication test of journal shipping: starts a JournalShipper in this JVM and a
+ * JournalStandby in a second JVM on localhost, keeps writers changing part stock at a fixed
+ * rate, and reports the rate changes were written and applied by the standby with the
+ * replication lag sampled meanwhile. The standby is then promoted and its Inventory compared
+ * with the primary's. Run with "ant bench", or directly with
+ * "ReplicationLagTest [writes per second] [seconds] [writers]", 0 writes per second writing
+ * as fast as the writers can.
+ * @author Alex Hanson
+ */
+public class ReplicationLagTest {
+
+    final private static int PARTS = 1_000;
+    // Milliseconds between lag samples.
+    final private static long SAMPLE = 10;
+
+    /**
+     * @param args Optionally the rate of writes, the seconds to write for and the writer count.
+     * @throws Exception Thrown if the standby cannot be started or does not catch up.
+     */
+    public static void main(String[] args) throws Exception {
+
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int writers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        // Retains a few seconds of changes, so a standby falling behind catches up from the
+        // feed instead of reloading everything.
+        if(System.getProperty("inventory.feedRetention") == null)
+            System.setProperty("inventory.feedRetention", Integer.toString(Math.max(100_000, rate * 5)));
+
+        seed();
+
+        JournalShipper shipper = new JournalShipper(0);
+        shipper.start();
+
+        Process standby = startStandby(shipper.getPort());
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> readLines(standby, output), "standby-output");
+        reader.setDaemon(true);
+        reader.start();
+        Writer commands = new OutputStreamWriter(standby.getOutputStream(), StandardCharsets.UTF_8);
+
+        try {
+            long loaded = Inventory.getChangeFeed().getLastSequence();
+
+            if(!waitForStandby(shipper, loaded))
+                throw new IllegalStateException("The standby did not load the primary's Inventory");
+
+            run(shipper, rate, seconds, writers);
+            promote(shipper, commands, output);
+        } finally {
+            shipper.stop();
+            commands.close();
+            standby.waitFor(10, TimeUnit.SECONDS);
+            standby.destroy();
+        }
+    }
+
+    private static void seed() {
+
+        Random random = new Random(42);
+
+        for(int id = 1; id <= PARTS; id++)
+            Inventory.addPart(new InHouse(id, "Part " + id, 1 + random.nextInt(100), 1_000_000, 0, Integer.MAX_VALUE, id % 10));
+    }
+
+    // Runs JournalStandby in a JVM of its own, with this JVM's class and module path.
+    private static Process startStandby(int port) throws Exception {
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+
+        if(System.getProperty("jdk.module.path") != null) {
+            command.addAll(Arrays.asList("--module-path", System.getProperty("jdk.module.path"),
+                                         "--add-modules", "javafx.base"));
+        }
+
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                                     "com.alexhanson.main.JournalStandby", "localhost:" + port));
+
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    private static void readLines(Process process, BlockingQueue<String> lines) {
+
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+
+            while((line = in.readLine()) != null)
+                lines.add(line);
+        } catch(Exception e) {
+            // The standby exited.
+        }
+    }
+
+    private static boolean waitForStandby(JournalShipper shipper, long sequence) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 30_000;
+
+        while(shipper.getStandbyCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(SAMPLE);
+
+        return shipper.awaitReplicated(sequence, Math.max(1, deadline - System.currentTimeMillis()));
+    }
+
+    // Writes for the given seconds at the given rate, sampling the lag, then waits for the
+    // standby to catch up.
+    private static void run(JournalShipper shipper, int rate, int seconds, int writers) throws InterruptedException {
+
+        long first = Inventory.getChangeFeed().getLastSequence();
+        long replicatedFirst = shipper.getReplicatedSequence();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] threads = new Thread[writers];
+
+        for(int w = 0; w < writers; w++) {
+            int writer = w;
+            threads[w] = new Thread(() -> write(writer, rate / writers, start, end), "writer-" + w);
+            threads[w].start();
+        }
+
+        List<Double> lagMillis = new ArrayList<>();
+        long maxLagChanges = 0;
+
+        while(System.nanoTime() < end) {
+            Thread.sleep(SAMPLE);
+            lagMillis.add(shipper.getLagMillis());
+            maxLagChanges = Math.max(maxLagChanges, shipper.getLagChanges());
+        }
+
+        for(Thread thread : threads)
+            thread.join();
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long written = Inventory.getChangeFeed().getLastSequence() - first;
+        long replicated = shipper.getReplicatedSequence() - replicatedFirst;
+        long last = Inventory.getChangeFeed().getLastSequence();
+        long catchUp = System.nanoTime();
+        boolean caughtUp = shipper.awaitReplicated(last, 60_000);
+        double catchUpMillis = (System.nanoTime() - catchUp) / 1e6;
+
+        lagMillis.sort(null);
+        System.out.printf("%,d changes written in %.1f s: %,.0f written/s, %,.0f applied/s by the standby%n",
+                          written, elapsed, written / elapsed, replicated / elapsed);
+        System.out.printf("lag p50 %.1f ms, p99 %.1f ms, max %.1f ms, max %,d changes behind; %s in %.0f ms after writes stopped%n",
+                          percentile(lagMillis, 0.5), percentile(lagMillis, 0.99), percentile(lagMillis, 1),
+                          maxLagChanges, caughtUp ? "caught up" : "not caught up", catchUpMillis);
+    }
+
+    // Adjusts random parts' stock up and down, paced to a rate unless it is 0.
+    private static void write(int writer, int rate, long start, long end) {
+
+        Random random = new Random(writer);
+        long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+        long next = start;
+
+        for(int i = 0; System.nanoTime() < end; i++) {
+            if(interval > 0) {
+                next += interval;
+                long wait = next - System.nanoTime();
+
+                if(wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+
+            Inventory.adjustPartStock(1 + random.nextInt(PARTS), (i & 1) == 0 ? 1 : -1);
+        }
+    }
+
+    // Promotes the standby and compares what it holds with the primary.
+    private static void promote(JournalShipper shipper, Writer commands, BlockingQueue<String> output) throws Exception {
+
+        long replicated = shipper.getReplicatedSequence();
+        long start = System.nanoTime();
+
+        commands.write("promote\n");
+        commands.flush();
+
+        String line = output.poll(30, TimeUnit.SECONDS);
+
+        while(line != null && !line.startsWith("promoted at "))
+            line = output.poll(30, TimeUnit.SECONDS);
+
+        if(line == null)
+            throw new IllegalStateException("The standby did not report its promotion");
+
+        long stock = 0;
+
+        for(Part part : Inventory.getAllParts())
+            stock += part.getStock();
+
+        String expected = "parts=" + Inventory.getAllParts().size() + " products=" + Inventory.getAllProducts().size() + " partStock=" + stock;
+
+        System.out.printf("promoted in %.0f ms at change %d of %d: %s%n", (System.nanoTime() - start) / 1e6,
+                          replicated, Inventory.getChangeFeed().getLastSequence(),
+                          line.endsWith(expected) ? "standby matches primary" : "standby differs: " + line + ", primary " + expected);
+    }
+
+    private static double percentile(List<Double> sorted, double p) {
+        return sorted.isEmpty() ? 0 : sorted.get((int) Math.min(sorted.size() - 1, sorted.size() * p));
+    }
+}
@@ -0,0 +1,139 @@
+
+package com.alexhanson.bench;
+
+import com.alexhanson.main.InHouse;
+import com.alexhanson.main.Inventory;
+import com.alexhanson.main.InventoryServer;
+import com.alexhanson.main.Product;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of InventoryServer: keeps a fixed number of requests in flight and reports
+ * throughput and p50/p99 latency. The mix is mostly part reads, with stock adjustments
+ * and product reads. Run with "ant bench", or directly with
+ * "ServerLoadTest [concurrency] [requests] [base url]" to load an already running server.
+ * Without a url a server is started in this JVM on a free port.
+ * @author Alex Hanson
+ */
+public class ServerLoadTest {
+
+    final private static int PARTS = 1_000;
+    final private static int PRODUCTS = 100;
+
+    /**
+     * @param args Optionally concurrency, request count and the server's base url.
+     * @throws Exception Thrown if the server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        InventoryServer server = null;
+        String base;
+
+        if(args.length > 2) {
+            base = args[2];
+        } else {
+            seed();
+            server = new InventoryServer(0);
+            server.start();
+            base = "http://localhost:" + server.getPort();
+        }
+
+        HttpClient client = HttpClient.newBuilder()
+                                      .version(HttpClient.Version.HTTP_1_1)
+                                      .connectTimeout(Duration.ofSeconds(10))
+                                      .build();
+
+        // A short warm up run, then the measured run.
+        run(client, base, concurrency, Math.min(requests, 10_000));
+        long[] latencies = new long[requests];
+        long start = System.nanoTime();
+        int failures = run(client, base, concurrency, latencies);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("%,d requests, %,d in flight: %,.0f requests/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d failed%n",
+                          requests, concurrency, requests / seconds, latencies[requests / 2] / 1e6,
+                          latencies[(int) (requests * 0.99)] / 1e6, latencies[requests - 1] / 1e6, failures);
+
+        if(server != null)
+            server.stop(0);
+    }
+
+    private static void seed() {
+
+        Random random = new Random(42);
+
+        for(int id = 1; id <= PARTS; id++)
+            Inventory.addPart(new InHouse(id, "Part " + id, 1 + random.nextInt(100), 1_000_000, 0, Integer.MAX_VALUE, id % 10));
+
+        for(int id = 1; id <= PRODUCTS; id++) {
+            Product product = new Product(id, "Product " + id, 100, 0, 0, Integer.MAX_VALUE);
+
+            for(int i = 0; i < 4; i++)
+                product.addAssociatedPart(Inventory.lookupPart(1 + random.nextInt(PARTS)), 1 + random.nextInt(3));
+
+            Inventory.addProduct(product);
+        }
+    }
+
+    private static void run(HttpClient client, String base, int concurrency, int requests) throws InterruptedException {
+        run(client, base, concurrency, new long[requests]);
+    }
+
+    // Sends latencies.length requests, at most concurrency at a time, recording each latency in nanoseconds.
+    private static int run(HttpClient client, String base, int concurrency, long[] latencies) throws InterruptedException {
+
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicInteger failures = new AtomicInteger();
+        Random random = new Random(7);
+
+        for(int i = 0; i < latencies.length; i++) {
+            HttpRequest request = request(base, random);
+            int index = i;
+
+            inFlight.acquire();
+            long start = System.nanoTime();
+
+            CompletableFuture<HttpResponse<String>> response = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+
+            response.whenComplete((r, e) -> {
+                latencies[index] = System.nanoTime() - start;
+
+                if(e != null || r.statusCode() >= 300)
+                    failures.incrementAndGet();
+
+                inFlight.release();
+            });
+        }
+
+        inFlight.acquire(concurrency);
+        return failures.get();
+    }
+
+    // 80% part reads, 10% part stock adjustments, 10% product reads.
+    private static HttpRequest request(String base, Random random) {
+
+        int roll = random.nextInt(10);
+
+        if(roll == 0)
+            return HttpRequest.newBuilder(URI.create(base + "/parts/" + (1 + random.nextInt(PARTS)) + "/stock"))
+                              .POST(HttpRequest.BodyPublishers.ofString("{\"delta\": " + (random.nextInt(21) - 10) + "}"))
+                              .build();
+
+        if(roll == 1)
+            return HttpRequest.newBuilder(URI.create(base + "/products/" + (1 + random.nextInt(PRODUCTS)))).build();
+
+        return HttpRequest.newBuilder(URI.create(base + "/parts/" + (1 + random.nextInt(PARTS)))).build();
+    }
+}
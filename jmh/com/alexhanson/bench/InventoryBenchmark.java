@@ -0,0 +1,307 @@
+
+package com.alexhanson.bench;
+
+import com.alexhanson.main.InHouse;
+import com.alexhanson.main.Inventory;
+import com.alexhanson.main.Part;
+import com.alexhanson.main.Product;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the Inventory operations behind the tables, forms and server, over
+ * catalogues of 1,000 to 10,000,000 parts and a tenth as many products. Run with "ant jmh",
+ * which reports the operations per second and, through the gc profiler, the bytes allocated
+ * per operation (gc.alloc.rate.norm), and keeps the results as a baseline, see build.xml.
+ * <p>
+ * Each catalogue size runs in a JVM of its own, Inventory being static. Products use the
+ * first half of the parts, the second half is free to delete. Adds and deletes are measured
+ * in batches, undone between batches outside the measurement so the catalogue keeps its size.
+ * <p>
+ * Parts are priced in the order of their ids, so loading the catalogue appends to the ordered
+ * field indexes rather than shifting them on every add, which would take hours for the largest
+ * catalogue, see SortedIndex. updatePart still moves the part it edits within them. The
+ * 10,000,000 part catalogue needs a heap of about 10 GB.
+ * @author Alex Hanson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InventoryBenchmark {
+
+    // Records added or deleted per measured invocation.
+    final private static int BATCH = 100;
+    // Ids looked up, cycled through so lookups do not always hit the same records.
+    final private static int KEYS = 1 << 12;
+    final private static int PARTS_PER_PRODUCT = 3;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    private int size;
+
+    private int[] partIds;
+    private int[] productIds;
+    private String[] partNames;
+    private String[] productNames;
+    private int next;
+
+    /**
+     * Loads the catalogue and picks the records to look up.
+     */
+    @Setup(Level.Trial)
+    public void load() {
+
+        Random random = new Random(42);
+        int products = Math.max(1, size / 10);
+
+        for(int id = 1; id <= size; id++)
+            Inventory.addPart(newPart(id));
+
+        for(int id = 1; id <= products; id++) {
+            Product product = new Product(id, "Product " + id, 100, 0, 0, Integer.MAX_VALUE);
+
+            for(int i = 0; i < PARTS_PER_PRODUCT; i++)
+                product.addAssociatedPart(Inventory.lookupPart(1 + random.nextInt(Math.max(1, size / 2))), 1 + random.nextInt(3));
+
+            Inventory.addProduct(product);
+        }
+
+        partIds = new int[KEYS];
+        productIds = new int[KEYS];
+        partNames = new String[KEYS];
+        productNames = new String[KEYS];
+
+        for(int i = 0; i < KEYS; i++) {
+            partIds[i] = 1 + random.nextInt(size);
+            productIds[i] = 1 + random.nextInt(products);
+            partNames[i] = "Part " + partIds[i];
+            productNames[i] = "Product " + productIds[i];
+        }
+    }
+
+    /**
+     * Parts added by one invocation of addPart, deleted after it.
+     */
+    @State(Scope.Thread)
+    public static class Added {
+
+        final private List<Part> parts = new ArrayList<>();
+
+        /**
+         * @param inventory The catalogue, above whose ids the parts are added.
+         */
+        @Setup(Level.Invocation)
+        public void prepare(InventoryBenchmark inventory) {
+
+            parts.clear();
+
+            for(int i = 1; i <= BATCH; i++)
+                parts.add(newPart(inventory.size + i));
+        }
+
+        /**
+         * Deletes the parts added.
+         */
+        @TearDown(Level.Invocation)
+        public void undo() {
+
+            for(Part part : parts)
+                Inventory.deletePart(part);
+        }
+    }
+
+    /**
+     * Parts deleted by one invocation of deletePart, added back after it.
+     */
+    @State(Scope.Thread)
+    public static class Deleted {
+
+        final private List<Part> parts = new ArrayList<>();
+        final private Random random = new Random(11);
+
+        /**
+         * @param inventory The catalogue, from the half of which no product uses the parts are
+         * picked.
+         */
+        @Setup(Level.Invocation)
+        public void prepare(InventoryBenchmark inventory) {
+
+            parts.clear();
+            int free = inventory.size - inventory.size / 2;
+
+            while(parts.size() < Math.min(BATCH, free)) {
+                Part part = Inventory.lookupPart(inventory.size / 2 + 1 + random.nextInt(free));
+
+                if(!parts.contains(part))
+                    parts.add(part);
+            }
+        }
+
+        /**
+         * Adds back copies of the parts deleted.
+         */
+        @TearDown(Level.Invocation)
+        public void undo() {
+
+            for(Part part : parts)
+                Inventory.addPart(new InHouse(part.getId(), part.getName(), part.getPrice(), part.getStock(),
+                                              part.getMin(), part.getMax(), ((InHouse) part).getMachineId()));
+        }
+    }
+
+    /**
+     * Products deleted by one invocation of deleteProduct, added back after it.
+     */
+    @State(Scope.Thread)
+    public static class DeletedProducts {
+
+        final private List<Product> products = new ArrayList<>();
+        final private Random random = new Random(13);
+
+        /**
+         * @param inventory The catalogue to pick the products from.
+         */
+        @Setup(Level.Invocation)
+        public void prepare(InventoryBenchmark inventory) {
+
+            products.clear();
+            int count = Math.max(1, inventory.size / 10);
+
+            while(products.size() < Math.min(BATCH, count)) {
+                Product product = Inventory.lookupProduct(1 + random.nextInt(count));
+
+                if(!products.contains(product))
+                    products.add(product);
+            }
+        }
+
+        /**
+         * Adds back copies of the products deleted, with the same parts.
+         */
+        @TearDown(Level.Invocation)
+        public void undo() {
+
+            for(Product product : products) {
+                Product copy = new Product(product.getId(), product.getName(), product.getPrice(), product.getStock(),
+                                           product.getMin(), product.getMax());
+
+                for(int partId : product.getAssociatedPartIds())
+                    copy.addAssociatedPart(Inventory.lookupPart(partId), product.getAssociatedQuantity(partId));
+
+                Inventory.addProduct(copy);
+            }
+        }
+    }
+
+    /**
+     * @return A part found by id.
+     */
+    @Benchmark
+    public Part lookupPartById() {
+        return Inventory.lookupPart(partIds[next++ & (KEYS - 1)]);
+    }
+
+    /**
+     * @return A product found by id.
+     */
+    @Benchmark
+    public Product lookupProductById() {
+        return Inventory.lookupProduct(productIds[next++ & (KEYS - 1)]);
+    }
+
+    /**
+     * @return The parts found by name, as the search fields do.
+     */
+    @Benchmark
+    public List<Part> lookupPartByName() {
+        return Inventory.lookupPart(partNames[next++ & (KEYS - 1)]);
+    }
+
+    /**
+     * @return The products found by name.
+     */
+    @Benchmark
+    public List<Product> lookupProductByName() {
+        return Inventory.lookupProduct(productNames[next++ & (KEYS - 1)]);
+    }
+
+    /**
+     * @return A copy of the list of parts.
+     */
+    @Benchmark
+    public List<Part> getAllParts() {
+        return Inventory.getAllParts();
+    }
+
+    /**
+     * Replaces a part with an edited copy, as PartForm and PUT /parts/{id} do.
+     * @return Whether the part was replaced.
+     */
+    @Benchmark
+    public boolean updatePart() {
+
+        Part held = Inventory.lookupPart(partIds[next++ & (KEYS - 1)]);
+        Part edited = new InHouse(held.getId(), held.getName(), held.getPrice() + 1, held.getStock(),
+                                  held.getMin(), held.getMax(), ((InHouse) held).getMachineId());
+
+        return Inventory.updatePart(edited, held.getVersion());
+    }
+
+    /**
+     * Adds a batch of new parts.
+     * @param added The parts to add.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addPart(Added added) {
+
+        for(Part part : added.parts)
+            Inventory.addPart(part);
+    }
+
+    /**
+     * Deletes a batch of parts.
+     * @param deleted The parts to delete.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void deletePart(Deleted deleted) {
+
+        for(Part part : deleted.parts)
+            Inventory.deletePart(part);
+    }
+
+    /**
+     * Deletes a batch of products.
+     * @param deleted The products to delete.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void deleteProduct(DeletedProducts deleted) {
+
+        for(Product product : deleted.products)
+            Inventory.deleteProduct(product);
+    }
+
+    private static Part newPart(int id) {
+        return new InHouse(id, "Part " + id, 1 + id * 0.01, 1_000, 0, Integer.MAX_VALUE, id % 10);
+    }
+}
@@ -0,0 +1,408 @@
+
+package com.alexhanson.bench;
+
+import com.alexhanson.main.InHouse;
+import com.alexhanson.main.Part;
+import com.alexhanson.main.RangeQuery;
+import com.alexhanson.main.SearchFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the search fields of the part and product tables and the product form,
+ * which re-test every row against the text on each keystroke, see SearchFilter. Run with
+ * "ant jmh", see build.xml and InventoryBenchmark.
+ * <p>
+ * The rows carry names drawn from one of three distributions: "serial", the "Part 17" names
+ * of test data, which all share one prefix; "catalogue", names such as "Steel Hex Bolt M6"
+ * made of words picked uniformly; and "skewed", the same words picked with Zipf frequencies,
+ * so that a few prefixes match most rows as in real catalogues. The text searched for is
+ * typed a character at a time, each prefix being one keystroke: the start of a row's name in
+ * lower case, or for one search in four the digits of a row's id.
+ * <p>
+ * The keystroke benchmarks test every row for one keystroke, the time and bytes of an
+ * operation being those of the keystroke. The row benchmarks test one row, the bytes per
+ * operation being the bytes allocated per row. Besides SearchFilter, as shipped, two
+ * alternatives are measured against it: a test that does not allocate, and a prefix index of
+ * sorted names and ids, looked up once per keystroke into the set of matching rows the
+ * tables test each row against, as they do for range queries. buildIndex measures the cost
+ * of keeping that index, rebuilt whole.
+ * @author Alex Hanson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchPredicateBenchmark {
+
+    // Searches typed, each as many keystrokes as it has characters.
+    final private static int SEARCHES = 256;
+    // Longest search typed, in characters.
+    final private static int TYPED = 10;
+
+    final private static String[] MATERIALS = {"Steel", "Stainless", "Brass", "Aluminium", "Nylon", "Copper",
+                                               "Zinc Plated", "Titanium", "Rubber", "Carbon"};
+    final private static String[] ITEMS = {"Hex Bolt", "Washer", "Bearing", "Bracket", "Spring", "Gasket", "Hinge",
+                                           "Rivet", "Bushing", "Spacer", "Pulley", "Sprocket", "Valve", "Coupling",
+                                           "Clamp", "Nut", "Screw", "Pin", "Shaft", "Gear"};
+    final private static String[] SIZES = {"M3", "M4", "M5", "M6", "M8", "M10", "M12", "1/4\"", "3/8\"", "1/2\""};
+
+    @Param({"1000", "10000", "100000"})
+    private int rows;
+
+    @Param({"serial", "catalogue", "skewed"})
+    private String names;
+
+    private Part[] parts;
+    private String[] keystrokes;
+    private PrefixIndex index;
+    private int nextKeystroke;
+    private int nextRow;
+
+    /**
+     * Makes the rows, the keystrokes typed and the index of the rows.
+     */
+    @Setup(Level.Trial)
+    public void load() {
+
+        Random random = new Random(42);
+        parts = new Part[rows];
+
+        for(int i = 0; i < rows; i++)
+            parts[i] = new InHouse(i + 1, name(i + 1, random), 1 + random.nextInt(100), 1_000, 0, Integer.MAX_VALUE, i % 10);
+
+        List<String> typed = new ArrayList<>();
+
+        for(int s = 0; s < SEARCHES; s++) {
+            Part target = parts[random.nextInt(rows)];
+            String search = s % 4 == 3 ? Integer.toString(target.getId()) : target.getName().toLowerCase();
+
+            for(int n = 1; n <= Math.min(TYPED, search.length()); n++)
+                typed.add(search.substring(0, n));
+        }
+
+        keystrokes = typed.toArray(new String[0]);
+        index = new PrefixIndex(parts);
+    }
+
+    /**
+     * Filters every row for one keystroke as the tables do: the text is tried as a range
+     * query, then each row is tested with SearchFilter.
+     * @return The number of rows matching.
+     */
+    @Benchmark
+    public int keystroke() {
+
+        String text = nextKeystroke();
+        int matches = 0;
+
+        if(RangeQuery.parse(text) != null)
+            return -1;
+
+        for(Part part : parts) {
+            if(SearchFilter.matches(part.getId(), part.getName(), text))
+                matches++;
+        }
+
+        return matches;
+    }
+
+    /**
+     * Tests one row with SearchFilter, the keystroke changing each time the rows are done.
+     * @return Whether the row matches.
+     */
+    @Benchmark
+    public boolean row() {
+
+        Part part = nextRow();
+        return SearchFilter.matches(part.getId(), part.getName(), keystrokes[nextKeystroke]);
+    }
+
+    /**
+     * Filters every row for one keystroke with a test that does not allocate.
+     * @return The number of rows matching.
+     */
+    @Benchmark
+    public int keystrokeWithoutAllocating() {
+
+        String text = nextKeystroke();
+        int matches = 0;
+
+        if(RangeQuery.parse(text) != null)
+            return -1;
+
+        for(Part part : parts) {
+            if(matchesWithoutAllocating(part.getId(), part.getName(), text))
+                matches++;
+        }
+
+        return matches;
+    }
+
+    /**
+     * Tests one row with the test that does not allocate.
+     * @return Whether the row matches.
+     */
+    @Benchmark
+    public boolean rowWithoutAllocating() {
+
+        Part part = nextRow();
+        return matchesWithoutAllocating(part.getId(), part.getName(), keystrokes[nextKeystroke]);
+    }
+
+    /**
+     * Filters every row for one keystroke from the prefix index: the rows matching are
+     * looked up, then each row is tested against them.
+     * @return The number of rows matching.
+     */
+    @Benchmark
+    public int keystrokeIndexed() {
+
+        String text = nextKeystroke();
+        int matches = 0;
+
+        if(RangeQuery.parse(text) != null)
+            return -1;
+
+        Set<Part> found = index.lookup(text);
+
+        for(Part part : parts) {
+            if(found.contains(part))
+                matches++;
+        }
+
+        return matches;
+    }
+
+    /**
+     * @return A prefix index of the rows, built whole.
+     */
+    @Benchmark
+    public Object buildIndex() {
+        return new PrefixIndex(parts);
+    }
+
+    /**
+     * Prefix index of rows by name, ignoring case, and by the digits of the id: both sorted,
+     * so the rows beginning with a text are found by binary search.
+     */
+    private static final class PrefixIndex {
+
+        final private Part[] parts;
+        // Names in lower case, sorted, with the row of each.
+        final private String[] names;
+        final private int[] nameRows;
+        // Ids sorted, with the row of each.
+        final private int[] ids;
+        final private int[] idRows;
+
+        PrefixIndex(Part[] parts) {
+
+            this.parts = parts;
+            int n = parts.length;
+            String[] lower = new String[n];
+            Integer[] order = new Integer[n];
+
+            for(int i = 0; i < n; i++) {
+                lower[i] = parts[i].getName().toLowerCase();
+                order[i] = i;
+            }
+
+            Arrays.sort(order, (a, b) -> lower[a].compareTo(lower[b]));
+            names = new String[n];
+            nameRows = new int[n];
+
+            for(int i = 0; i < n; i++) {
+                names[i] = lower[order[i]];
+                nameRows[i] = order[i];
+            }
+
+            Arrays.sort(order, (a, b) -> Integer.compare(parts[a].getId(), parts[b].getId()));
+            ids = new int[n];
+            idRows = new int[n];
+
+            for(int i = 0; i < n; i++) {
+                ids[i] = parts[order[i]].getId();
+                idRows[i] = order[i];
+            }
+        }
+
+        // The rows whose name begins with the text ignoring case, or whose id begins with
+        // its digits.
+        Set<Part> lookup(String text) {
+
+            Set<Part> found = Collections.newSetFromMap(new IdentityHashMap<>());
+            String prefix = text.toLowerCase();
+
+            for(int i = lowerBound(prefix); i < names.length && names[i].startsWith(prefix); i++)
+                found.add(parts[nameRows[i]]);
+
+            // Ids beginning with the digits p are those from p * 10^k to (p + 1) * 10^k - 1.
+            long digits = parseDigits(text);
+
+            if(digits <= 0 || ids.length == 0)
+                return found;
+
+            for(long low = digits, high = digits; low <= ids[ids.length - 1]; low *= 10, high = high * 10 + 9) {
+                for(int i = lowerBound(low); i < ids.length && ids[i] <= high; i++)
+                    found.add(parts[idRows[i]]);
+            }
+
+            return found;
+        }
+
+        private int lowerBound(String prefix) {
+
+            int low = 0;
+            int high = names.length;
+
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+
+                if(names[mid].compareTo(prefix) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+
+            return low;
+        }
+
+        private int lowerBound(long id) {
+
+            int low = 0;
+            int high = ids.length;
+
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+
+                if(ids[mid] < id)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+
+            return low;
+        }
+    }
+
+    // Tests as SearchFilter does, comparing the id digit by digit and the name in place.
+    // Differs from it only for the few characters whose lower case is of another length.
+    private static boolean matchesWithoutAllocating(int id, String name, String text) {
+
+        long digits = parseDigits(text);
+
+        if(digits > 0 && id > 0) {
+            long value = id;
+
+            while(value > digits)
+                value /= 10;
+
+            if(value == digits)
+                return true;
+        }
+
+        return name.regionMatches(true, 0, text, 0, text.length());
+    }
+
+    // The value of text made only of digits, not beginning with 0, and -1 for other text.
+    private static long parseDigits(String text) {
+
+        int n = text.length();
+
+        if(n == 0 || n > 10 || text.charAt(0) == '0')
+            return -1;
+
+        long value = 0;
+
+        for(int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+
+            if(c < '0' || c > '9')
+                return -1;
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+    private String nextKeystroke() {
+
+        String text = keystrokes[nextKeystroke];
+
+        if(++nextKeystroke == keystrokes.length)
+            nextKeystroke = 0;
+
+        return text;
+    }
+
+    // The next row, moving on to the next keystroke after the last row.
+    private Part nextRow() {
+
+        Part part = parts[nextRow];
+
+        if(++nextRow == parts.length) {
+            nextRow = 0;
+            nextKeystroke();
+        }
+
+        return part;
+    }
+
+    private String name(int id, Random random) {
+
+        switch(names) {
+            case "serial":
+                return "Part " + id;
+            case "catalogue":
+                return MATERIALS[random.nextInt(MATERIALS.length)] + " " + ITEMS[random.nextInt(ITEMS.length)] + " "
+                       + SIZES[random.nextInt(SIZES.length)];
+            case "skewed":
+                return MATERIALS[zipf(MATERIALS.length, random)] + " " + ITEMS[zipf(ITEMS.length, random)] + " "
+                       + SIZES[zipf(SIZES.length, random)];
+            default:
+                throw new IllegalArgumentException("Unknown name distribution " + names);
+        }
+    }
+
+    // A rank from 0 to n - 1, rank r picked in proportion to 1 / (r + 1).
+    private static int zipf(int n, Random random) {
+
+        double total = 0;
+
+        for(int r = 1; r <= n; r++)
+            total += 1.0 / r;
+
+        double pick = random.nextDouble() * total;
+
+        for(int r = 1; r < n; r++) {
+            pick -= 1.0 / r;
+
+            if(pick < 0)
+                return r - 1;
+        }
+
+        return n - 1;
+    }
+}
@@ -0,0 +1,235 @@
+
+package com.alexhanson.main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ordered log of the changes made to Inventory, numbered by sequence so that subscribers
+ * can resume after a disconnect from the last change they applied. Each change carries the
+ * whole record, encoded as JSON when first read and shared by every subscriber. A record
+ * is read as it stands then, which may include later changes, so a subscriber that applies
+ * changes in order converges on the same state. Encoding on read keeps the cost of a change
+ * to Inventory low however many changes nobody reads.
+ * <p>
+ * Only the most recent changes are retained. A subscriber that fell further behind is told
+ * to reset and reload, see read().
+ * <p>
+ * Changes are numbered without a lock: each change takes the next sequence and is readable
+ * once the changes numbered before it are. Whichever append stores the change that follows
+ * the newest readable one makes it, and those stored after it, readable, so changes from
+ * different partitions of Inventory never wait for each other or for a monitor.
+ * @author Alex Hanson
+ */
+public class ChangeFeed {
+
+    /** Change kind: a part was added or changed, the data is the part. */
+    final public static String PART = "part";
+    /** Change kind: a part was deleted, the data holds its id. */
+    final public static String PART_DELETED = "partDeleted";
+    /** Change kind: a product was added or changed, the data is the product. */
+    final public static String PRODUCT = "product";
+    /** Change kind: a product was deleted, the data holds its id. */
+    final public static String PRODUCT_DELETED = "productDeleted";
+
+    /**
+     * One numbered change.
+     */
+    public static final class Change {
+
+        final private long sequence;
+        final private String kind;
+        // The changed Part or Product until encoded into data.
+        final private Object record;
+        private volatile String data;
+        // The change as a server-sent event, encoded once for all subscribers.
+        private volatile byte[] event;
+
+        Change(long sequence, String kind, Object record) {
+            this.sequence = sequence;
+            this.kind = kind;
+            this.record = record;
+            this.data = record instanceof String ? (String) record : null;
+        }
+
+        /**
+         * @return The position of the change in the feed, starting at 1.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return One of PART, PART_DELETED, PRODUCT or PRODUCT_DELETED.
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * @return The changed record as a JSON object.
+         */
+        public String getData() {
+
+            String json = data;
+
+            if(json == null) {
+                json = record instanceof Part ? new Json().part((Part) record).toString()
+                                              : new Json().product((Product) record).toString();
+                data = json;
+            }
+
+            return json;
+        }
+
+        /**
+         * @return The change in the text/event-stream format, with the sequence as its id.
+         */
+        public byte[] toEvent() {
+
+            byte[] bytes = event;
+
+            if(bytes == null) {
+                bytes = ("id: " + sequence + "\nevent: " + kind + "\ndata: " + getData() + "\n\n").getBytes(StandardCharsets.UTF_8);
+                event = bytes;
+            }
+
+            return bytes;
+        }
+    }
+
+    // Retained changes, the change numbered s is held at s % ring.length().
+    final private AtomicReferenceArray<Change> ring;
+    // Sequence of the newest change numbered, and of the newest readable, 0 before the first.
+    final private AtomicLong numbered = new AtomicLong();
+    final private AtomicLong last = new AtomicLong();
+    // Subscribers waiting in read(), only woken by append() when there are some. Changed
+    // holding the feed's monitor.
+    private volatile int waiting;
+
+    /**
+     * Constructor: Initializes an empty feed.
+     * @param retention The number of recent changes kept for subscribers catching up.
+     */
+    public ChangeFeed(int retention) {
+
+        if(retention < 1)
+            throw new IllegalArgumentException("Retention must be at least 1");
+
+        ring = new AtomicReferenceArray<>(retention);
+    }
+
+    /**
+     * Appends a change, waking subscribers waiting in read().
+     * @param kind One of PART, PART_DELETED, PRODUCT or PRODUCT_DELETED.
+     * @param record The changed Part or Product, or the change's data as a JSON object.
+     * @return The sequence of the change.
+     */
+    public long append(String kind, Object record) {
+
+        long sequence = numbered.incrementAndGet();
+
+        // A change numbered a whole ring later may have taken the slot first, it is kept.
+        ring.accumulateAndGet(slot(sequence), new Change(sequence, kind, record),
+                (held, change) -> held == null || held.getSequence() < change.getSequence() ? change : held);
+
+        // Changes become readable in order. The change is stored before the readable ones
+        // are checked, so if the changes before it are still being stored, the append that
+        // stores the last of them sees it and makes it readable.
+        boolean advanced = false;
+
+        while(true) {
+            long newest = last.get();
+
+            if(!stored(newest + 1))
+                break;
+
+            advanced |= last.compareAndSet(newest, newest + 1);
+        }
+
+        // A subscriber counts itself waiting before it checks for changes, so one that missed
+        // this change is seen here.
+        if(advanced && waiting > 0) {
+            synchronized(this) {
+                notifyAll();
+            }
+        }
+
+        return sequence;
+    }
+
+    /**
+     * @return The sequence of the newest change, 0 if there is none.
+     */
+    public long getLastSequence() {
+        return last.get();
+    }
+
+    /**
+     * Returns the changes following a sequence, waiting for one if there are none yet.
+     * @param after The sequence of the last change the caller applied.
+     * @param timeout The most milliseconds to wait, 0 not to wait.
+     * @return The changes numbered after, in order, empty if none arrived in time, or null
+     * if some of them are no longer retained and the caller must reload instead.
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting.
+     */
+    public List<Change> read(long after, long timeout) throws InterruptedException {
+
+        if(after >= last.get() && timeout > 0)
+            await(after, timeout);
+
+        long newest = last.get();
+
+        if(after < newest - ring.length() || after > newest)
+            return null;
+
+        List<Change> changes = new ArrayList<>((int) (newest - after));
+
+        for(long s = after + 1; s <= newest; s++) {
+            Change change = ring.get(slot(s));
+
+            // Overwritten by a newer change while being read.
+            if(change.getSequence() != s)
+                return null;
+
+            changes.add(change);
+        }
+
+        return changes;
+    }
+
+    // Waits until a change follows after or the timeout passes.
+    private synchronized void await(long after, long timeout) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+        waiting++;
+
+        try {
+            while(after >= last.get()) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if(remaining <= 0)
+                    break;
+
+                wait(remaining);
+            }
+        } finally {
+            waiting--;
+        }
+    }
+
+    // Whether the change numbered sequence, or one numbered a whole ring later, is stored.
+    private boolean stored(long sequence) {
+
+        Change change = ring.get(slot(sequence));
+        return change != null && change.getSequence() >= sequence;
+    }
+
+    // The ring slot of the change numbered sequence.
+    private int slot(long sequence) {
+        return (int) (sequence % ring.length());
+    }
+}
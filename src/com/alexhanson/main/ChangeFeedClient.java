@@ -0,0 +1,553 @@
+
+package com.alexhanson.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps this process's Inventory in step with the Inventory of an InventoryServer by
+ * following its change feed. Each change is applied as a single add, update or delete, so
+ * live views and the tables bound to them only process the rows that changed. After a
+ * disconnect the client reconnects and resumes from the last change it received. A change
+ * whose record is malformed is skipped and counted, the rest of its batch still applies,
+ * see getSkipped().
+ * @author Alex Hanson
+ */
+public class ChangeFeedClient {
+
+    final private static long MIN_BACKOFF = 500;
+    final private static long MAX_BACKOFF = 10_000;
+
+    // Changes skipped by apply(), by every client and JournalStandby.
+    final private static AtomicLong skipped = new AtomicLong();
+    private static volatile String lastSkipped;
+
+    final private String baseUrl;
+    final private Executor applier;
+    final private HttpClient client;
+
+    // Sequence of the last change handed to the applier, -1 before the first.
+    private volatile long lastSequence = -1;
+    private volatile boolean running;
+    private Thread thread;
+    // The open event stream, closed by stop() to end a blocked read.
+    private volatile InputStream stream;
+    // Changes received but not yet applied, and whether a task applying them is with the
+    // applier. Batches arriving before it runs join the pending ones, see handOver().
+    final private Object pendingLock = new Object();
+    private List<String[]> pending = new ArrayList<>();
+    private boolean handedOver;
+
+    /**
+     * Constructor: Initializes a client, call start() to begin following.
+     * @param baseUrl The server's base url, such as "http://localhost:8080".
+     * @param applier Runs the batches of changes against Inventory, such as an UpdateDispatcher
+     * when Inventory backs a GUI, which applies the batches that arrived within a frame together.
+     */
+    public ChangeFeedClient(String baseUrl, Executor applier) {
+
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.applier = applier;
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    /**
+     * Begins following the feed on a background thread.
+     */
+    public synchronized void start() {
+
+        if(running)
+            return;
+
+        running = true;
+        thread = new Thread(this::follow, "change-feed-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops following the feed.
+     */
+    public synchronized void stop() {
+
+        running = false;
+
+        if(thread != null)
+            thread.interrupt();
+
+        try {
+            if(stream != null)
+                stream.close();
+        } catch(IOException e) {
+            // Closing is all that was wanted.
+        }
+    }
+
+    /**
+     * @return The sequence of the last change handed to the applier, -1 if none was.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return The number of changes skipped by apply() for a malformed record.
+     */
+    public static long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return The reason the last change was skipped, null if none was.
+     */
+    public static String getLastSkipped() {
+        return lastSkipped;
+    }
+
+    // Connects, reads events until the stream ends, and reconnects with growing delays.
+    private void follow() {
+
+        long backoff = MIN_BACKOFF;
+
+        while(running) {
+            String url = baseUrl + "/changes" + (lastSequence >= 0 ? "?since=" + lastSequence : "");
+
+            try {
+                HttpResponse<InputStream> response = client.send(HttpRequest.newBuilder(URI.create(url)).build(),
+                                                                 HttpResponse.BodyHandlers.ofInputStream());
+
+                if(response.statusCode() == 200) {
+                    backoff = MIN_BACKOFF;
+                    stream = response.body();
+                    read(stream);
+                } else {
+                    response.body().close();
+                }
+            } catch(IOException e) {
+                // Retried below.
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    // Parses server-sent events, handing them to the applier in batches of what has arrived.
+    private void read(InputStream body) throws IOException {
+
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            List<String[]> batch = new ArrayList<>();
+            long sequence = lastSequence;
+            String kind = null;
+            String data = null;
+            String line;
+
+            while(running && (line = in.readLine()) != null) {
+                if(line.startsWith("id: ")) {
+                    // A malformed id leaves the sequence where it was.
+                    long id = InventoryValidator.parseCount(line.substring(4), Long.MAX_VALUE);
+                    sequence = id < 0 ? sequence : id;
+                } else if(line.startsWith("event: ")) {
+                    kind = line.substring(7);
+                } else if(line.startsWith("data: ")) {
+                    data = line.substring(6);
+                } else if(line.isEmpty() && kind != null) {
+                    batch.add(new String[] {kind, data});
+                    kind = null;
+                    data = null;
+
+                    // The sequence only advances with a batch handed over, to resume from after it.
+                    if(!in.ready()) {
+                        handOver(batch);
+                        lastSequence = sequence;
+                        batch = new ArrayList<>();
+                    }
+                }
+            }
+        }
+    }
+
+    // Adds a batch to the changes pending, handing a task applying them to the applier
+    // unless one is already waiting there. A fast feed so keeps one task with the applier,
+    // however many batches arrive before it runs, and a reset drops the changes before it.
+    private void handOver(List<String[]> batch) {
+
+        synchronized(pendingLock) {
+            for(String[] change : batch) {
+                if(change[0].equals("reset"))
+                    pending.clear();
+
+                pending.add(change);
+            }
+
+            if(handedOver)
+                return;
+
+            handedOver = true;
+        }
+
+        applier.execute(() -> {
+            List<String[]> changes;
+
+            synchronized(pendingLock) {
+                changes = pending;
+                pending = new ArrayList<>();
+                handedOver = false;
+            }
+
+            apply(changes);
+        });
+    }
+
+    /********* Applying changes *********/
+
+    /**
+     * Applies a batch of changes in order, each given as its kind and data. Each record is
+     * the whole row, so a change to a held row that a later change of the same kind to the
+     * row supersedes is skipped: other rows refer to it by id only. A change whose record is
+     * malformed is skipped and counted, see getSkipped(). Shared with JournalStandby.
+     * @param changes The kind and data of each change, see ChangeFeed.Change.
+     */
+    static void apply(List<String[]> changes) {
+
+        // The position of the last change to each row, keyed by kind and record data.
+        Map<String, Integer> last = new HashMap<>();
+
+        for(int i = 0; i < changes.size(); i++) {
+            String row = row(changes.get(i));
+
+            if(row != null)
+                last.put(row, i);
+        }
+
+        for(int i = 0; i < changes.size(); i++) {
+            String[] change = changes.get(i);
+            String row = row(change);
+
+            if(row != null && last.get(row) > i && superseded(change, changes.get(last.get(row))))
+                continue;
+
+            try {
+                apply(change[0], change[1]);
+            } catch(IllegalArgumentException e) {
+                skipped.incrementAndGet();
+                lastSkipped = change[0] + " " + change[1] + ": " + e.getMessage();
+            }
+        }
+    }
+
+    // Applies one change, throwing IllegalArgumentException if its record is malformed.
+    private static void apply(String kind, String data) throws IllegalArgumentException {
+
+        if(data == null && !kind.equals("reset"))
+            throw new IllegalArgumentException("No data");
+
+        switch(kind) {
+            case "reset":
+                clear();
+                break;
+            case ChangeFeed.PART:
+                putPart(Json.parseObject(data));
+                break;
+            case ChangeFeed.PART_DELETED:
+                Part part = Inventory.lookupPart(id(Json.parseObject(data)));
+
+                if(part != null)
+                    Inventory.deletePart(part);
+                break;
+            case ChangeFeed.PRODUCT:
+                Object fields = Json.parse(data);
+
+                if(!(fields instanceof Map))
+                    throw new IllegalArgumentException("Not an object");
+
+                putProduct((Map<?, ?>) fields);
+                break;
+            case ChangeFeed.PRODUCT_DELETED:
+                Product product = Inventory.lookupProduct(id(Json.parseObject(data)));
+
+                if(product != null)
+                    Inventory.deleteProduct(product);
+                break;
+            default:
+                // Kinds added by later servers are skipped.
+        }
+    }
+
+    // The row a part or product change is to, its kind and id, null for other changes.
+    private static String row(String[] change) {
+
+        if(change[1] == null)
+            return null;
+
+        switch(change[0]) {
+            case ChangeFeed.PART:
+            case ChangeFeed.PART_DELETED:
+                return "part " + idOf(change[1]);
+            case ChangeFeed.PRODUCT:
+            case ChangeFeed.PRODUCT_DELETED:
+                return "product " + idOf(change[1]);
+            default:
+                return null;
+        }
+    }
+
+    // Whether a change is to a held row that a later change of the same kind replaces whole.
+    // A row not held yet is added, as later changes between the two may refer to it.
+    private static boolean superseded(String[] change, String[] later) {
+
+        if(!change[0].equals(later[0]))
+            return false;
+
+        int id = InventoryValidator.parseCount(idOf(change[1]));
+
+        switch(change[0]) {
+            case ChangeFeed.PART:
+                return id >= 0 && Inventory.lookupPart(id) != null;
+            case ChangeFeed.PRODUCT:
+                return id >= 0 && Inventory.lookupProduct(id) != null;
+            default:
+                return false;
+        }
+    }
+
+    // The text of the "id" member of a record, found without parsing the record, null if
+    // there is none. Records begin with their id, see Json.
+    private static String idOf(String data) {
+
+        int at = data.indexOf("\"id\":");
+
+        if(at < 0)
+            return null;
+
+        int from = at + 5;
+
+        while(from < data.length() && (data.charAt(from) == ' ' || data.charAt(from) == '"'))
+            from++;
+
+        int to = from;
+
+        while(to < data.length() && data.charAt(to) >= '0' && data.charAt(to) <= '9')
+            to++;
+
+        return data.substring(from, to);
+    }
+
+    // Empties Inventory before a full reload.
+    private static void clear() {
+
+        for(Product product : Inventory.getAllProducts())
+            Inventory.deleteProduct(product);
+
+        for(Part part : Inventory.getAllParts())
+            Inventory.deletePart(part);
+    }
+
+    private static void putPart(Map<String, String> fields) {
+
+        int id = id(fields);
+        InventoryValidator v = parse(fields);
+        double price = v.getPrice();
+        int stock = v.getStock();
+        int min = v.getMin();
+        int max = v.getMax();
+        Part held = Inventory.lookupPart(id);
+
+        // Most changes only move stock, which is set in place rather than replacing the part.
+        if(held != null) {
+            long version = held.getVersion();
+
+            if(onlyStockDiffers(held, fields, price, min, max) && held.compareAndSetStock(version, stock))
+                return;
+        }
+
+        Part part;
+
+        if(fields.containsKey("companyName")) {
+            if(fields.get("companyName") == null)
+                throw new IllegalArgumentException("No companyName");
+
+            part = new Outsourced(id, fields.get("name"), price, stock, min, max, fields.get("companyName"));
+        } else {
+            int machineId = InventoryValidator.parseCount(fields.get("machineId"));
+
+            if(machineId < 0)
+                throw new IllegalArgumentException("Bad machineId");
+
+            part = new InHouse(id, fields.get("name"), price, stock, min, max, machineId);
+        }
+
+        putPart(part);
+    }
+
+    // Whether a held part matches a part record from the feed in all but stock.
+    private static boolean onlyStockDiffers(Part held, Map<String, String> fields, double price, int min, int max) {
+
+        if(!held.getName().equals(fields.get("name")) || held.getPrice() != price || held.getMin() != min || held.getMax() != max)
+            return false;
+
+        if(fields.containsKey("companyName"))
+            return held instanceof Outsourced && ((Outsourced) held).getCompanyName().equals(fields.get("companyName"));
+
+        return held instanceof InHouse && Integer.toString(((InHouse) held).getMachineId()).equals(fields.get("machineId"));
+    }
+
+    /**
+     * Adds a part to Inventory, or replaces the part held under its id as a whole, retrying
+     * past concurrent stock changes. Shared with IngestPipeline.
+     * @param part The part to put.
+     */
+    static void putPart(Part part) {
+
+        while(true) {
+            Part held = Inventory.lookupPart(part.getId());
+
+            if(held == null) {
+                Inventory.addPart(part);
+                return;
+            }
+
+            if(Inventory.updatePart(part, held.getVersion()))
+                return;
+        }
+    }
+
+    // Applies a product record from the feed.
+    private static void putProduct(Map<?, ?> fields) {
+
+        InventoryValidator v = parse(fields);
+
+        putProduct(id(fields), text(fields, "name"), v.getPrice(), v.getStock(), v.getMin(), v.getMax(),
+                   quantities(fields.get("parts")), quantities(fields.get("subAssemblies")));
+    }
+
+    /**
+     * Adds a product to Inventory, or updates the product held under its id in place, as
+     * ProductForm does, so that only its changed parts and sub-assemblies are relinked. Ids of
+     * parts and products not held are skipped. Shared with IngestPipeline.
+     * @param id The product's id.
+     * @param name The product's name.
+     * @param price The product's price.
+     * @param stock The quantity on hand.
+     * @param min The minimum allowable quantity on hand.
+     * @param max The maximum allowable quantity on hand.
+     * @param parts Units of each associated part needed per unit, by part id.
+     * @param subAssemblies Units of each sub-assembly needed per unit, by product id.
+     */
+    static void putProduct(int id, String name, double price, int stock, int min, int max,
+                           Map<Integer, Integer> parts, Map<Integer, Integer> subAssemblies) {
+
+        Product product = Inventory.lookupProduct(id);
+        boolean added = product == null;
+
+        if(added) {
+            product = new Product(id, name, price, stock, min, max);
+        } else {
+            product.setName(name);
+            product.setPrice(price);
+            product.setMin(min);
+            product.setMax(max);
+            product.setStock(stock);
+        }
+
+        for(int partId : new ArrayList<>(product.getAssociatedPartIds()))
+            if(!parts.containsKey(partId) && Inventory.lookupPart(partId) != null)
+                product.deleteAssociatedPart(Inventory.lookupPart(partId));
+
+        for(Map.Entry<Integer, Integer> entry : parts.entrySet()) {
+            Part part = Inventory.lookupPart(entry.getKey());
+
+            if(part != null && product.getAssociatedQuantity(entry.getKey()) != entry.getValue())
+                product.addAssociatedPart(part, entry.getValue());
+        }
+
+        for(int subId : new ArrayList<>(product.getSubAssemblyIds()))
+            if(!subAssemblies.containsKey(subId) && Inventory.lookupProduct(subId) != null)
+                product.deleteSubAssembly(Inventory.lookupProduct(subId));
+
+        for(Map.Entry<Integer, Integer> entry : subAssemblies.entrySet()) {
+            Product sub = Inventory.lookupProduct(entry.getKey());
+
+            if(sub != null && product.getSubAssemblyQuantity(entry.getKey()) != entry.getValue())
+                product.addSubAssembly(sub, entry.getValue());
+        }
+
+        if(added)
+            Inventory.addProduct(product);
+        else
+            Inventory.updateProduct(product);
+    }
+
+    // Reads an array of {"id", "quantity"} objects into a map.
+    private static Map<Integer, Integer> quantities(Object array) {
+
+        Map<Integer, Integer> quantities = new HashMap<>();
+
+        if(array instanceof List)
+            for(Object element : (List<?>) array) {
+                if(!(element instanceof Map))
+                    throw new IllegalArgumentException("Bad quantity");
+
+                int quantity = InventoryValidator.parseCount(text((Map<?, ?>) element, "quantity"));
+
+                if(quantity < 1)
+                    throw new IllegalArgumentException("Bad quantity");
+
+                quantities.put(id((Map<?, ?>) element), quantity);
+            }
+
+        return quantities;
+    }
+
+    // Parses the name, price, stock, min and max of a record. Only their form is checked,
+    // stock changed in place on the server may lie outside min and max.
+    private static InventoryValidator parse(Map<?, ?> fields) throws IllegalArgumentException {
+
+        InventoryValidator v = new InventoryValidator();
+        int errors = v.validate(text(fields, "name"), text(fields, "price"), text(fields, "stock"),
+                                text(fields, "min"), text(fields, "max"));
+
+        if((errors & InventoryValidator.ALL_FIELDS) != 0)
+            throw new IllegalArgumentException("Bad fields " + errors);
+
+        return v;
+    }
+
+    private static int id(Map<?, ?> fields) throws IllegalArgumentException {
+
+        int id = InventoryValidator.parseCount(text(fields, "id"));
+
+        if(id < 0)
+            throw new IllegalArgumentException("Bad id");
+
+        return id;
+    }
+
+    // A field's text, null if absent or not text.
+    private static String text(Map<?, ?> fields, String name) {
+
+        Object value = fields.get(name);
+
+        return value instanceof String ? (String) value : null;
+    }
+}
@@ -15,15 +15,15 @@ import javafx.scene.control.Label;
 /**
  * The main page of the app.
  * It contains: the title, display tables for
- * parts and products, and an exit button to quit the application.
+ * parts and products, a table of parts needing reorder, and an exit button to quit the application.
  * 
  * @author Alex Hanson
  */
 public class HomePage extends VBox {
     
     /**
-     * Constructor: Initializes the HomePage app component with a reference to the app's primary stage
-     * and adds the necessary CSS StyleSheets.
+     * Constructor: Initializes the HomePage app component with a reference to the app's primary stage.
+     * Styles come from the stylesheets shared through the app's Scene, see Main.show().
      * @param appStage A reference to the application's primary stage. This reference
      * is used to display all subsequent scenes the HomePage may create i.e. inventory forms.
      */
@@ -31,7 +31,6 @@ public class HomePage extends VBox {
         
         super(20);
         buildHomeScene(appStage);
-        getStylesheets().add("file:css/homepage.css");
     }
     
     // Configure the layout of the HomePage and configure the exit button.
@@ -41,13 +40,20 @@ public class HomePage extends VBox {
         homepageHeader.getStyleClass().add("homepage-title");
         getChildren().add(homepageHeader);
        
-        HBox tablesContainer = new HBox(50, new PartTableWidget(appStage, Inventory.getAllParts()),
-                                            new ProductTableWidget(appStage, Inventory.getAllProducts()));
+        HBox tablesContainer = new HBox(50, new PartTableWidget(appStage, Inventory.getPartsView()),
+                                            new ProductTableWidget(appStage, Inventory.getProductsView()));
         
         tablesContainer.getStyleClass().add("table-view-container");
         
         getChildren().add(tablesContainer);
         
+        HBox reorderContainer = new HBox(50, new ReorderTableWidget(Inventory.getReorderView()),
+                                             new ValuationWidget(Inventory.totalValueProperty(),
+                                                                 Inventory.getValuationView()));
+        reorderContainer.getStyleClass().add("table-view-container");
+        
+        getChildren().add(reorderContainer);
+        
         Button exitBtn = new Button("Exit");
         
         exitBtn.setOnAction(e -> {
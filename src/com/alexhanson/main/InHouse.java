@@ -22,6 +22,7 @@ public class InHouse extends Part implements ItemSource {
      * @param min The minimum quantity on hand allowed.
      * @param max The maximum quantity on hand allowed.
      * @param machineId The id of the machine that produced this part.
+     * @throws IllegalArgumentException Thrown if stock is negative.
      */
     public InHouse(int id, String name, double price, int stock, int min, int max, int machineId) {
         
@@ -39,10 +40,15 @@ public class InHouse extends Part implements ItemSource {
     }
     
     /**
+     * Changing the machine of a part held in Inventory refiles its value on hand.
      * @param machineId The id of the machine that created this part.
      */
     public void setMachineId(int machineId) {
+        
         this.machineId = machineId;
+        touch();
+
+        Inventory.partSourceChanged(this);
     }
     
     /**
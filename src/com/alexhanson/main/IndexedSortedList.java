@@ -0,0 +1,233 @@
+
+package com.alexhanson.main;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import javafx.collections.ListChangeListener.Change;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.TransformationList;
+
+/**
+ * Sorted view of an ObservableList backed by SortedIndexes.
+ * Every index registered with the view is maintained as the source list changes, so
+ * switching the sort column or direction walks an existing index instead of sorting
+ * the list again. Without an active index the view keeps the order of its source.
+ * @author Alex Hanson
+ * @param <E> The type of item in the list.
+ */
+public class IndexedSortedList<E> extends TransformationList<E, E> {
+
+    // All indexes maintained over the source.
+    final private List<SortedIndex<E>> indexes;
+
+    // The index the view currently walks, null for source order.
+    private SortedIndex<E> active;
+    private boolean ascending;
+    // Position of each item in the source, mapped when first needed and dropped when the
+    // source gains, loses or reorders items, null until mapped.
+    private IdentityHashMap<E, Integer> sourcePositions;
+
+    /**
+     * Constructor: Initializes an unsorted view of source.
+     * @param source The list to provide a sorted view of.
+     */
+    public IndexedSortedList(ObservableList<? extends E> source) {
+
+        super(source);
+        this.indexes = new ArrayList<>();
+        this.ascending = true;
+    }
+
+    /**
+     * Registers a new index over the source list.
+     * @param key Function providing the key to order items by.
+     * @return The new index, for use with sortBy().
+     */
+    public SortedIndex<E> addIndex(ToDoubleFunction<? super E> key) {
+
+        SortedIndex<E> index = new SortedIndex<>(key);
+
+        for(E item : getSource())
+            index.insert(item);
+
+        indexes.add(index);
+
+        return index;
+    }
+
+    /**
+     * Orders the view by one of its indexes. Listeners receive a single permutation,
+     * so selection held on the view survives a change of sort order.
+     * @param index An index created by addIndex(), or null for the order of the source list.
+     * @param ascending True to walk the index in ascending order, false for descending.
+     */
+    public void sortBy(SortedIndex<E> index, boolean ascending) {
+
+        if(index != null && !indexes.contains(index))
+            throw new IllegalArgumentException("Index does not belong to this list");
+
+        if(index == active && (index == null || ascending == this.ascending))
+            return;
+
+        IdentityHashMap<E, Integer> oldPositions = new IdentityHashMap<>(size());
+
+        for(int i = 0; i < size(); i++)
+            oldPositions.put(get(i), i);
+
+        active = index;
+        this.ascending = ascending;
+
+        int[] perm = new int[size()];
+
+        for(int i = 0; i < perm.length; i++)
+            perm[oldPositions.get(get(i))] = i;
+
+        beginChange();
+        nextPermutation(0, perm.length, perm);
+        endChange();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+
+        if(active == null)
+            return getSource().get(index);
+
+        return active.get(ascending ? index : active.size() - 1 - index);
+    }
+
+    @Override
+    public int size() {
+        return getSource().size();
+    }
+
+    /**
+     * Maps a view position to the position of the same item in the source list. While an
+     * index is active the source positions are mapped once, in linear time, and then looked
+     * up until items are added to, removed from or moved in the source.
+     * @param index Position in this view.
+     * @return Position in the source list.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public int getSourceIndex(int index) {
+
+        if(active == null)
+            return index;
+
+        if(sourcePositions == null) {
+            sourcePositions = new IdentityHashMap<>(getSource().size());
+
+            for(int i = 0; i < getSource().size(); i++)
+                sourcePositions.put((E) getSource().get(i), i);
+        }
+
+        return sourcePositions.getOrDefault(get(index), -1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int getViewIndex(int index) {
+
+        if(active == null)
+            return index;
+
+        return toView(active.indexOf((E) getSource().get(index)), active.size());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void sourceChanged(Change<? extends E> c) {
+
+        beginChange();
+
+        while(c.next()) {
+
+            // Updates leave every item at its source position.
+            if(!c.wasUpdated())
+                sourcePositions = null;
+
+            if(c.wasPermutated()) {
+                // Index order does not depend on the order of the source.
+                if(active == null) {
+                    int[] perm = new int[c.getTo() - c.getFrom()];
+
+                    for(int i = c.getFrom(); i < c.getTo(); i++)
+                        perm[i - c.getFrom()] = c.getPermutation(i);
+
+                    nextPermutation(c.getFrom(), c.getTo(), perm);
+                }
+                continue;
+            }
+
+            if(c.wasUpdated()) {
+                for(int i = c.getFrom(); i < c.getTo(); i++)
+                    updated(getSource().get(i), i);
+                continue;
+            }
+
+            if(c.wasRemoved()) {
+                if(active == null)
+                    nextRemove(c.getFrom(), (List<E>) c.getRemoved());
+
+                for(E item : c.getRemoved()) {
+                    for(SortedIndex<E> index : indexes) {
+                        int before = index.size();
+                        int pos = index.remove(item);
+
+                        if(index == active && pos >= 0)
+                            nextRemove(toView(pos, before), item);
+                    }
+                }
+            }
+
+            if(c.wasAdded()) {
+                if(active == null)
+                    nextAdd(c.getFrom(), c.getTo());
+
+                for(E item : c.getAddedSubList()) {
+                    for(SortedIndex<E> index : indexes) {
+                        int pos = index.insert(item);
+
+                        if(index == active) {
+                            int at = toView(pos, index.size());
+                            nextAdd(at, at + 1);
+                        }
+                    }
+                }
+            }
+        }
+
+        endChange();
+    }
+
+    // Moves an item whose keys may have changed in place and reports it.
+    private void updated(E item, int sourceIndex) {
+
+        if(active == null)
+            nextUpdate(sourceIndex);
+
+        for(SortedIndex<E> index : indexes) {
+            int before = index.indexOf(item);
+            int after = index.reposition(item);
+
+            if(index == active) {
+                if(before == after) {
+                    nextUpdate(toView(after, index.size()));
+                } else {
+                    nextRemove(toView(before, index.size()), item);
+                    int at = toView(after, index.size());
+                    nextAdd(at, at + 1);
+                }
+            }
+        }
+    }
+
+    // Converts a position in ascending index order to a position in this view.
+    private int toView(int pos, int indexSize) {
+        return ascending ? pos : indexSize - 1 - pos;
+    }
+}
@@ -0,0 +1,712 @@
+
+package com.alexhanson.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Feeds large batches of part and product records into Inventory through five stages:
+ * read, parse, validate, dedupe and apply. Each stage runs on a thread of its own, see
+ * Threads, and hands records on through a bounded queue, so a slow stage makes the stages
+ * before it wait rather than letting records pile up in memory. Every stage has one thread,
+ * so records are applied in the order they were read.
+ * <p>
+ * The input has one JSON object per line, blank lines are skipped. "kind" is "part" or
+ * "product", the other members are those InventoryServer reads and writes: parts have "name",
+ * "price", "stock", "min", "max" and "machineId" or "companyName", products have the same
+ * fields less the source, and "parts" and "subAssemblies" arrays of {"id", "quantity"}. A
+ * record with an "id" adds or replaces the record held under it, one without is added under
+ * a new id. Products may refer to parts and products added earlier in the same input.
+ * <p>
+ * Invalid records are rejected with their line number and the reason, the rest go on.
+ * Records identical to the record held in Inventory, as it stands once the records before
+ * them for their id were applied or rejected, are dropped as duplicates. The apply stage applies records in batches under the
+ * index lock, so each batch is one commit for snapshot readers, see Inventory.openSnapshot().
+ * <p>
+ * Each stage reports how many records it took in, the time it spent working on them, the
+ * time it spent blocked handing them on, and the depth of its input queue, see getStages().
+ * The busiest stage is the bottleneck, the stages before it are blocked and its queue full.
+ * @author Alex Hanson
+ */
+public class IngestPipeline {
+
+    /** Queue capacity between stages used by the default constructor. */
+    final public static int DEFAULT_CAPACITY = 1024;
+    /** Most records applied per index lock hold used by the default constructor. */
+    final public static int DEFAULT_BATCH = 256;
+
+    // Most rejections kept for getRejections(), the rest are only counted.
+    final private static int MAX_REJECTIONS = 1000;
+    // Marks the end of the input, passed through every queue.
+    final private static Record END = new Record(-1, null);
+
+    /**
+     * Throughput and queue depth of one stage, readable while the pipeline runs.
+     */
+    public static final class Stage {
+
+        final private String name;
+        // The stage's input, null for the read stage.
+        final private BlockingQueue<Record> input;
+        final private AtomicLong processed = new AtomicLong();
+        // Written by the stage's thread only.
+        private volatile long busyNanos;
+        private volatile long blockedNanos;
+        private volatile long startNanos;
+        private volatile long endNanos;
+
+        private Stage(String name, BlockingQueue<Record> input) {
+            this.name = name;
+            this.input = input;
+        }
+
+        /**
+         * @return The stage's name: read, parse, validate, dedupe or apply.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The records the stage has taken in, lines for the read stage.
+         */
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        /**
+         * @return Records taken in per second since the stage started.
+         */
+        public double getThroughput() {
+
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            long elapsed = end - startNanos;
+
+            return startNanos == 0 || elapsed <= 0 ? 0 : processed.get() * 1e9 / elapsed;
+        }
+
+        /**
+         * @return Nanoseconds spent working on records, not waiting on queues.
+         */
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        /**
+         * @return Nanoseconds spent waiting for room in the next stage's queue.
+         */
+        public long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        /**
+         * @return The records waiting for this stage, 0 for the read stage.
+         */
+        public int getQueueDepth() {
+            return input == null ? 0 : input.size();
+        }
+
+        /**
+         * @return The most records that can wait for this stage, 0 for the read stage.
+         */
+        public int getQueueCapacity() {
+            return input == null ? 0 : input.size() + input.remainingCapacity();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %,d records, %,.0f/s, busy %d ms, blocked %d ms, queue %d/%d",
+                                 name, getProcessed(), getThroughput(), busyNanos / 1_000_000,
+                                 blockedNanos / 1_000_000, getQueueDepth(), getQueueCapacity());
+        }
+    }
+
+    /**
+     * A record that was not applied, and why.
+     */
+    public static final class Rejection {
+
+        final private long line;
+        final private String reason;
+
+        private Rejection(long line, String reason) {
+            this.line = line;
+            this.reason = reason;
+        }
+
+        /**
+         * @return The line number of the record, from 1.
+         */
+        public long getLine() {
+            return line;
+        }
+
+        /**
+         * @return Why the record was rejected.
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + line + ": " + reason;
+        }
+    }
+
+    // A record moving through the stages, filled in by each.
+    private static final class Record {
+
+        final private long line;
+        // The line as read, dropped once parsed.
+        private String text;
+        private Map<String, Object> fields;
+        private boolean product;
+        // The id given, 0 for a new record.
+        private int id;
+        private InventoryValidator values;
+        private Part part;
+        private Map<Integer, Integer> parts;
+        private Map<Integer, Integer> subAssemblies;
+        // Set by dedupe when identical to a record not yet applied, which may still be
+        // rejected, so the apply stage compares it with the held record instead.
+        private boolean recheck;
+
+        Record(long line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+    final private int batch;
+    // The last record passed by dedupe for each id and not yet applied or rejected, products
+    // keyed by their negated id.
+    final private ConcurrentHashMap<Integer, Record> unapplied = new ConcurrentHashMap<>();
+    final private BlockingQueue<Record> parsing;
+    final private BlockingQueue<Record> validating;
+    final private BlockingQueue<Record> deduping;
+    final private BlockingQueue<Record> applying;
+    final private List<Stage> stages;
+
+    final private AtomicLong applied = new AtomicLong();
+    final private AtomicLong duplicates = new AtomicLong();
+    final private AtomicLong rejected = new AtomicLong();
+    final private List<Rejection> rejections = Collections.synchronizedList(new ArrayList<>());
+
+    private ExecutorService executor;
+    // The first failure of a stage, rethrown by await().
+    final private AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Constructor: Initializes a pipeline with the default queue capacity and batch size.
+     */
+    public IngestPipeline() {
+        this(DEFAULT_CAPACITY, DEFAULT_BATCH);
+    }
+
+    /**
+     * Constructor: Initializes a pipeline, call start() to feed it.
+     * @param capacity The most records waiting between two stages.
+     * @param batch The most records applied per hold of the index lock.
+     * @throws IllegalArgumentException Thrown if capacity or batch is less than 1.
+     */
+    public IngestPipeline(int capacity, int batch) throws IllegalArgumentException {
+
+        if(capacity < 1 || batch < 1)
+            throw new IllegalArgumentException("Capacity and batch must be at least 1");
+
+        this.batch = batch;
+        parsing = new ArrayBlockingQueue<>(capacity);
+        validating = new ArrayBlockingQueue<>(capacity);
+        deduping = new ArrayBlockingQueue<>(capacity);
+        applying = new ArrayBlockingQueue<>(capacity);
+        stages = List.of(new Stage("read", null), new Stage("parse", parsing), new Stage("validate", validating),
+                         new Stage("dedupe", deduping), new Stage("apply", applying));
+    }
+
+    /**
+     * Starts the stages on the input. A pipeline is started once.
+     * @param in The records, one JSON object per line. Closed once read.
+     * @throws IllegalStateException Thrown if the pipeline was already started.
+     */
+    public synchronized void start(Reader in) throws IllegalStateException {
+
+        if(executor != null)
+            throw new IllegalStateException("The pipeline was already started");
+
+        executor = Threads.newThreadPerTaskExecutor("inventory-ingest");
+        launch(() -> read(in));
+        launch(() -> stage(stages.get(1), parsing, validating, this::parse));
+        launch(() -> stage(stages.get(2), validating, deduping, this::validate));
+        launch(() -> stage(stages.get(3), deduping, applying, dedupe()));
+        launch(this::apply);
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for every record to be applied or rejected. If the calling thread is
+     * interrupted, the pipeline is stopped.
+     * @throws IOException Thrown if the input could not be read. Records read before are applied.
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting.
+     * @throws IllegalStateException Thrown if the pipeline was not started, or a stage failed.
+     */
+    public void await() throws IOException, InterruptedException, IllegalStateException {
+
+        ExecutorService stages;
+
+        synchronized(this) {
+            if(executor == null)
+                throw new IllegalStateException("The pipeline was not started");
+
+            stages = executor;
+        }
+
+        try {
+            while(!stages.awaitTermination(1, TimeUnit.MINUTES));
+        } catch(InterruptedException e) {
+            stages.shutdownNow();
+            throw e;
+        }
+
+        Throwable cause = failure.get();
+
+        if(cause instanceof IOException)
+            throw (IOException) cause;
+        if(cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if(cause instanceof Error)
+            throw (Error) cause;
+        if(cause != null)
+            throw new IllegalStateException(cause);
+    }
+
+    /**
+     * Reads records to the end, see start() and await().
+     * @param in The records, one JSON object per line. Closed once read.
+     * @throws IOException Thrown if the input could not be read.
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting.
+     */
+    public void run(Reader in) throws IOException, InterruptedException {
+
+        start(in);
+        await();
+    }
+
+    /**
+     * @return The stages in order, each with its throughput and queue depth.
+     */
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * @return The records added to or replaced in Inventory.
+     */
+    public long getApplied() {
+        return applied.get();
+    }
+
+    /**
+     * @return The records dropped as identical to one passed before or held.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return The records rejected.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The first rejections, up to a thousand, in the order they were made.
+     */
+    public List<Rejection> getRejections() {
+
+        synchronized(rejections) {
+            return new ArrayList<>(rejections);
+        }
+    }
+
+    /********* Stages *********/
+
+    // Work of a middle stage on one record, false if the record goes no further.
+    private interface Step {
+        boolean process(Record record);
+    }
+
+    // The loop of a stage, run on a thread of its own.
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    // Runs a stage, keeping its failure for await(). A failed read ends the input, the records
+    // read so far go on. Any other failure stops the pipeline, as the stages around it would
+    // otherwise wait on it forever.
+    private void launch(Task task) {
+
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch(Throwable e) {
+                failure.compareAndSet(null, e);
+
+                if(!(e instanceof IOException))
+                    executor.shutdownNow();
+            }
+        });
+    }
+
+    private void read(Reader in) throws IOException, InterruptedException {
+
+        Stage stage = stages.get(0);
+        stage.startNanos = System.nanoTime();
+
+        try(BufferedReader lines = new BufferedReader(in)) {
+            long number = 0;
+            long start = System.nanoTime();
+            String line;
+
+            while((line = lines.readLine()) != null) {
+                number++;
+                stage.processed.incrementAndGet();
+
+                if(line.isBlank())
+                    continue;
+
+                Record record = new Record(number, line);
+                long now = System.nanoTime();
+                stage.busyNanos += now - start;
+                parsing.put(record);
+                start = System.nanoTime();
+                stage.blockedNanos += start - now;
+            }
+        } finally {
+            stage.endNanos = System.nanoTime();
+            parsing.put(END);
+        }
+    }
+
+    // Takes records from input until the end, passing those the step keeps on to output.
+    private void stage(Stage stage, BlockingQueue<Record> input, BlockingQueue<Record> output, Step step)
+            throws InterruptedException {
+
+        stage.startNanos = System.nanoTime();
+
+        try {
+            while(true) {
+                Record record = input.take();
+
+                if(record == END)
+                    return;
+
+                long start = System.nanoTime();
+                stage.processed.incrementAndGet();
+                boolean keep = step.process(record);
+                long now = System.nanoTime();
+                stage.busyNanos += now - start;
+
+                if(keep) {
+                    output.put(record);
+                    stage.blockedNanos += System.nanoTime() - now;
+                }
+            }
+        } finally {
+            stage.endNanos = System.nanoTime();
+            output.put(END);
+        }
+    }
+
+    private boolean parse(Record record) {
+
+        Object value;
+
+        try {
+            value = Json.parse(record.text);
+        } catch(IllegalArgumentException e) {
+            return reject(record, e.getMessage());
+        }
+
+        if(!(value instanceof Map))
+            return reject(record, "Expected a JSON object");
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> fields = (Map<String, Object>) value;
+        Object kind = fields.get("kind");
+
+        if(ChangeFeed.PRODUCT.equals(kind))
+            record.product = true;
+        else if(!ChangeFeed.PART.equals(kind))
+            return reject(record, "kind must be \"part\" or \"product\"");
+
+        if(fields.get("id") != null) {
+            record.id = fields.get("id") instanceof String ? InventoryValidator.parseCount((String) fields.get("id")) : -1;
+
+            if(record.id < 1)
+                return reject(record, "id must be a positive integer");
+        }
+
+        record.fields = fields;
+        record.text = null;
+        return true;
+    }
+
+    private boolean validate(Record record) {
+
+        Map<String, String> scalars = new HashMap<>();
+
+        for(Map.Entry<String, Object> field : record.fields.entrySet())
+            if(!(field.getValue() instanceof List) && !(field.getValue() instanceof Map))
+                scalars.put(field.getKey(), (String) field.getValue());
+
+        try {
+            if(!record.product) {
+                record.part = InventoryServer.newPart(record.id, scalars);
+                return true;
+            }
+
+            record.values = InventoryServer.validate(scalars);
+            record.parts = quantities(record.fields.get("parts"), "parts");
+            record.subAssemblies = quantities(record.fields.get("subAssemblies"), "subAssemblies");
+
+            if(record.subAssemblies.containsKey(record.id))
+                throw new IllegalArgumentException("A product cannot be its own sub-assembly");
+        } catch(IllegalArgumentException e) {
+            return reject(record, e.getMessage());
+        }
+
+        return true;
+    }
+
+    // Drops records identical to the record held in Inventory when no record for their id
+    // is on its way to the apply stage. A record identical to one still on its way is passed
+    // on marked for the apply stage to compare with the held record, as the one before may
+    // be rejected, in which case dropping the record would lose it.
+    private Step dedupe() {
+
+        return record -> {
+            if(record.id == 0)
+                return true;
+
+            int key = key(record);
+            Record last = unapplied.put(key, record);
+
+            if(last != null) {
+                record.recheck = same(record, last);
+                return true;
+            }
+
+            if(!sameAsHeld(record))
+                return true;
+
+            unapplied.remove(key, record);
+            duplicates.incrementAndGet();
+            return false;
+        };
+    }
+
+    // Applies records in batches, one hold of the index lock and so one commit per batch.
+    private void apply() throws InterruptedException {
+
+        Stage stage = stages.get(4);
+        List<Record> records = new ArrayList<>(batch);
+        stage.startNanos = System.nanoTime();
+
+        try {
+            while(true) {
+                records.clear();
+                records.add(applying.take());
+                applying.drainTo(records, batch - 1);
+
+                long start = System.nanoTime();
+                boolean end = false;
+
+                Inventory.lockIndexes();
+
+                try {
+                    for(Record record : records) {
+                        if(record == END) {
+                            end = true;
+                            break;
+                        }
+
+                        stage.processed.incrementAndGet();
+                        apply(record);
+                    }
+                } finally {
+                    Inventory.unlockIndexes();
+                    stage.busyNanos += System.nanoTime() - start;
+                }
+
+                if(end)
+                    return;
+            }
+        } finally {
+            stage.endNanos = System.nanoTime();
+        }
+    }
+
+    private void apply(Record record) {
+
+        try {
+            // The records before were applied or rejected, the held record reflects them.
+            if(record.recheck && sameAsHeld(record)) {
+                duplicates.incrementAndGet();
+                return;
+            }
+
+            if(!record.product) {
+                if(record.id == 0)
+                    record.part.setId(Inventory.nextPartId());
+
+                ChangeFeedClient.putPart(record.part);
+            } else {
+                for(int partId : record.parts.keySet())
+                    if(Inventory.lookupPart(partId) == null)
+                        throw new IllegalArgumentException("No part with id " + partId);
+
+                for(int subId : record.subAssemblies.keySet())
+                    if(Inventory.lookupProduct(subId) == null)
+                        throw new IllegalArgumentException("No product with id " + subId);
+
+                InventoryValidator v = record.values;
+                ChangeFeedClient.putProduct(record.id == 0 ? Inventory.nextProductId() : record.id,
+                                            (String) record.fields.get("name"), v.getPrice(), v.getStock(),
+                                            v.getMin(), v.getMax(), record.parts, record.subAssemblies);
+            }
+
+            applied.incrementAndGet();
+        } catch(IllegalArgumentException | IllegalStateException e) {
+            reject(record, e.getMessage());
+        } finally {
+            if(record.id != 0)
+                unapplied.remove(key(record), record);
+        }
+    }
+
+    /********* Helpers *********/
+
+    private boolean reject(Record record, String reason) {
+
+        rejected.incrementAndGet();
+
+        synchronized(rejections) {
+            if(rejections.size() < MAX_REJECTIONS)
+                rejections.add(new Rejection(record.line, reason));
+        }
+
+        return false;
+    }
+
+    // Reads an array of {"id", "quantity"} objects into a map, absent arrays are empty.
+    private static Map<Integer, Integer> quantities(Object array, String name) {
+
+        Map<Integer, Integer> quantities = new LinkedHashMap<>();
+
+        if(array == null)
+            return quantities;
+        if(!(array instanceof List))
+            throw new IllegalArgumentException(name + " must be an array");
+
+        for(Object element : (List<?>) array) {
+            Object id = element instanceof Map ? ((Map<?, ?>) element).get("id") : null;
+            Object quantity = element instanceof Map ? ((Map<?, ?>) element).get("quantity") : null;
+            int partId = id instanceof String ? InventoryValidator.parseCount((String) id) : -1;
+            int units = quantity instanceof String ? InventoryValidator.parseCount((String) quantity) : -1;
+
+            if(partId < 1 || units < 1)
+                throw new IllegalArgumentException(name + " must hold {\"id\", \"quantity\"} objects of positive integers");
+
+            quantities.put(partId, units);
+        }
+
+        return quantities;
+    }
+
+    private static boolean same(Record record, Record last) {
+
+        if(!record.product)
+            return samePart(record.part, last.part);
+
+        return record.fields.get("name").equals(last.fields.get("name"))
+               && record.values.getPrice() == last.values.getPrice()
+               && record.values.getStock() == last.values.getStock()
+               && record.values.getMin() == last.values.getMin()
+               && record.values.getMax() == last.values.getMax()
+               && record.parts.equals(last.parts)
+               && record.subAssemblies.equals(last.subAssemblies);
+    }
+
+    // Products are keyed by their negated id.
+    private static int key(Record record) {
+        return record.product ? -record.id : record.id;
+    }
+
+    private static boolean sameAsHeld(Record record) {
+        return record.product ? sameAsHeld(record, Inventory.lookupProduct(record.id))
+                              : sameAsHeld(record.part, Inventory.lookupPart(record.id));
+    }
+
+    private static boolean sameAsHeld(Part part, Part held) {
+        return held != null && samePart(part, held);
+    }
+
+    private static boolean samePart(Part a, Part b) {
+
+        if(!a.getName().equals(b.getName()) || a.getPrice() != b.getPrice() || a.getStock() != b.getStock()
+           || a.getMin() != b.getMin() || a.getMax() != b.getMax())
+            return false;
+
+        if(a instanceof InHouse)
+            return b instanceof InHouse && ((InHouse) a).getMachineId() == ((InHouse) b).getMachineId();
+
+        return b instanceof Outsourced && ((Outsourced) a).getCompanyName().equals(((Outsourced) b).getCompanyName());
+    }
+
+    // Compares a product record with the held product, reading its associations with the lock
+    // of its partition held.
+    private static boolean sameAsHeld(Record record, Product held) {
+
+        if(held == null)
+            return false;
+
+        Inventory.lockPartition(held.getId());
+
+        try {
+            if(!record.fields.get("name").equals(held.getName()) || record.values.getPrice() != held.getPrice()
+               || record.values.getStock() != held.getStock() || record.values.getMin() != held.getMin()
+               || record.values.getMax() != held.getMax()
+               || record.parts.size() != held.getAssociatedPartIds().size()
+               || record.subAssemblies.size() != held.getSubAssemblyIds().size())
+                return false;
+
+            for(Map.Entry<Integer, Integer> entry : record.parts.entrySet())
+                if(held.getAssociatedQuantity(entry.getKey()) != entry.getValue())
+                    return false;
+
+            for(Map.Entry<Integer, Integer> entry : record.subAssemblies.entrySet())
+                if(held.getSubAssemblyQuantity(entry.getKey()) != entry.getValue())
+                    return false;
+
+            return true;
+        } finally {
+            Inventory.unlockPartition(held.getId());
+        }
+    }
+}
@@ -2,116 +2,417 @@
 package com.alexhanson.main;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import javafx.beans.Observable;
+import javafx.beans.property.ReadOnlyDoubleProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
 /**
  * Acts as in memory database for parts and products.
+ * Stock may be changed from any thread: each record's stock is changed lock free through its
+ * version stamp, see StockStamp. The indexes derived from stock are brought up to date by
+ * whichever thread finds them unlocked, so a writer never waits for another writer's index
+ * maintenance. All other changes are expected from the application thread. Reports needing a
+ * consistent view while changes continue read a snapshot, see openSnapshot().
+ * <p>
+ * Records are partitioned by id, each partition holding its records and their indexes under
+ * a lock of its own, so the range and low stock indexes of records in different partitions
+ * are refiled in parallel after stock changes. Set -Dinventory.partitions to the number of
+ * partitions, 1 by default. Lookups by id go to the record's partition, searches read every
+ * partition in parallel and merge what they find. Adding, replacing and deleting a record
+ * locks its partition only, so writes to different partitions proceed in parallel. Changes
+ * reaching products in other partitions, such as a new part price, are queued for those
+ * partitions as stock changes are. Only batches meant to commit together, such as
+ * production runs, and adding sub-assemblies, whose cycle check reads other partitions,
+ * lock every partition, see lockIndexes().
+ * <p>
+ * Each partition publishes its own changes: the change feed, the version store's commits
+ * and the valuation index take no monitor shared by all writers. The lists of all Parts and
+ * Products shown in views are kept in line with the partitions' records by view updates,
+ * see getPartsView().
  * @author Alex Hanson
  */
 
 public class Inventory {
     
-    // Create initially empty lists for both parts and products.
-    final private static ObservableList<Part> allParts = FXCollections.observableArrayList();
-    final private static ObservableList<Product> allProducts = FXCollections.observableArrayList();
+    // Rows of all parts and products for display, merged from every partition by view
+    // updates, see showPart(). A record changed in place, such as its stock, is reported to
+    // the lists' listeners as an update of the row once shown, see Part.versionProperty(), so
+    // sorted and filtered views refile and re-test it.
+    final private static RowList<Part> allParts = new RowList<>(part -> new Observable[] {part.versionProperty()});
+    final private static RowList<Product> allProducts = new RowList<>(product -> new Observable[] {product.versionProperty()});
+    
+    // The partitions of the records, the record with id i is held in partition i mod n.
+    final private static Partition[] partitions = newPartitions(Integer.getInteger("inventory.partitions", 1));
+    
+    // Reverse index of product associations: ids of the products using a part, keyed by part id.
+    // Concurrent, as products in different partitions change it at once and the views and the
+    // server read it without locks, see link().
+    final private static ConcurrentHashMap<Integer, Set<Integer>> whereUsed = new ConcurrentHashMap<>();
+    
+    // Reverse index of sub-assemblies: ids of the products containing a product, keyed by its id.
+    final private static ConcurrentHashMap<Integer, Set<Integer>> assemblyUsers = new ConcurrentHashMap<>();
+    
+    // Running value on hand of parts by machine and company, for all partitions.
+    final private static ValuationIndex valuation = new ValuationIndex();
+    
+    // Committed versions of parts and products for snapshot readers, see Snapshot.
+    final private static VersionStore versions = new VersionStore(partitions.length);
+    
+    // Numbered log of changes for subscribers keeping a copy of Inventory, see ChangeFeed.
+    final private static ChangeFeed changes = new ChangeFeed(Integer.getInteger("inventory.feedRetention", 10_000));
+    
+    // Carries updates of the observable state shown by views, null to apply them at once.
+    private static volatile UpdateDispatcher viewUpdates;
+    
+    // Held while applying a view update at once, so updates from different partitions are
+    // applied one at a time, as they are on the application thread.
+    final private static Object viewLock = new Object();
+    
+    // Chains of versions trimmed per lock hold after a snapshot closes.
+    final private static int SWEEP_SLICE = 1024;
+    
+    // Highest ids in use or given out, see nextPartId() and nextProductId().
+    final private static AtomicInteger lastPartId = new AtomicInteger();
+    final private static AtomicInteger lastProductId = new AtomicInteger();
     
     /**
      * @param newPart The new part to add.
      */
     public static void addPart(Part newPart) {
-        allParts.add(newPart);
+        
+        Partition p = partitionOf(newPart.getId());
+        
+        p.lock();
+        
+        try {
+            p.parts.put(newPart.getId(), newPart);
+            lastPartId.accumulateAndGet(newPart.getId(), Math::max);
+            p.lowStock.put(newPart);
+            p.partRanges.insert(newPart);
+            valuation.put(newPart);
+            published(newPart);
+            showPart(newPart.getId());
+        } finally {
+            p.unlock();
+        }
     }
     
     /**
      * @param newProduct The new product to add.
      */
     public static void addProduct(Product newProduct) {
-        allProducts.add(newProduct);
+        
+        Partition p = partitionOf(newProduct.getId());
+        
+        p.lock();
+        
+        try {
+            register(newProduct);
+            published(newProduct);
+            showProduct(newProduct.getId());
+            
+            // Products may list the id as a sub-assembly before it is held, see Product.explode().
+            assemblyChanged(newProduct.getId());
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /**
+     * Provides an id for a new Part. Ids are never reused, even after a delete, and an id
+     * given out is not given out again, so threads adding Parts at once get different ids.
+     * @return An id not used by any Part added to Inventory.
+     */
+    public static int nextPartId() {
+        return lastPartId.incrementAndGet();
+    }
+    
+    /**
+     * Provides an id for a new Product. See nextPartId().
+     * @return An id not used by any Product added to Inventory.
+     */
+    public static int nextProductId() {
+        return lastProductId.incrementAndGet();
     }
     
     /**
      * Returns a reference to the Part held in inventory with given id.
      * @param partId The id of the Part to look for.
-     * @return A reference to the first Part with given id or null.
+     * @return A reference to the Part with given id or null.
      */
     public static Part lookupPart(int partId) {
-           
-        for(Part p : allParts) {
-            if(p.getId() == partId)
-                return p;
-        }
-        
-        return null;
+        return partitionOf(partId).parts.get(partId);
     }
     
     /**
      * Returns a reference to the Product held in inventory with given id.
      * @param productId The id of the product to look for.
-     * @return A reference to the first Product with given id or null.
+     * @return A reference to the Product with given id or null.
      */
     public static Product lookupProduct(int productId) {
-       
-        for(Product p : allProducts) {
-            if(p.getId() == productId)
-                return p;
+        return partitionOf(productId).products.get(productId);
+    }
+    
+    /**
+     * Returns the Products in Inventory that have a part associated with them.
+     * Answered from a reverse index in time proportional to the number of products found.
+     * @param partId The id of the Part.
+     * @return A list of all Products using the part.
+     */
+    public static ObservableList<Product> lookupProductsUsing(int partId) {
+        
+        ObservableList<Product> tmp = FXCollections.observableArrayList();
+        
+        for(int productId : whereUsed.getOrDefault(partId, Collections.emptySet())) {
+            Product product = lookupProduct(productId);
+            
+            // A product deleted meanwhile is left out.
+            if(product != null)
+                tmp.add(product);
+        }
+        
+        return tmp;
+    }
+    
+    /**
+     * Returns the Products in Inventory that use a product as a sub-assembly.
+     * @param productId The id of the sub-assembly Product.
+     * @return A list of all Products containing the product.
+     */
+    public static ObservableList<Product> lookupProductsContaining(int productId) {
+        
+        ObservableList<Product> tmp = FXCollections.observableArrayList();
+        
+        for(int parentId : lookupAssemblyUsers(productId)) {
+            Product parent = lookupProduct(parentId);
+            
+            if(parent != null)
+                tmp.add(parent);
         }
         
-        return null;
+        return tmp;
+    }
+    
+    /**
+     * @param partId The id of a Part.
+     * @return True if any Product in Inventory has the part associated with it, false otherwise.
+     */
+    public static boolean isPartInUse(int partId) {
+        return whereUsed.containsKey(partId);
     }
     
     /**
      * Returns a list of all Parts with a given name
      * @param partName The name to search for.
-     * @return A list of all Parts with given name.
+     * @return A list of all Parts with given name, by ascending id.
      */
     public static ObservableList<Part> lookupPart(String partName) {
         
-        ObservableList<Part> tmp = FXCollections.observableArrayList();
-        
-        for(Part p : allParts) {
-            if(p.getName().equalsIgnoreCase(partName)) {
-                tmp.add(p);
+        List<Part> found = scan(partition -> {
+            List<Part> tmp = new ArrayList<>();
+            
+            for(Part p : partition.parts.values()) {
+                if(p.getName().equalsIgnoreCase(partName)) {
+                    tmp.add(p);
+                }
             }
-        }
+            
+            return tmp;
+        });
         
-        return tmp;
+        found.sort(Comparator.comparingInt(Part::getId));
+        
+        return FXCollections.observableArrayList(found);
     }
     
     /**
      * Returns a list of all Products with a given name.
      * @param productName The name to search for.
-     * @return A list of all Products with given name.
+     * @return A list of all Products with given name, by ascending id.
      */
     public static ObservableList<Product> lookupProduct(String productName) {
         
-        ObservableList<Product> tmp = FXCollections.observableArrayList();
-        
-        for(Product p : allProducts) {
-            if(p.getName().equalsIgnoreCase(productName)) {
-                tmp.add(p);
+        List<Product> found = scan(partition -> {
+            List<Product> tmp = new ArrayList<>();
+            
+            for(Product p : partition.products.values()) {
+                if(p.getName().equalsIgnoreCase(productName)) {
+                    tmp.add(p);
+                }
             }
-        }
+            
+            return tmp;
+        });
         
-        return tmp;
+        found.sort(Comparator.comparingInt(Product::getId));
+        
+        return FXCollections.observableArrayList(found);
+    }
+    
+    /**
+     * Returns the Parts matching a range query such as "stock &lt; 10 AND price &gt; 50".
+     * Answered from ordered indexes of price, stock, min and max without visiting every part,
+     * see RangeIndex, each partition's indexes read in parallel.
+     * @param query The ranges to match, see RangeQuery.parse().
+     * @return A list of the matching Parts.
+     */
+    public static ObservableList<Part> lookupPart(RangeQuery query) {
+        return FXCollections.observableArrayList(scan(partition -> partition.partRanges.query(query)));
+    }
+    
+    /**
+     * Returns the Products matching a range query. See lookupPart(RangeQuery).
+     * @param query The ranges to match, see RangeQuery.parse().
+     * @return A list of the matching Products.
+     */
+    public static ObservableList<Product> lookupProduct(RangeQuery query) {
+        return FXCollections.observableArrayList(scan(partition -> partition.productRanges.query(query)));
     }
     
     /**
      * Updates the Part reference in Inventory at given index with new Part.
-     * @param index The index of the Part in Inventory to update.
+     * The new Part becomes the canonical record for its id, products resolve it by id and
+     * those using it have their buildable units and cost of materials updated.
+     * The replaced Part is retired, a stock change made to it concurrently is lost,
+     * see updatePart(Part, long) for a replacement that cannot lose changes. Nothing is
+     * changed if the Part was deleted meanwhile.
+     * @param index The index of the Part in getPartsView() to update.
      * @param selectedPart A new Part with desired updates.
      */
     public static void updatePart(int index, Part selectedPart) {
-        allParts.set(index, selectedPart);
+        
+        int oldId = allParts.getView().get(index).getId();
+        
+        lockReplacement(oldId, selectedPart.getId());
+        
+        try {
+            Part old = lookupPart(oldId);
+            
+            if(old != null)
+                replacePart(old, selectedPart);
+        } finally {
+            unlockReplacement(oldId, selectedPart.getId());
+        }
+    }
+    
+    /**
+     * Replaces the Part held in Inventory with the same id as given Part, only if it has not
+     * changed since expectedVersion was read from it. Unlike updatePart(int, Part), the Part
+     * is found by id so a concurrent delete cannot make this update another row, and a
+     * concurrent stock change makes it fail instead of being overwritten.
+     * @param selectedPart A new Part with desired updates.
+     * @param expectedVersion The version of the held Part the updates were based on.
+     * @return True if the Part was replaced, false if it changed or is no longer held.
+     */
+    public static boolean updatePart(Part selectedPart, long expectedVersion) {
+        
+        Partition p = partitionOf(selectedPart.getId());
+        
+        p.lock();
+        
+        try {
+            Part old = p.parts.get(selectedPart.getId());
+            
+            if(old == null || old == selectedPart || !old.retire(expectedVersion))
+                return false;
+            
+            replacePart(old, selectedPart);
+            return true;
+        } finally {
+            p.unlock();
+        }
     }
     
     /**
      * Updates the Product reference in Inventory at given index with new Product.
-     * @param index The index of the Product in Inventory to update.
+     * Nothing is changed if the Product was deleted meanwhile.
+     * @param index The index of the Product in getProductsView() to update.
      * @param selectedProduct A new Product with desired updates.
      */
     public static void updateProduct(int index, Product selectedProduct) {
-        allProducts.set(index, selectedProduct);
+        
+        int oldId = allProducts.getView().get(index).getId();
+        
+        lockReplacement(oldId, selectedProduct.getId());
+        
+        try {
+            Product old = lookupProduct(oldId);
+            
+            if(old != null)
+                replaceProduct(old, selectedProduct);
+        } finally {
+            unlockReplacement(oldId, selectedProduct.getId());
+        }
+    }
+    
+    /**
+     * Replaces the Product held in Inventory with the same id as given Product, or reports
+     * the edits made to it when given the held Product itself. Unlike
+     * updateProduct(int, Product), the Product is found by id under its partition's lock, so
+     * a concurrent add or delete cannot make this update another row.
+     * @param selectedProduct A new Product with desired updates, or the held Product edited.
+     * @return True if a Product with the id is held and was updated, false otherwise.
+     */
+    public static boolean updateProduct(Product selectedProduct) {
+        
+        Partition p = partitionOf(selectedProduct.getId());
+        
+        p.lock();
+        
+        try {
+            Product old = p.products.get(selectedProduct.getId());
+            
+            if(old == null)
+                return false;
+            
+            replaceProduct(old, selectedProduct);
+            return true;
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /**
+     * Replaces the Product held in Inventory with the same id as given Product, only if it
+     * has not changed since expectedVersion was read from it. See updatePart(Part, long).
+     * @param selectedProduct A new Product with desired updates.
+     * @param expectedVersion The version of the held Product the updates were based on.
+     * @return True if the Product was replaced, false if it changed or is no longer held.
+     */
+    public static boolean updateProduct(Product selectedProduct, long expectedVersion) {
+        
+        Partition p = partitionOf(selectedProduct.getId());
+        
+        p.lock();
+        
+        try {
+            Product old = p.products.get(selectedProduct.getId());
+            
+            if(old == null || old == selectedProduct || !old.retire(expectedVersion))
+                return false;
+            
+            replaceProduct(old, selectedProduct);
+            return true;
+        } finally {
+            p.unlock();
+        }
     }
     
     /**
@@ -121,19 +422,28 @@ public class Inventory {
      */
     public static boolean deletePart(Part selectedPart) {
         
-        Part tmp;
+        Partition p = partitionOf(selectedPart.getId());
         
-        for(int index = 0; index < allParts.size(); index++) {
+        p.lock();
+        
+        try {
+            // Found by id under the lock, so a concurrent change cannot move its row.
+            Part tmp = p.parts.get(selectedPart.getId());
             
-            tmp = (Part) allParts.get(index);
+            if(tmp == null)
+                return false;
             
-            if(tmp.getId() == selectedPart.getId()) {
-                allParts.remove(index);
-                return true;
-            }
+            tmp.retire(-1);
+            p.parts.remove(tmp.getId(), tmp);
+            p.lowStock.remove(tmp);
+            p.partRanges.remove(tmp);
+            valuation.remove(tmp);
+            deleted(ChangeFeed.PART_DELETED, tmp.getId());
+            showPart(tmp.getId());
+            return true;
+        } finally {
+            p.unlock();
         }
-        
-        return false;
     }
     
     /**
@@ -143,33 +453,1538 @@ public class Inventory {
      */
     public static boolean deleteProduct(Product selectedProduct) {
         
-        Product tmp;
+        Partition p = partitionOf(selectedProduct.getId());
+        
+        p.lock();
         
-        for(int index = 0; index < allProducts.size(); index++) {
+        try {
+            // Found by id under the lock, see deletePart().
+            Product tmp = p.products.get(selectedProduct.getId());
             
-            tmp = (Product) allProducts.get(index);
+            if(tmp == null)
+                return false;
             
-            if(tmp.getId() == selectedProduct.getId()) {
-                allProducts.remove(index);
-                return true;
-            }
+            tmp.retire(-1);
+            unregister(tmp);
+            deleted(ChangeFeed.PRODUCT_DELETED, tmp.getId());
+            showProduct(tmp.getId());
+            return true;
+        } finally {
+            p.unlock();
         }
-        
-        return false;
     }
     
     /**
-     * @return Copy of ObersvableList of Parts in Inventory.
+     * @return Copy of ObersvableList of Parts in Inventory, by ascending id.
      */
     public static ObservableList<Part> getAllParts() {
-        return FXCollections.observableList(new ArrayList<>(allParts));
+        
+        ArrayList<Part> tmp = new ArrayList<>();
+        
+        // The partitions' maps are concurrent, they are copied without their locks.
+        for(Partition p : partitions)
+            tmp.addAll(p.parts.values());
+        
+        tmp.sort(Comparator.comparingInt(Part::getId));
+        
+        return FXCollections.observableList(tmp);
     }
     
     /**
-     * @return ObersvableList of all Products in Inventory.
+     * @return Copy of ObersvableList of Products in Inventory, by ascending id.
      */
     public static ObservableList<Product> getAllProducts() {
-        return FXCollections.observableList(new ArrayList<>(allProducts));
+        
+        ArrayList<Product> tmp = new ArrayList<>();
+        
+        for(Partition p : partitions)
+            tmp.addAll(p.products.values());
+        
+        tmp.sort(Comparator.comparingInt(Product::getId));
+        
+        return FXCollections.observableList(tmp);
+    }
+    
+    /**
+     * Provides a live, read-only view of the Parts in Inventory. Unlike getAllParts() the
+     * view is not a copy: additions, updates and deletions are reported to its listeners
+     * as they happen, so bound tables only process the rows that changed. The view merges
+     * the Parts of every partition and is brought up to date with the other view updates,
+     * see setViewUpdates(): Parts are listed in the order they were added, a replacement
+     * takes the row of the Part it replaced unless its id differs.
+     * @return Unmodifiable live view of all Parts in Inventory.
+     */
+    public static ObservableList<Part> getPartsView() {
+        return allParts.getView();
+    }
+    
+    /**
+     * Provides a live, read-only view of the Products in Inventory. See getPartsView().
+     * @return Unmodifiable live view of all Products in Inventory.
+     */
+    public static ObservableList<Product> getProductsView() {
+        return allProducts.getView();
+    }
+    
+    /**
+     * Copies every Part as it stands, each partition's with its lock held only while it is
+     * read, so that they can be written out with no lock held.
+     * @return Rows of all Parts, by ascending id.
+     */
+    static List<Snapshot.PartRow> copyParts() {
+        
+        List<Snapshot.PartRow> rows = scan(partition -> {
+            List<Snapshot.PartRow> tmp = new ArrayList<>();
+            
+            for(Part part : partition.parts.values())
+                tmp.add(new Snapshot.PartRow(part));
+            
+            return tmp;
+        });
+        
+        rows.sort(Comparator.comparingInt(Snapshot.PartRow::getId));
+        
+        return rows;
+    }
+    
+    /**
+     * Copies the Parts held with the ids of given Parts, as found by a search, each with its
+     * partition locked. See copyParts().
+     * @param parts The Parts to copy.
+     * @return Rows of the Parts still held, in the given order.
+     */
+    static List<Snapshot.PartRow> copyParts(List<Part> parts) {
+        
+        List<Snapshot.PartRow> rows = new ArrayList<>();
+        
+        for(Part part : parts) {
+            Partition p = partitionOf(part.getId());
+            
+            p.lock();
+            
+            try {
+                // A part replaced since it was found is copied as replaced, a deleted one is left out.
+                Part held = p.parts.get(part.getId());
+                
+                if(held != null)
+                    rows.add(new Snapshot.PartRow(held));
+            } finally {
+                p.unlock();
+            }
+        }
+        
+        return rows;
+    }
+    
+    /**
+     * Copies every Product as it stands, with its parts and sub-assemblies. See copyParts().
+     * @return Rows of all Products, by ascending id.
+     */
+    static List<Snapshot.ProductRow> copyProducts() {
+        
+        List<Snapshot.ProductRow> rows = scan(partition -> {
+            List<Snapshot.ProductRow> tmp = new ArrayList<>();
+            
+            for(Product product : partition.products.values())
+                tmp.add(new Snapshot.ProductRow(product));
+            
+            return tmp;
+        });
+        
+        rows.sort(Comparator.comparingInt(Snapshot.ProductRow::getId));
+        
+        return rows;
+    }
+    
+    /**
+     * Copies the Products held with the ids of given Products. See copyParts(List).
+     * @param products The Products to copy.
+     * @return Rows of the Products still held, in the given order.
+     */
+    static List<Snapshot.ProductRow> copyProducts(List<Product> products) {
+        
+        List<Snapshot.ProductRow> rows = new ArrayList<>();
+        
+        for(Product product : products) {
+            Product held = lookupProduct(product.getId());
+            
+            if(held != null)
+                rows.add(copyProduct(held));
+        }
+        
+        return rows;
+    }
+    
+    /**
+     * Copies a Product with the lock of its partition held, under which its parts and
+     * sub-assemblies are changed.
+     * @param product The Product to copy, held in Inventory or not.
+     * @return A row of the Product as it stands.
+     */
+    static Snapshot.ProductRow copyProduct(Product product) {
+        
+        Partition p = partitionOf(product.getId());
+        
+        p.lock();
+        
+        try {
+            return new Snapshot.ProductRow(product);
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /******** Stock changes ********/
+    
+    /**
+     * Atomically adds to or takes from the stock of a Part. Safe to call from any thread,
+     * concurrent adjustments all apply. If the Part is replaced meanwhile, the adjustment
+     * applies to its replacement.
+     * @param partId The id of the Part.
+     * @param delta The change in stock, negative to take stock out.
+     * @return The stock after the change.
+     * @throws IllegalArgumentException Thrown if no Part has this id, or if the change
+     * would take stock below zero.
+     */
+    public static int adjustPartStock(int partId, int delta) throws IllegalArgumentException {
+        
+        int old = applyPartDelta(partId, delta);
+        
+        if(old == StockStamp.INSUFFICIENT)
+            throw new IllegalArgumentException("Stock of part " + partId + " cannot go below 0");
+        
+        return old + delta;
+    }
+    
+    /**
+     * Takes units of a Part out of stock if enough are on hand. See adjustPartStock().
+     * @param partId The id of the Part.
+     * @param quantity The units to take.
+     * @return True if the units were taken, false if fewer were on hand.
+     * @throws IllegalArgumentException Thrown if no Part has this id, or quantity is less than 1.
+     */
+    public static boolean reservePartStock(int partId, int quantity) throws IllegalArgumentException {
+        
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        
+        return applyPartDelta(partId, -quantity) != StockStamp.INSUFFICIENT;
+    }
+    
+    /**
+     * Returns units taken by reservePartStock() to stock. See adjustPartStock().
+     * @param partId The id of the Part.
+     * @param quantity The units to return.
+     * @throws IllegalArgumentException Thrown if no Part has this id, or quantity is less than 1.
+     */
+    public static void releasePartStock(int partId, int quantity) throws IllegalArgumentException {
+        
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        
+        applyPartDelta(partId, quantity);
+    }
+    
+    /**
+     * Atomically adds to or takes from the stock of a Product. See adjustPartStock().
+     * @param productId The id of the Product.
+     * @param delta The change in stock, negative to take stock out.
+     * @return The stock after the change.
+     * @throws IllegalArgumentException Thrown if no Product has this id, or if the change
+     * would take stock below zero.
+     */
+    public static int adjustProductStock(int productId, int delta) throws IllegalArgumentException {
+        
+        int old = applyProductDelta(productId, delta);
+        
+        if(old == StockStamp.INSUFFICIENT)
+            throw new IllegalArgumentException("Stock of product " + productId + " cannot go below 0");
+        
+        return old + delta;
+    }
+    
+    /**
+     * Takes units of a Product out of stock if enough are on hand. See adjustPartStock().
+     * @param productId The id of the Product.
+     * @param quantity The units to take.
+     * @return True if the units were taken, false if fewer were on hand.
+     * @throws IllegalArgumentException Thrown if no Product has this id, or quantity is less than 1.
+     */
+    public static boolean reserveProductStock(int productId, int quantity) throws IllegalArgumentException {
+        
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        
+        return applyProductDelta(productId, -quantity) != StockStamp.INSUFFICIENT;
+    }
+    
+    /**
+     * Returns units taken by reserveProductStock() to stock. See adjustPartStock().
+     * @param productId The id of the Product.
+     * @param quantity The units to return.
+     * @throws IllegalArgumentException Thrown if no Product has this id, or quantity is less than 1.
+     */
+    public static void releaseProductStock(int productId, int quantity) throws IllegalArgumentException {
+        
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        
+        applyProductDelta(productId, quantity);
+    }
+    
+    // Applies a stock change to the Part held for partId, following it through replacements.
+    private static int applyPartDelta(int partId, int delta) {
+        
+        while(true) {
+            Part part = lookupPart(partId);
+            
+            if(part == null)
+                throw new IllegalArgumentException("No part with id " + partId);
+            
+            int old = part.tryAdjustStock(delta);
+            
+            if(old != StockStamp.RETIRED)
+                return old;
+            
+            // Retired parts are swapped out under their partition's lock, shortly.
+            Thread.onSpinWait();
+        }
+    }
+    
+    // Applies a stock change to the Product held for productId, following it through replacements.
+    private static int applyProductDelta(int productId, int delta) {
+        
+        while(true) {
+            Product product = lookupProduct(productId);
+            
+            if(product == null)
+                throw new IllegalArgumentException("No product with id " + productId);
+            
+            int old = product.tryAdjustStock(delta);
+            
+            if(old != StockStamp.RETIRED)
+                return old;
+            
+            Thread.onSpinWait();
+        }
+    }
+    
+    /******** Reorder tracking ********/
+    
+    /**
+     * Provides a live, read-only list of the Parts needing reorder, those whose stock is at or
+     * below min plus the reorder margin. The list is maintained as stock changes, not rebuilt.
+     * @return Unmodifiable live list of Parts needing reorder.
+     */
+    public static ObservableList<Part> getReorderView() {
+        return partitions[0].lowStock.getReorderView();
+    }
+    
+    /**
+     * @param margin Parts whose stock is at most min plus margin need reorder.
+     */
+    public static void setReorderMargin(int margin) {
+        
+        lockIndexes();
+        
+        try {
+            for(Partition p : partitions)
+                p.lowStock.setReorderMargin(margin);
+        } finally {
+            unlockIndexes();
+        }
+    }
+    
+    /**
+     * @return Parts whose stock is at most min plus this value need reorder.
+     */
+    public static int getReorderMargin() {
+        return partitions[0].lowStock.getReorderMargin();
+    }
+    
+    /**
+     * Returns the Parts whose stock is at most min plus a margin, lowest margin first.
+     * Answered from the low stock index in O(log n + k) for k Parts found.
+     * @param margin The largest stock minus min to include.
+     * @return A list of the matching Parts.
+     */
+    public static ObservableList<Part> lookupPartsNearMin(int margin) {
+        
+        List<Part> found = scan(partition -> {
+            List<Part> tmp = new ArrayList<>();
+            
+            for(int partId : partition.lowStock.idsAtOrBelow(margin))
+                tmp.add(partition.parts.get(partId));
+            
+            return tmp;
+        });
+        
+        // Each partition's parts come lowest margin first, the merge keeps their order.
+        if(partitions.length > 1)
+            found.sort(Comparator.comparingInt(part -> part.getStock() - part.getMin()));
+        
+        return FXCollections.observableArrayList(found);
+    }
+    
+    /******** Valuation ********/
+    
+    /**
+     * Provides the total value on hand, price times stock, of all Parts. The total is kept
+     * up to date as Parts are added, updated and deleted, so reading it does not scan.
+     * @return The value on hand of all Parts.
+     */
+    public static double getTotalValue() {
+        return valuation.getTotal();
+    }
+    
+    /**
+     * @return The value on hand of all Parts as a property, for display that follows changes.
+     */
+    public static ReadOnlyDoubleProperty totalValueProperty() {
+        return valuation.totalProperty();
+    }
+    
+    /**
+     * @param machineId The id of a machine.
+     * @return The value on hand of the InHouse Parts made by the machine.
+     */
+    public static double getValueByMachine(int machineId) {
+        return valuation.getMachineValue(machineId);
+    }
+    
+    /**
+     * @param companyName The name of a company.
+     * @return The value on hand of the Outsourced Parts bought from the company.
+     */
+    public static double getValueByCompany(String companyName) {
+        return valuation.getCompanyValue(companyName);
+    }
+    
+    /**
+     * Provides a live, read-only list of the machines and companies Parts come from, each
+     * with the number of its Parts and their value on hand.
+     * @return Unmodifiable live list of Part sources.
+     */
+    public static ObservableList<ValuationIndex.Source> getValuationView() {
+        return valuation.getSourcesView();
+    }
+    
+    /******** Change feed ********/
+    
+    /**
+     * Provides the numbered log of changes made to Inventory, for keeping copies of it in
+     * step, see ChangeFeed. Set -Dinventory.feedRetention to the number of changes retained
+     * for subscribers catching up, 10000 by default.
+     * @return The change feed.
+     */
+    public static ChangeFeed getChangeFeed() {
+        return changes;
+    }
+    
+    /**
+     * Writes every Part and Product held, as the changes that would add them, and returns the
+     * sequence of the feed they are current to. Sub-assemblies are written before the
+     * Products containing them.
+     * @param snapshot The list to add the changes to, numbered with the returned sequence.
+     * @return The sequence of the last change reflected in the snapshot.
+     */
+    public static long snapshot(List<ChangeFeed.Change> snapshot) {
+        
+        lockIndexes();
+        
+        try {
+            long sequence = changes.getLastSequence();
+            Set<Integer> written = new HashSet<>();
+            
+            for(Part part : getAllParts())
+                snapshot.add(new ChangeFeed.Change(sequence, ChangeFeed.PART, part));
+            
+            for(Product product : getAllProducts())
+                snapshotProduct(product, written, sequence, snapshot);
+            
+            return sequence;
+        } finally {
+            unlockIndexes();
+        }
+    }
+    
+    // Adds a product to a snapshot after its sub-assemblies, unless already written.
+    private static void snapshotProduct(Product product, Set<Integer> written, long sequence,
+                                        List<ChangeFeed.Change> snapshot) {
+        
+        if(!written.add(product.getId()))
+            return;
+        
+        for(int subId : product.getSubAssemblyIds())
+            snapshotProduct(lookupProduct(subId), written, sequence, snapshot);
+        
+        snapshot.add(new ChangeFeed.Change(sequence, ChangeFeed.PRODUCT, product));
+    }
+    
+    // Records a change to a Part in the change feed and the next commit, and refreshes its
+    // row in views, with the lock of its partition held.
+    private static void published(Part part) {
+        changes.append(ChangeFeed.PART, part);
+        versions.putPart(part);
+        part.showStock();
+    }
+    
+    // Records a change to a Product in the change feed and the next commit, and refreshes its
+    // row in views, with the lock of its partition held.
+    private static void published(Product product) {
+        changes.append(ChangeFeed.PRODUCT, product);
+        versions.putProduct(product);
+        product.showStock();
+    }
+    
+    // Records a deletion in the change feed and the next commit, with the lock of its partition held.
+    private static void deleted(String kind, int id) {
+        
+        changes.append(kind, new Json().beginObject().name("id").value(id).endObject().toString());
+        
+        if(kind.equals(ChangeFeed.PART_DELETED))
+            versions.deletePart(id);
+        else
+            versions.deleteProduct(id);
+    }
+    
+    // Brings the row of a part id in the views in line with the part then held for it, with
+    // the next view update: a part added is listed, a replacement takes its row, a deleted
+    // part's row is removed. Updates of one id are keyed alike, the last within a frame applies.
+    private static void showPart(int partId) {
+        
+        viewUpdate(new RowKey(allParts, partId), () -> {
+            Part part = lookupPart(partId);
+            
+            if(part == null)
+                allParts.hide(partId);
+            else
+                allParts.show(partId, part);
+        });
+    }
+    
+    // Brings the row of a product id in the views in line with the product held, see showPart().
+    private static void showProduct(int productId) {
+        
+        viewUpdate(new RowKey(allProducts, productId), () -> {
+            Product product = lookupProduct(productId);
+            
+            if(product == null)
+                allProducts.hide(productId);
+            else
+                allProducts.show(productId, product);
+        });
+    }
+    
+    /******** Snapshots ********/
+    
+    /**
+     * Opens a consistent, read-only view of Inventory as of the last commit, for reports that
+     * must not hold up changes while they run, see Snapshot. Every change made with the
+     * partitions unlocked is a commit, as is everything made while a partition's lock was held,
+     * or every partition's, see lockIndexes().
+     * @return The snapshot, to be closed once read.
+     */
+    public static Snapshot openSnapshot() {
+        return new Snapshot(versions, versions.pin());
+    }
+    
+    /**
+     * Releases a snapshot's version and reclaims the versions kept only for it, a slice of
+     * them at a time with every partition locked. Called by Snapshot.
+     * @param sequence The commit the snapshot was pinned at.
+     */
+    static void snapshotClosed(long sequence) {
+        
+        versions.unpin(sequence);
+        boolean more = true;
+        
+        while(more) {
+            lockIndexes();
+            
+            try {
+                more = versions.sweep(SWEEP_SLICE);
+            } finally {
+                unlockIndexes();
+            }
+        }
+    }
+    
+    /******** View updates ********/
+    
+    /**
+     * Routes updates of the observable state derived from Inventory, such as the lists of
+     * Parts and Products, the reorder list, the valuation totals and the stock, buildable units and cost of materials shown
+     * in tables, through a dispatcher. Stock may change thousands of times a second from
+     * other threads, the dispatcher applies the latest state of each changed row once per
+     * frame on the application thread. Without a dispatcher, as when Inventory is used
+     * without a GUI, updates apply at once on the thread making the change, one at a time
+     * as on the application thread, since writers of several partitions share the views.
+     * @param dispatcher The dispatcher to use, or null to apply updates at once.
+     */
+    public static void setViewUpdates(UpdateDispatcher dispatcher) {
+        viewUpdates = dispatcher;
+    }
+    
+    /**
+     * Applies an update of observable state, see setViewUpdates().
+     * @param key What the update updates, an update pending under an equal key is replaced.
+     * @param update The update.
+     */
+    static void viewUpdate(Object key, Runnable update) {
+        
+        UpdateDispatcher dispatcher = viewUpdates;
+        
+        if(dispatcher != null) {
+            dispatcher.submit(key, update);
+            return;
+        }
+        
+        synchronized(viewLock) {
+            update.run();
+        }
+    }
+    
+    /******** Production runs ********/
+    
+    /**
+     * Builds units of several Products as one batch: the associated parts and sub-assemblies
+     * the plan needs are taken out of stock and the units built are added to the Products'
+     * stock. Either the whole plan is applied or none of it. Sub-assemblies are taken from
+     * stock on hand, not from units built by the same plan.
+     * The plan's needs are totalled in parallel on the common ForkJoinPool, then checked
+     * against stock. Stock taken by other threads after the check is detected while applying
+     * the plan, which is then undone.
+     * @param plan Units to build, keyed by product id.
+     * @return True if the plan was applied, false if stock was short and nothing changed.
+     * @throws IllegalArgumentException Thrown if a product id is not held in Inventory, a
+     * number of units is less than 1 or the units built would take a Product's stock past
+     * Integer.MAX_VALUE. Nothing is changed.
+     */
+    public static boolean runProduction(Map<Integer, Integer> plan) throws IllegalArgumentException {
+        
+        Product[] products = new Product[plan.size()];
+        int[] units = new int[plan.size()];
+        int n = 0;
+        
+        lockIndexes();
+        
+        try {
+            for(Map.Entry<Integer, Integer> line : plan.entrySet()) {
+                products[n] = lookupProduct(line.getKey());
+                units[n] = line.getValue();
+                
+                if(products[n] == null)
+                    throw new IllegalArgumentException("No product with id " + line.getKey());
+                if(units[n] < 1)
+                    throw new IllegalArgumentException("Units of product " + line.getKey() + " must be at least 1");
+                
+                n++;
+            }
+            
+            PlanNeeds needs = new PlanNeeds(products, units, 0, n);
+            needs = n > PlanNeeds.THRESHOLD ? ForkJoinPool.commonPool().invoke(needs) : needs.compute();
+            
+            // Check everything before changing anything.
+            for(int i = 0; i < n; i++)
+                if((long) products[i].getStock() + units[i] > Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("Stock of product " + products[i].getId() + " cannot exceed " + Integer.MAX_VALUE);
+            
+            for(Map.Entry<Integer, Long> need : needs.partNeeds.entrySet()) {
+                Part part = lookupPart(need.getKey());
+                
+                if(part == null || part.getStock() < need.getValue())
+                    return false;
+            }
+            
+            for(Map.Entry<Integer, Long> need : needs.subNeeds.entrySet()) {
+                Product sub = lookupProduct(need.getKey());
+                
+                if(sub == null || sub.getStock() < need.getValue())
+                    return false;
+            }
+            
+            // Replacements and deletes wait for the lock, so records here are not retired.
+            ArrayList<Part> partsTaken = new ArrayList<>();
+            ArrayList<Product> subsTaken = new ArrayList<>();
+            boolean shortfall = false;
+            
+            for(Map.Entry<Integer, Long> need : needs.partNeeds.entrySet()) {
+                Part part = lookupPart(need.getKey());
+                
+                if(part.tryAdjustStock((int) -need.getValue()) < 0) {
+                    shortfall = true;
+                    break;
+                }
+                
+                partsTaken.add(part);
+            }
+            
+            if(!shortfall) {
+                for(Map.Entry<Integer, Long> need : needs.subNeeds.entrySet()) {
+                    Product sub = lookupProduct(need.getKey());
+                    
+                    if(sub.tryAdjustStock((int) -need.getValue()) < 0) {
+                        shortfall = true;
+                        break;
+                    }
+                    
+                    subsTaken.add(sub);
+                }
+            }
+            
+            if(shortfall) {
+                giveBack(needs, partsTaken, subsTaken);
+                return false;
+            }
+            
+            // Stock added by other threads since the check can still overflow a product.
+            int credited = 0;
+            
+            try {
+                for(; credited < n; credited++)
+                    products[credited].tryAdjustStock(units[credited]);
+            } catch(IllegalArgumentException e) {
+                for(int i = 0; i < credited; i++)
+                    products[i].tryAdjustStock(-units[i]);
+                
+                giveBack(needs, partsTaken, subsTaken);
+                throw e;
+            }
+            
+            return true;
+        } finally {
+            unlockIndexes();
+        }
+    }
+    
+    // Returns the parts and sub-assemblies taken by a production run that is undone.
+    private static void giveBack(PlanNeeds needs, List<Part> partsTaken, List<Product> subsTaken) {
+        
+        for(Part part : partsTaken)
+            part.tryAdjustStock(needs.partNeeds.get(part.getId()).intValue());
+        for(Product sub : subsTaken)
+            sub.tryAdjustStock(needs.subNeeds.get(sub.getId()).intValue());
+    }
+    
+    // Totals the parts and sub-assemblies needed by a range of plan lines, splitting the
+    // range in half until it is small enough.
+    private static class PlanNeeds extends RecursiveTask<PlanNeeds> {
+        
+        final private static long serialVersionUID = 1L;
+        final private static int THRESHOLD = 1024;
+        
+        final private Product[] products;
+        final private int[] units;
+        final private int from;
+        final private int to;
+        
+        // Units needed keyed by part id, and by sub-assembly product id.
+        final HashMap<Integer, Long> partNeeds = new HashMap<>();
+        final HashMap<Integer, Long> subNeeds = new HashMap<>();
+        
+        PlanNeeds(Product[] products, int[] units, int from, int to) {
+            this.products = products;
+            this.units = units;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected PlanNeeds compute() {
+            
+            if(to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                PlanNeeds left = new PlanNeeds(products, units, from, mid);
+                PlanNeeds right = new PlanNeeds(products, units, mid, to);
+                
+                right.fork();
+                
+                // A split task returns the totals of its left half, merged with its right.
+                PlanNeeds totals = left.compute();
+                totals.merge(right.join());
+                return totals;
+            }
+            
+            for(int i = from; i < to; i++) {
+                for(int partId : products[i].getAssociatedPartIds())
+                    partNeeds.merge(partId, (long) products[i].getAssociatedQuantity(partId) * units[i], Long::sum);
+                
+                for(int subId : products[i].getSubAssemblyIds())
+                    subNeeds.merge(subId, (long) products[i].getSubAssemblyQuantity(subId) * units[i], Long::sum);
+            }
+            
+            return this;
+        }
+        
+        private void merge(PlanNeeds other) {
+            other.partNeeds.forEach((id, need) -> partNeeds.merge(id, need, Long::sum));
+            other.subNeeds.forEach((id, need) -> subNeeds.merge(id, need, Long::sum));
+        }
+    }
+    
+    /******** Cost rollup ********/
+    
+    /**
+     * Computes the cost of materials of every Product from its explosion into leaf parts and
+     * current part prices. Products are costed in parallel on the common ForkJoinPool, each
+     * product's explosion is memoized so shared sub-assemblies are exploded once.
+     * Inventory must not be modified while the rollup runs.
+     * @return Map of product id to cost of the parts needed to build one unit.
+     */
+    public static Map<Integer, Double> rollupCosts() {
+        
+        Product[] products = getAllProducts().toArray(new Product[0]);
+        double[] costs = new double[products.length];
+        
+        ForkJoinPool.commonPool().invoke(new CostRollup(products, costs, 0, products.length));
+        
+        HashMap<Integer, Double> tmp = new HashMap<>();
+        
+        for(int i = 0; i < products.length; i++)
+            tmp.put(products[i].getId(), costs[i]);
+        
+        return tmp;
+    }
+    
+    // Costs a range of products, splitting it in half until it is small enough.
+    private static class CostRollup extends RecursiveAction {
+        
+        final private static long serialVersionUID = 1L;
+        final private static int THRESHOLD = 256;
+        
+        final private Product[] products;
+        final private double[] costs;
+        final private int from;
+        final private int to;
+        
+        CostRollup(Product[] products, double[] costs, int from, int to) {
+            this.products = products;
+            this.costs = costs;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            
+            if(to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CostRollup(products, costs, from, mid),
+                          new CostRollup(products, costs, mid, to));
+                return;
+            }
+            
+            for(int i = from; i < to; i++) {
+                double cost = 0;
+                
+                for(Map.Entry<Integer, Long> entry : products[i].explode().entrySet()) {
+                    Part part = lookupPart(entry.getKey());
+                    
+                    if(part != null)
+                        cost += part.getPrice() * entry.getValue();
+                }
+                
+                costs[i] = cost;
+            }
+        }
+    }
+    
+    /******** Reverse index maintenance ********/
+    
+    /**
+     * Passes a change to the stock of a Part on to the products using it and the low stock
+     * index. Called by Part, ignored for parts that are not held in Inventory.
+     * @param part The part whose stock changed.
+     * @param oldStock The part's stock before the change.
+     */
+    static void partStockChanged(Part part, int oldStock) {
+        
+        Partition p = partitionOf(part.getId());
+        
+        p.stockChanged(() -> {
+            if(p.parts.get(part.getId()) != part)
+                return;
+
+            p.lowStock.put(part);
+            p.partRanges.reposition(part, "stock", oldStock);
+            valuation.put(part);
+            published(part);
+
+            // Products are maintained in their own partitions, the part may be replaced by then.
+            for(int productId : whereUsed.getOrDefault(part.getId(), Collections.emptySet())) {
+                partitionOf(productId).stockChanged(() -> {
+                    Product product = lookupProduct(productId);
+                    
+                    if(product != null && lookupPart(part.getId()) == part)
+                        product.partStockChanged(part, oldStock);
+                });
+            }
+        });
+    }
+    
+    /**
+     * Passes a change to the stock of a Product on to the products containing it. Called by
+     * Product, ignored for products that are not held in Inventory.
+     * @param product The product whose stock changed.
+     * @param oldStock The product's stock before the change.
+     */
+    static void productStockChanged(Product product, int oldStock) {
+        
+        Partition p = partitionOf(product.getId());
+        
+        p.stockChanged(() -> {
+            if(p.products.get(product.getId()) != product)
+                return;
+
+            p.productRanges.reposition(product, "stock", oldStock);
+            published(product);
+
+            for(int parentId : lookupAssemblyUsers(product.getId())) {
+                partitionOf(parentId).stockChanged(() -> {
+                    Product parent = lookupProduct(parentId);
+                    
+                    if(parent != null)
+                        parent.recomputeBuildable();
+                });
+            }
+        });
+    }
+    
+    /**
+     * Refiles a Part in the low stock and range indexes after its min or max changed.
+     * Called by Part, ignored for parts that are not held in Inventory.
+     * @param part The part whose min or max changed.
+     * @param field The field that changed, "min" or "max".
+     * @param oldValue The field's value before the change.
+     */
+    static void partLimitsChanged(Part part, String field, int oldValue) {
+        
+        Partition p = partitionOf(part.getId());
+        
+        p.lock();
+        
+        try {
+            if(p.parts.get(part.getId()) == part) {
+                p.lowStock.put(part);
+                p.partRanges.reposition(part, field, oldValue);
+                published(part);
+            }
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /**
+     * Publishes a change to the name of a Part. Called by Part, ignored for parts that are not
+     * held in Inventory.
+     * @param part The renamed part.
+     */
+    static void partRenamed(Part part) {
+        
+        Partition p = partitionOf(part.getId());
+        
+        p.lock();
+        
+        try {
+            if(p.parts.get(part.getId()) == part)
+                published(part);
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /**
+     * Publishes a change to the name of a Product. Called by Product, ignored for products
+     * that are not held in Inventory.
+     * @param product The renamed product.
+     */
+    static void productRenamed(Product product) {
+        
+        Partition p = partitionOf(product.getId());
+        
+        p.lock();
+        
+        try {
+            if(p.products.get(product.getId()) == product)
+                published(product);
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /**
+     * Refiles a Part in the valuation after its machine or company changed. Called by InHouse
+     * and Outsourced, ignored for parts that are not held in Inventory.
+     * @param part The part whose source changed.
+     */
+    static void partSourceChanged(Part part) {
+        
+        Partition p = partitionOf(part.getId());
+        
+        p.lock();
+        
+        try {
+            if(p.parts.get(part.getId()) == part) {
+                valuation.put(part);
+                published(part);
+            }
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /**
+     * Publishes a change to the parts or sub-assemblies of a Product. Called by Product with
+     * the lock of its partition held, ignored for products that are not held in Inventory.
+     * @param product The product that changed.
+     */
+    static void productStructureChanged(Product product) {
+        
+        if(lookupProduct(product.getId()) == product)
+            published(product);
+    }
+    
+    /**
+     * Refiles a Product in the range indexes after its price, min or max changed.
+     * Called by Product, ignored for products that are not held in Inventory.
+     * @param product The product that changed.
+     * @param field The field that changed, "price", "min" or "max".
+     * @param oldValue The field's value before the change.
+     */
+    static void productFieldsChanged(Product product, String field, double oldValue) {
+        
+        Partition p = partitionOf(product.getId());
+        
+        p.lock();
+        
+        try {
+            if(p.products.get(product.getId()) == product) {
+                p.productRanges.reposition(product, field, oldValue);
+                published(product);
+            }
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /**
+     * Passes a change to the price of a Part on to the products using it, and the products
+     * containing those. Each product is recosted in its own partition, as stock changes are
+     * passed on. Called by Part, ignored for parts that are not held in Inventory.
+     * @param part The part whose price changed.
+     * @param oldPrice The part's price before the change.
+     */
+    static void partPriceChanged(Part part, double oldPrice) {
+        
+        Partition p = partitionOf(part.getId());
+        
+        p.lock();
+        
+        try {
+            if(p.parts.get(part.getId()) != part)
+                return;
+
+            p.partRanges.reposition(part, "price", oldPrice);
+            valuation.put(part);
+            published(part);
+
+            for(int productId : whereUsed.getOrDefault(part.getId(), Collections.emptySet())) {
+                partitionOf(productId).stockChanged(() -> {
+                    Product product = lookupProduct(productId);
+                    
+                    if(product != null)
+                        product.partPriceChanged(part.getId());
+                });
+            }
+        } finally {
+            p.unlock();
+        }
+    }
+    
+    /**
+     * Passes a change to the cost of materials of a Product on to the products containing
+     * it, each recomputed in its own partition. Called by Product, ignored for products that
+     * are not held in Inventory.
+     * @param product The product whose cost of materials changed.
+     */
+    static void materialCostChanged(Product product) {
+        
+        if(lookupProduct(product.getId()) != product)
+            return;
+        
+        for(int parentId : lookupAssemblyUsers(product.getId())) {
+            partitionOf(parentId).stockChanged(() -> {
+                Product parent = lookupProduct(parentId);
+                
+                if(parent != null)
+                    parent.recomputeMaterialCost();
+            });
+        }
+    }
+    
+    /**
+     * Acquires the lock of the partition holding the record with an id, waiting if needed.
+     * Held while the record is added, replaced or removed, and by Product while it changes
+     * its parts. Not to be called holding the lock of another partition only.
+     * @param id The id of a Part or Product.
+     */
+    static void lockPartition(int id) {
+        partitionOf(id).lock();
+    }
+    
+    /**
+     * Releases the lock taken by lockPartition(). The outermost holder first applies the
+     * stock changes that arrived while it was held and commits.
+     * @param id The id of a Part or Product.
+     */
+    static void unlockPartition(int id) {
+        partitionOf(id).unlock();
+    }
+    
+    /**
+     * Acquires the lock of every partition, in order, waiting if needed. Held by batches
+     * whose changes are committed together, such as production runs, and by Product while it
+     * adds a sub-assembly. Not to be called holding the lock of one partition only.
+     */
+    static void lockIndexes() {
+        
+        for(Partition p : partitions)
+            p.lock.lock();
+    }
+    
+    /**
+     * Releases the lock of every partition. The outermost holder first applies the stock
+     * changes that arrived while they were held and commits, so that snapshots see everything
+     * done under the locks at once. Stock changes arriving meanwhile are applied after.
+     */
+    static void unlockIndexes() {
+        
+        try {
+            if(partitions[0].lock.getHoldCount() == 1) {
+                // Changes in one partition may queue changes in another.
+                boolean ran = true;
+                
+                while(ran) {
+                    ran = false;
+                    
+                    for(Partition p : partitions)
+                        ran |= p.runStockChanges();
+                }
+                
+                versions.commit();
+            }
+        } finally {
+            for(int i = partitions.length - 1; i >= 0; i--)
+                partitions[i].lock.unlock();
+        }
+        
+        if(!partitions[0].lock.isHeldByCurrentThread()) {
+            for(Partition p : partitions)
+                p.applyStockChanges();
+        }
+    }
+    
+    /**
+     * Records that a part was associated with a product. Called by Product, ignored
+     * for products that are not held in Inventory.
+     * @param product The product the part was associated with.
+     * @param partId The id of the part.
+     */
+    static void associationAdded(Product product, int partId) {
+        
+        if(lookupProduct(product.getId()) == product)
+            link(whereUsed, partId, product.getId());
+    }
+    
+    /**
+     * Records that a part was removed from a product. Called by Product, ignored
+     * for products that are not held in Inventory.
+     * @param product The product the part was removed from.
+     * @param partId The id of the part.
+     */
+    static void associationRemoved(Product product, int partId) {
+        
+        if(lookupProduct(product.getId()) == product)
+            unlink(whereUsed, partId, product.getId());
+    }
+    
+    /**
+     * Records that a product became a sub-assembly of another. Called by Product, ignored
+     * for products that are not held in Inventory.
+     * @param product The containing product.
+     * @param subId The id of the sub-assembly.
+     */
+    static void subAssemblyAdded(Product product, int subId) {
+        
+        if(lookupProduct(product.getId()) == product)
+            link(assemblyUsers, subId, product.getId());
+    }
+    
+    /**
+     * Records that a sub-assembly was removed from a product. Called by Product, ignored
+     * for products that are not held in Inventory.
+     * @param product The containing product.
+     * @param subId The id of the sub-assembly.
+     */
+    static void subAssemblyRemoved(Product product, int subId) {
+        
+        if(lookupProduct(product.getId()) == product)
+            unlink(assemblyUsers, subId, product.getId());
+    }
+    
+    /**
+     * @param productId The id of a Product.
+     * @return Unmodifiable set of the ids of the products containing it as a sub-assembly.
+     */
+    static Set<Integer> lookupAssemblyUsers(int productId) {
+        
+        Set<Integer> users = assemblyUsers.get(productId);
+        
+        return users == null ? Collections.emptySet() : Collections.unmodifiableSet(users);
+    }
+    
+    // Adds productId to the ids indexed under key. Each key's entry is changed atomically and
+    // its set is concurrent, so writers of several partitions and readers without locks share it.
+    private static void link(ConcurrentHashMap<Integer, Set<Integer>> index, int key, int productId) {
+        
+        index.compute(key, (k, users) -> {
+            Set<Integer> tmp = users == null ? ConcurrentHashMap.newKeySet() : users;
+            tmp.add(productId);
+            return tmp;
+        });
+    }
+    
+    // Removes productId from the ids indexed under key, dropping the entry once empty.
+    private static void unlink(ConcurrentHashMap<Integer, Set<Integer>> index, int key, int productId) {
+        index.computeIfPresent(key, (k, users) -> users.remove(productId) && users.isEmpty() ? null : users);
+    }
+    
+    // Locks the partitions a replacement changes: the partition of the id, or every partition
+    // if the replacement has another id, as two partitions are only locked together in order.
+    private static void lockReplacement(int oldId, int newId) {
+        
+        if(oldId == newId)
+            partitionOf(oldId).lock();
+        else
+            lockIndexes();
+    }
+    
+    private static void unlockReplacement(int oldId, int newId) {
+        
+        if(oldId == newId)
+            partitionOf(oldId).unlock();
+        else
+            unlockIndexes();
+    }
+    
+    // Puts a new Part in place of a held one, see lockReplacement().
+    private static void replacePart(Part old, Part selectedPart) {
+        
+        if(old == selectedPart) {
+            published(selectedPart);
+            return;
+        }
+        
+        Partition from = partitionOf(old.getId());
+        Partition to = partitionOf(selectedPart.getId());
+        
+        old.retire(-1);
+        from.parts.remove(old.getId(), old);
+        to.parts.put(selectedPart.getId(), selectedPart);
+        lastPartId.accumulateAndGet(selectedPart.getId(), Math::max);
+        
+        if(old.getId() != selectedPart.getId())
+            from.lowStock.remove(old);
+        
+        to.lowStock.put(selectedPart);
+        
+        // A replacement within the partition takes the old record's place in the indexes.
+        if(from == to) {
+            to.partRanges.replace(old, selectedPart);
+        } else {
+            from.partRanges.remove(old);
+            to.partRanges.insert(selectedPart);
+        }
+        
+        if(old.getId() != selectedPart.getId()) {
+            valuation.remove(old);
+            deleted(ChangeFeed.PART_DELETED, old.getId());
+            showPart(old.getId());
+        }
+        
+        valuation.put(selectedPart);
+        published(selectedPart);
+        showPart(selectedPart.getId());
+        
+        // Only the products using the part are visited, each in its own partition.
+        if(old.getId() == selectedPart.getId()) {
+            boolean repriced = selectedPart.getPrice() != old.getPrice();
+            
+            for(int productId : whereUsed.getOrDefault(old.getId(), Collections.emptySet())) {
+                partitionOf(productId).stockChanged(() -> {
+                    Product product = lookupProduct(productId);
+                    
+                    if(product == null)
+                        return;
+                    
+                    // Rescanned, the part may have been replaced again by now.
+                    product.recomputeBuildable();
+                    
+                    if(repriced)
+                        product.partPriceChanged(selectedPart.getId());
+                });
+            }
+        }
+    }
+    
+    // Puts a Product in place of a held one, see lockReplacement().
+    private static void replaceProduct(Product old, Product selectedProduct) {
+        
+        if(old != selectedProduct) {
+            old.retire(-1);
+            unregister(old);
+            register(selectedProduct);
+            
+            if(old.getId() != selectedProduct.getId()) {
+                deleted(ChangeFeed.PRODUCT_DELETED, old.getId());
+                showProduct(old.getId());
+            }
+        }
+        
+        published(selectedProduct);
+        showProduct(selectedProduct.getId());
+        
+        // Products containing this one depend on its stock and, if replaced, its structure.
+        assemblyChanged(selectedProduct.getId());
+    }
+    
+    // Refreshes the products containing a product after it was added or replaced, each in
+    // its own partition, as stock changes are passed on.
+    private static void assemblyChanged(int productId) {
+        
+        for(int parentId : lookupAssemblyUsers(productId)) {
+            partitionOf(parentId).stockChanged(() -> {
+                Product parent = lookupProduct(parentId);
+                
+                if(parent != null)
+                    parent.subAssemblyChanged();
+            });
+        }
+    }
+    
+    // A range index over the fields named in RangeQuery.FIELDS, given in the same order.
+    @SafeVarargs
+    private static <E> RangeIndex<E> rangeIndex(ToDoubleFunction<E>... keys) {
+        
+        RangeIndex<E> index = new RangeIndex<>();
+        
+        for(int i = 0; i < keys.length; i++)
+            index.addField(RangeQuery.FIELDS[i], keys[i]);
+        
+        return index;
+    }
+    
+    // Indexes a product added to Inventory.
+    private static void register(Product product) {
+        
+        Partition p = partitionOf(product.getId());
+        
+        p.products.put(product.getId(), product);
+        lastProductId.accumulateAndGet(product.getId(), Math::max);
+        p.productRanges.insert(product);
+        
+        for(int partId : product.getAssociatedPartIds())
+            associationAdded(product, partId);
+        
+        for(int subId : product.getSubAssemblyIds())
+            subAssemblyAdded(product, subId);
+    }
+    
+    // Removes a product leaving Inventory from the indexes.
+    private static void unregister(Product product) {
+        
+        for(int partId : product.getAssociatedPartIds())
+            associationRemoved(product, partId);
+        
+        for(int subId : product.getSubAssemblyIds())
+            subAssemblyRemoved(product, subId);
+        
+        Partition p = partitionOf(product.getId());
+        
+        p.products.remove(product.getId(), product);
+        p.productRanges.remove(product);
+    }
+    
+    /******** Partitions ********/
+    
+    // The records with ids in one partition and the indexes of them. The lock guards the
+    // indexes, the stock changes of the partition's records are maintained by whichever
+    // thread finds it unlocked.
+    private static final class Partition {
+        
+        final private int index;
+        final private ReentrantLock lock = new ReentrantLock();
+        
+        // Index maintenance for stock changes not yet applied, see stockChanged().
+        final private ConcurrentLinkedQueue<Runnable> stockChanges = new ConcurrentLinkedQueue<>();
+        
+        // Parts and products keyed by id. Each part id maps to the one canonical Part record,
+        // products refer to their parts by id only. Concurrent, as stock changes look records
+        // up from any thread.
+        final private ConcurrentHashMap<Integer, Part> parts = new ConcurrentHashMap<>();
+        final private ConcurrentHashMap<Integer, Product> products = new ConcurrentHashMap<>();
+        
+        // Ordered indexes of the numeric fields of parts and products, see RangeQuery.
+        final private RangeIndex<Part> partRanges = rangeIndex(Part::getPrice, Part::getStock, Part::getMin, Part::getMax);
+        final private RangeIndex<Product> productRanges = rangeIndex(Product::getPrice, Product::getStock, Product::getMin, Product::getMax);
+        
+        // Parts bucketed by stock margin, all partitions backing the one reorder list.
+        final private LowStockIndex lowStock;
+        
+        Partition(int index, LowStockIndex shared) {
+            this.index = index;
+            this.lowStock = shared == null ? new LowStockIndex() : new LowStockIndex(shared);
+        }
+        
+        void lock() {
+            lock.lock();
+        }
+        
+        // Releases the lock. The outermost holder first applies the stock changes that
+        // arrived while it was held and commits them, as unlockIndexes() does for all.
+        void unlock() {
+            
+            try {
+                if(lock.getHoldCount() == 1) {
+                    runStockChanges();
+                    versions.commit(index);
+                }
+            } finally {
+                lock.unlock();
+            }
+            
+            if(!lock.isHeldByCurrentThread())
+                applyStockChanges();
+        }
+        
+        // Reads the partition with its lock held.
+        <E> List<E> read(Function<Partition, List<E>> reader) {
+            
+            lock();
+            
+            try {
+                return reader.apply(this);
+            } finally {
+                unlock();
+            }
+        }
+        
+        // Queues the index maintenance for a stock change and applies it unless a thread
+        // holds the lock, in which case that thread applies it once it releases the lock.
+        void stockChanged(Runnable change) {
+            
+            stockChanges.add(change);
+            
+            if(!lock.isHeldByCurrentThread())
+                applyStockChanges();
+        }
+        
+        // Applies queued stock changes while the lock is free. The queue is checked again
+        // after unlocking, as a change queued while the lock was held may have found it taken.
+        void applyStockChanges() {
+            
+            while(!stockChanges.isEmpty() && lock.tryLock()) {
+                try {
+                    runStockChanges();
+                    versions.commit(index);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        
+        // Applies queued stock changes, with the lock held.
+        boolean runStockChanges() {
+            
+            boolean ran = false;
+            Runnable change;
+            
+            while((change = stockChanges.poll()) != null) {
+                change.run();
+                ran = true;
+            }
+            
+            return ran;
+        }
+    }
+    
+    // Reads every partition in parallel on the common ForkJoinPool, splitting the range of
+    // partitions in half until one is left. Each partition's results follow those of the
+    // partitions before it.
+    private static class Scan<E> extends RecursiveTask<List<E>> {
+        
+        final private static long serialVersionUID = 1L;
+        
+        final private Function<Partition, List<E>> reader;
+        final private int from;
+        final private int to;
+        
+        Scan(Function<Partition, List<E>> reader, int from, int to) {
+            this.reader = reader;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected List<E> compute() {
+            
+            if(to - from > 1) {
+                int mid = (from + to) >>> 1;
+                Scan<E> right = new Scan<>(reader, mid, to);
+                
+                right.fork();
+                
+                List<E> found = new Scan<>(reader, from, mid).compute();
+                found.addAll(right.join());
+                return found;
+            }
+            
+            return new ArrayList<>(partitions[from].read(reader));
+        }
+    }
+    
+    // Reads every partition, each with its lock held, and merges the results. A thread
+    // holding every lock reads them itself, the pool's threads would wait for it.
+    private static <E> List<E> scan(Function<Partition, List<E>> reader) {
+        
+        if(partitions.length > 1 && !partitions[0].lock.isHeldByCurrentThread())
+            return ForkJoinPool.commonPool().invoke(new Scan<>(reader, 0, partitions.length));
+        
+        List<E> found = new ArrayList<>();
+        
+        for(Partition p : partitions)
+            found.addAll(p.read(reader));
+        
+        return found;
+    }
+    
+    // The partition holding the record with an id.
+    private static Partition partitionOf(int id) {
+        return partitions[Math.floorMod(id, partitions.length)];
+    }
+    
+    private static Partition[] newPartitions(int n) {
+        
+        if(n < 1)
+            throw new IllegalArgumentException("inventory.partitions must be at least 1");
+        
+        Partition[] tmp = new Partition[n];
+        
+        for(int i = 0; i < n; i++)
+            tmp[i] = new Partition(i, i == 0 ? null : tmp[0].lowStock);
+        
+        return tmp;
     }
     
 }
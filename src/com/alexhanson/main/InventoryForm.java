@@ -41,10 +41,16 @@ public abstract class InventoryForm extends VBox {
         final private TextField min;
         final private TextField max;
         
-        /** Reference to optional error label for inv form field. */
-        protected Label stockErr;
-        /** Reference to optional error label for min > max error condition. */
-        protected Label minMaxErr;
+        /** Error label for inv form field, shown when stock is outside of the min to max range. */
+        final protected Label stockErr;
+        /** Error label for min > max error condition. */
+        final protected Label minMaxErr;
+        
+        // Parsed state of the form fields, updated one field at a time as the user types.
+        final private InventoryValidator validator;
+        
+        // Fields whose own errors are on display, set once a field is edited or the form is saved.
+        private int shownFields;
 
         // Form Buttons
         final private Button save;
@@ -71,8 +77,22 @@ public abstract class InventoryForm extends VBox {
             save = new Button("Save");
             cxl = new Button("Cancel");
             
-            getStylesheets().add("file:css/inventory_form.css");
+            validator = new InventoryValidator();
             
+            // Error labels are built once and shown or hidden as the form's state changes.
+            minMaxErr = new Label("Minimum inventory amount less the maximum");
+            minMaxErr.getStyleClass().addAll("input-error-label", "err-text-display");
+            stockErr = new Label("Inventory outside range");
+            stockErr.getStyleClass().addAll("input-error-label", "err-text-display");
+            showLabel(minMaxErr, false);
+            showLabel(stockErr, false);
+            
+            watchField(name, InventoryValidator.NAME);
+            watchField(price, InventoryValidator.PRICE);
+            watchField(stock, InventoryValidator.STOCK);
+            watchField(min, InventoryValidator.MIN);
+            watchField(max, InventoryValidator.MAX);
+
         }
         
         /**
@@ -134,6 +154,8 @@ public abstract class InventoryForm extends VBox {
             addFormField(priceBox, 0, 3);
             addFormField(maxBox, 0, 4);
             addFormField(minBox, 1, 4);
+            formFields.add(stockErr, 1, 2);
+            formFields.add(minMaxErr, 1, 5);
 
             formFields.setHgap(5);
             formFields.setVgap(8);
@@ -156,89 +178,66 @@ public abstract class InventoryForm extends VBox {
          * Checks that numeric input can be converted to appropriate types, that no
          * numbers are negative, that max > min inventory levels, the items stock is 
          * within max and min inventory range, and that the name field is not empty.
+         * Fields are parsed as they are edited, so this only evaluates the held state and
+         * puts the errors of every field on display.
          * @return True if all conditions are met, false otherwise.
          */
         protected boolean formValidation() {
- 
-            formFields.getChildren().remove(minMaxErr);
-            formFields.getChildren().remove(stockErr);
-            
-            name.getStyleClass().set(ERROR_STATE_STYLES, "");
-            price.getStyleClass().set(ERROR_STATE_STYLES, "");
-            stock.getStyleClass().set(ERROR_STATE_STYLES, "");
-            max.getStyleClass().set(ERROR_STATE_STYLES, "");
-            min.getStyleClass().set(ERROR_STATE_STYLES, "");
             
-            boolean valid = true;
+            shownFields = InventoryValidator.ALL_FIELDS;
             
-            try {
-                getName();
-            }catch(IllegalArgumentException e) {
-                name.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-                valid = false;
-            }
+            return showErrors(validator.errors()) == 0;
+        }
+        
+        /**
+         * Sets or clears the error state style of a form field.
+         * @param tf The form field.
+         * @param invalid True to mark the field as invalid, false otherwise.
+         */
+        final protected void markField(TextField tf, boolean invalid) {
             
-            try {
-                getPrice();
-            } catch (IllegalArgumentException e) {    
-                price.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-                valid = false;
-            }
+            boolean marked = "invalid-input".equals(tf.getStyleClass().get(ERROR_STATE_STYLES));
             
-            try {
-                getStock();
-            } catch (IllegalArgumentException e) {
-                stock.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-                valid = false;
-            }
+            // Only touch the style class list on a change of state, each change restyles the field.
+            if(invalid && !marked)
+                tf.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
+            else if(!invalid && marked)
+                tf.getStyleClass().set(ERROR_STATE_STYLES, "");
+        }
+        
+        // Re-checks a field each time its text changes.
+        private void watchField(TextField tf, int field) {
             
-            try {
-                getMax();
-            } catch (IllegalArgumentException e) {
-                max.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-                valid = false;
-            }
+            tf.textProperty().addListener((observable, oldValue, newValue) -> {
+                shownFields |= field;
+                showErrors(validator.set(field, newValue));
+            });
+        }
+        
+        // Brings field styles and error labels in line with errors.
+        // Range errors are always shown, a field's own error only once it is on display.
+        private int showErrors(int errors) {
             
-            try {
-                getMin();
-            } catch (IllegalArgumentException e) {
-                min.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-                valid = false;
-            }
+            int own = errors & shownFields;
+            boolean minMax = (errors & InventoryValidator.MIN_OVER_MAX) != 0;
+            boolean range = (errors & InventoryValidator.STOCK_OUT_OF_RANGE) != 0;
             
-            // The following range checks involve min, max, and stock.
-            // If any of these inputs are in an invalid state, exceptions will be thrown again.
-            // This time, we just ignore them, only doing these further range checks
-            // when all three inputs are in valid states.
+            markField(name, (own & InventoryValidator.NAME) != 0);
+            markField(price, (own & InventoryValidator.PRICE) != 0);
+            markField(stock, (own & InventoryValidator.STOCK) != 0 || range);
+            markField(min, (own & InventoryValidator.MIN) != 0 || minMax);
+            markField(max, (own & InventoryValidator.MAX) != 0 || minMax);
             
-            try {
+            showLabel(minMaxErr, minMax);
+            showLabel(stockErr, range);
             
-                if(getMin() > getMax()) {
-
-                    minMaxErr = new Label("Minimum inventory amount less the maximum");
-                    minMaxErr.getStyleClass().addAll("input-error-label", "err-text-display");
-                    min.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-                    max.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-
-                    formFields.add(minMaxErr, 1, 5);
-
-                    valid = false;
-
-                }else if(getStock() > getMax() || getStock() < getMin()){
-
-                    stock.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-                    stockErr = new Label("Inventory outside range");
-                    stockErr.getStyleClass().addAll("input-error-label", "err-text-display");
-
-                    formFields.add(stockErr, 1, 2);
-
-                    valid = false;
-                }
-            }catch(Exception e) {
-                // Do nothing...
-            }
-
-            return valid;
+            return errors;
+        }
+        
+        // Shows or hides a label without leaving space for it in the layout when hidden.
+        private void showLabel(Label label, boolean show) {
+            label.setVisible(show);
+            label.setManaged(show);
         }
  
         /**
@@ -284,7 +283,7 @@ public abstract class InventoryForm extends VBox {
          */
         final protected String getName() throws IllegalArgumentException {
             
-            if(name.getText().isEmpty())
+            if((validator.errors() & InventoryValidator.NAME) != 0)
                 throw new IllegalArgumentException("Name cannont be blank");
             
             return name.getText();
@@ -298,10 +297,10 @@ public abstract class InventoryForm extends VBox {
         final protected double getPrice()  throws NumberFormatException,
                                         IllegalArgumentException 
         {
-            double d = Double.parseDouble(price.getText());
+            double d = validator.getPrice();
             
-            if(d < 0)
-                throw new IllegalArgumentException("negative number");
+            if(Double.isNaN(d))
+                throw new NumberFormatException("invalid price");
             
             return d;
         }
@@ -314,7 +313,7 @@ public abstract class InventoryForm extends VBox {
         final protected int getStock() throws NumberFormatException,
                                         IllegalArgumentException  
         {
-            return getIntValue(stock);
+            return validValue(validator.getStock());
         }
         
         /**
@@ -325,7 +324,7 @@ public abstract class InventoryForm extends VBox {
         final protected int getMin() throws NumberFormatException,
                                         IllegalArgumentException 
         {
-            return getIntValue(min);
+            return validValue(validator.getMin());
         }
         
         /**
@@ -336,7 +335,7 @@ public abstract class InventoryForm extends VBox {
         final protected int getMax() throws NumberFormatException,
                                         IllegalArgumentException 
         {
-            return getIntValue(max);
+            return validValue(validator.getMax());
         }
         
         /**
@@ -349,10 +348,14 @@ public abstract class InventoryForm extends VBox {
         final protected int getIntValue(TextField tf) throws NumberFormatException,
                                                         IllegalArgumentException
         {
-            int i = Integer.parseInt(tf.getText());
+            return validValue(InventoryValidator.parseCount(tf.getText()));
+        }
+        
+        // Getter utility, parsed counts are negative when the field's text is not a valid count.
+        private int validValue(int i) throws NumberFormatException {
             
             if(i < 0)
-                throw new IllegalArgumentException("negative number");
+                throw new NumberFormatException("not a non-negative integer");
             
             return i;
         }
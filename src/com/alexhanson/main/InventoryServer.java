@@ -0,0 +1,716 @@
+
+package com.alexhanson.main;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Headless mode: serves Inventory as a JSON API over HTTP, without starting the JavaFX
+ * toolkit. Start it with "java com.alexhanson.main.InventoryServer [port]", or pass
+ * --server [port] to Main. The default port is 8080.
+ * <pre>
+ * GET    /parts[?name=text | ?q=range query]      list parts, see RangeQuery
+ * POST   /parts                                   add a part, 201 with the part
+ * GET    /parts/{id}                              one part
+ * PUT    /parts/{id}                              replace a part, If-Match: version
+ * DELETE /parts/{id}                              delete a part
+ * POST   /parts/{id}/stock                        {"delta": n}, adjust stock
+ * GET    /products[?name=text | ?q=range query]   list products
+ * POST   /products                                add a product, 201 with the product
+ * GET    /products/{id}                           one product with its parts and sub-assemblies
+ * PUT    /products/{id}                           update a product's fields, If-Match: version
+ * DELETE /products/{id}                           delete a product
+ * POST   /products/{id}/stock                     {"delta": n}, adjust stock
+ * PUT    /products/{id}/parts/{partId}            {"quantity": n}, associate a part
+ * DELETE /products/{id}/parts/{partId}            remove an associated part
+ * GET    /changes[?since=sequence]                 change feed as server-sent events
+ * POST   /import                                  bulk load, see IngestPipeline
+ * </pre>
+ * Parts are written as {"id", "name", "price", "stock", "min", "max", "version"} plus
+ * "machineId" or "companyName", which also chooses the kind of part created. A PUT with an
+ * If-Match header is refused with 409 if the record changed since that version was read.
+ * <p>
+ * The change feed streams the changes after the given sequence, or after the Last-Event-ID
+ * header sent by reconnecting clients, see ChangeFeed. A client that is new or too far
+ * behind first receives a "reset" event followed by every record, see ChangeFeedClient.
+ * <p>
+ * An import streams its body, one part or product record per line, through an
+ * IngestPipeline and answers with the counts of records applied, duplicated and rejected,
+ * the first rejections, and the throughput and queue depth of each stage.
+ * <p>
+ * With -Dinventory.journalPort set, the changes are also shipped over TCP to standby
+ * processes ready to take over, see JournalShipper.
+ * <p>
+ * With -Dinventory.scanPort or -Dinventory.scanFile set, barcode scans are taken from that
+ * port or appended file and applied to part stock once per -Dinventory.scanWindow
+ * milliseconds, see ScanIngest.
+ * <p>
+ * Each request runs on its own thread. Virtual threads are used when the JDK provides them
+ * and a cached pool of platform threads otherwise, so the server builds for Java 15.
+ * @author Alex Hanson
+ */
+public class InventoryServer {
+
+    final private static int DEFAULT_PORT = 8080;
+    // Connections waiting to be accepted, sized for bursts of thousands of clients.
+    final private static int BACKLOG = 4096;
+
+    final private HttpServer server;
+    final private ExecutorService executor;
+
+    // Server settings read once when HttpServer loads, unless set on the command line.
+    static {
+        // Headers and body go out in separate writes, with Nagle's algorithm each small
+        // response waits on the client's delayed ACK, some 40 ms.
+        defaultProperty("sun.net.httpserver.nodelay", "true");
+        // By default only 200 idle keep-alive connections are kept, beyond that they are
+        // closed under clients that are about to reuse them.
+        defaultProperty("sun.net.httpserver.maxIdleConnections", Integer.toString(BACKLOG));
+    }
+
+    /**
+     * Constructor: Binds the server, call start() to begin serving.
+     * @param port The port to listen on, 0 for any free port.
+     * @throws IOException Thrown if the port cannot be bound.
+     */
+    public InventoryServer(int port) throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        executor = Threads.newThreadPerTaskExecutor("inventory-request");
+
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Program entry for headless mode.
+     * @param args Optionally the port to listen on.
+     * @throws IOException Thrown if the port cannot be bound.
+     */
+    public static void main(String[] args) throws IOException {
+
+        InventoryServer server = new InventoryServer(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
+        server.start();
+
+        System.out.println("Inventory server listening on port " + server.getPort());
+
+        Integer journalPort = Integer.getInteger("inventory.journalPort");
+
+        if(journalPort != null) {
+            JournalShipper shipper = new JournalShipper(journalPort);
+            shipper.start();
+
+            System.out.println("Shipping the journal on port " + shipper.getPort());
+        }
+
+        Integer scanPort = Integer.getInteger("inventory.scanPort");
+        String scanFile = System.getProperty("inventory.scanFile");
+
+        if(scanPort != null || scanFile != null) {
+            ScanIngest scans = new ScanIngest(Long.getLong("inventory.scanWindow", ScanIngest.DEFAULT_WINDOW));
+
+            if(scanPort != null)
+                System.out.println("Taking scans on port " + scans.listen(scanPort));
+
+            if(scanFile != null) {
+                scans.tail(Paths.get(scanFile));
+                System.out.println("Taking scans appended to " + scanFile);
+            }
+        }
+    }
+
+    /**
+     * Begins serving requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waiting up to delay seconds for those in progress.
+     * @param delay The most seconds to wait.
+     */
+    public void stop(int delay) {
+
+        server.stop(delay);
+        // Interrupts change feed streams waiting for changes.
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private static void defaultProperty(String key, String value) {
+
+        if(System.getProperty(key) == null)
+            System.setProperty(key, value);
+    }
+
+    /********* Routing *********/
+
+    // Failure of a request, reported with its status code.
+    private static final class Status extends RuntimeException {
+
+        final private static long serialVersionUID = 1L;
+
+        final private int code;
+
+        Status(int code, String message) {
+            super(message, null, false, false);
+            this.code = code;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        if(exchange.getRequestURI().getPath().equals("/changes") && exchange.getRequestMethod().equals("GET")) {
+            streamChanges(exchange);
+            return;
+        }
+
+        if(exchange.getRequestURI().getPath().equals("/import") && exchange.getRequestMethod().equals("POST")) {
+            importRecords(exchange);
+            return;
+        }
+
+        int code = 200;
+        String response;
+
+        try {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Json json = new Json();
+
+            code = route(exchange, path, body(exchange), json);
+            response = code == 204 ? null : json.toString();
+        } catch(Status e) {
+            code = e.code;
+            response = error(e.getMessage());
+        } catch(IllegalArgumentException e) {
+            code = 400;
+            response = error(e.getMessage());
+        } catch(RuntimeException e) {
+            code = 500;
+            response = error(e.toString());
+        }
+
+        respond(exchange, code, response);
+    }
+
+    // Dispatches on the path segments, path[0] is the empty segment before the first slash.
+    private int route(HttpExchange exchange, String[] path, Map<String, String> body, Json json) {
+
+        String method = exchange.getRequestMethod();
+        boolean parts = path.length > 1 && path[1].equals("parts");
+        boolean products = path.length > 1 && path[1].equals("products");
+
+        if(!parts && !products)
+            throw new Status(404, "No such resource");
+
+        if(path.length == 2) {
+            if(method.equals("GET"))
+                return parts ? listParts(exchange, json) : listProducts(exchange, json);
+            if(method.equals("POST"))
+                return parts ? createPart(body, json) : createProduct(body, json);
+            throw new Status(405, method + " not allowed");
+        }
+
+        int id = pathId(path[2]);
+
+        if(path.length == 3) {
+            switch(method) {
+                case "GET":
+                    if(parts)
+                        json.part(findPart(id));
+                    else
+                        json.product(findProduct(id));
+                    return 200;
+                case "PUT":
+                    return parts ? updatePart(id, exchange, body, json) : updateProduct(id, exchange, body, json);
+                case "DELETE":
+                    return parts ? deletePart(id) : deleteProduct(id);
+                default:
+                    throw new Status(405, method + " not allowed");
+            }
+        }
+
+        if(path.length == 4 && path[3].equals("stock")) {
+            if(!method.equals("POST"))
+                throw new Status(405, method + " not allowed");
+
+            int delta = integer(body, "delta");
+            int stock;
+
+            // Unknown ids and overdrawn stock both surface as IllegalArgumentException.
+            if(parts ? Inventory.lookupPart(id) == null : Inventory.lookupProduct(id) == null)
+                throw new Status(404, "No " + path[1].substring(0, path[1].length() - 1) + " with id " + id);
+
+            try {
+                stock = parts ? Inventory.adjustPartStock(id, delta) : Inventory.adjustProductStock(id, delta);
+            } catch(IllegalArgumentException e) {
+                throw new Status(409, e.getMessage());
+            }
+
+            json.beginObject().name("id").value(id).name("stock").value(stock).endObject();
+            return 200;
+        }
+
+        if(products && path.length == 5 && path[3].equals("parts"))
+            return association(findProduct(id), pathId(path[4]), exchange, body, json);
+
+        throw new Status(404, "No such resource");
+    }
+
+    /********* Parts *********/
+
+    // Searches lock each partition only while reading it, and the rows found are copied so
+    // that no lock is held while they are written out.
+    private int listParts(HttpExchange exchange, Json json) {
+
+        String name = query(exchange, "name");
+        String q = query(exchange, "q");
+        List<Snapshot.PartRow> found;
+
+        if(q != null)
+            found = Inventory.copyParts(Inventory.lookupPart(rangeQuery(q)));
+        else if(name != null)
+            found = Inventory.copyParts(Inventory.lookupPart(name));
+        else
+            found = Inventory.copyParts();
+
+        json.beginArray();
+
+        for(Snapshot.PartRow part : found)
+            json.part(part);
+
+        json.endArray();
+        return 200;
+    }
+
+    private int createPart(Map<String, String> fields, Json json) {
+
+        // Each id is given out once, so concurrent creates do not need a lock.
+        Part part = newPart(Inventory.nextPartId(), fields);
+        Inventory.addPart(part);
+
+        json.part(part);
+        return 201;
+    }
+
+    private int updatePart(int id, HttpExchange exchange, Map<String, String> body, Json json) {
+
+        Part part = newPart(id, body);
+        long expected = ifMatch(exchange);
+
+        // Without If-Match the update is based on whatever is held when it applies.
+        while(true) {
+            Part held = findPart(id);
+
+            if(Inventory.updatePart(part, expected < 0 ? held.getVersion() : expected))
+                break;
+            if(expected >= 0)
+                throw new Status(409, "Part " + id + " changed since version " + expected);
+        }
+
+        json.part(part);
+        return 200;
+    }
+
+    // A product in another partition may take the part up between the check and the delete,
+    // it then counts the part as it counts any part not held, without stock or price.
+    private int deletePart(int id) {
+
+        if(Inventory.isPartInUse(id))
+            throw new Status(409, "Part " + id + " is associated with a product");
+        if(!Inventory.deletePart(findPart(id)))
+            throw new Status(404, "No part with id " + id);
+
+        return 204;
+    }
+
+    // Builds a part from request fields, validated as the part form validates them. Shared
+    // with IngestPipeline.
+    static Part newPart(int id, Map<String, String> fields) {
+
+        InventoryValidator v = validate(fields);
+        String name = fields.get("name");
+
+        if(fields.containsKey("companyName")) {
+            String company = fields.get("companyName");
+
+            if(company == null || company.isEmpty())
+                throw new IllegalArgumentException("companyName must not be empty");
+
+            return new Outsourced(id, name, v.getPrice(), v.getStock(), v.getMin(), v.getMax(), company);
+        }
+
+        int machineId = InventoryValidator.parseCount(fields.get("machineId"));
+
+        if(machineId < 0)
+            throw new IllegalArgumentException("machineId or companyName is required");
+
+        return new InHouse(id, name, v.getPrice(), v.getStock(), v.getMin(), v.getMax(), machineId);
+    }
+
+    /********* Products *********/
+
+    // See listParts().
+    private int listProducts(HttpExchange exchange, Json json) {
+
+        String name = query(exchange, "name");
+        String q = query(exchange, "q");
+        List<Snapshot.ProductRow> found;
+
+        if(q != null)
+            found = Inventory.copyProducts(Inventory.lookupProduct(rangeQuery(q)));
+        else if(name != null)
+            found = Inventory.copyProducts(Inventory.lookupProduct(name));
+        else
+            found = Inventory.copyProducts();
+
+        json.beginArray();
+
+        for(Snapshot.ProductRow product : found)
+            json.product(product);
+
+        json.endArray();
+        return 200;
+    }
+
+    private int createProduct(Map<String, String> fields, Json json) {
+
+        InventoryValidator v = validate(fields);
+        Product product = new Product(Inventory.nextProductId(), fields.get("name"), v.getPrice(),
+                                      v.getStock(), v.getMin(), v.getMax());
+
+        Inventory.addProduct(product);
+        json.product(product);
+        return 201;
+    }
+
+    // Updates the held product in place so that its associations are kept, as ProductForm does.
+    private int updateProduct(int id, HttpExchange exchange, Map<String, String> body, Json json) {
+
+        InventoryValidator v = validate(body);
+        long expected = ifMatch(exchange);
+        Product product;
+
+        // The fields are set with the product's partition locked, so they are committed together.
+        Inventory.lockPartition(id);
+
+        try {
+            product = findProduct(id);
+
+            // Setting the stock first claims the version, a concurrent change makes it fail.
+            if(!product.compareAndSetStock(expected < 0 ? product.getVersion() : expected, v.getStock()))
+                throw new Status(409, "Product " + id + " changed since version " + expected);
+
+            product.setName(body.get("name"));
+            product.setPrice(v.getPrice());
+            product.setMin(v.getMin());
+            product.setMax(v.getMax());
+        } finally {
+            Inventory.unlockPartition(id);
+        }
+
+        json.product(product);
+        return 200;
+    }
+
+    // See deletePart(), a product containing this one meanwhile counts it as not held.
+    private int deleteProduct(int id) {
+
+        if(!Inventory.lookupProductsContaining(id).isEmpty())
+            throw new Status(409, "Product " + id + " is a sub-assembly of another product");
+        if(!Inventory.deleteProduct(findProduct(id)))
+            throw new Status(404, "No product with id " + id);
+
+        return 204;
+    }
+
+    private int association(Product product, int partId, HttpExchange exchange, Map<String, String> body, Json json) {
+
+        switch(exchange.getRequestMethod()) {
+            case "PUT":
+                int quantity = integer(body, "quantity");
+                product.addAssociatedPart(findPart(partId), quantity);
+                break;
+            case "DELETE":
+                if(!product.deleteAssociatedPart(findPart(partId)))
+                    throw new Status(404, "Part " + partId + " is not associated with product " + product.getId());
+                break;
+            default:
+                throw new Status(405, exchange.getRequestMethod() + " not allowed");
+        }
+
+        json.product(product);
+        return 200;
+    }
+
+    /********* Change feed *********/
+
+    // Milliseconds without changes after which a comment is sent to keep the stream open.
+    final private static long KEEP_ALIVE = 15_000;
+    final private static byte[] KEEP_ALIVE_EVENT = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    // Streams changes until the client disconnects or the server stops.
+    private void streamChanges(HttpExchange exchange) throws IOException {
+
+        String since = query(exchange, "since");
+        String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        // -1 when the client has no changes yet.
+        long after = InventoryValidator.parseCount(lastEventId != null ? lastEventId : since, Long.MAX_VALUE);
+        ChangeFeed feed = Inventory.getChangeFeed();
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+
+        try(OutputStream out = exchange.getResponseBody()) {
+            while(true) {
+                List<ChangeFeed.Change> changes = after >= 0 ? feed.read(after, KEEP_ALIVE) : null;
+
+                if(changes == null) {
+                    // New or too far behind: send everything as it stands.
+                    changes = new ArrayList<>();
+                    after = Inventory.snapshot(changes);
+                    out.write(new ChangeFeed.Change(after, "reset", "{}").toEvent());
+                } else if(changes.isEmpty()) {
+                    out.write(KEEP_ALIVE_EVENT);
+                } else {
+                    after = changes.get(changes.size() - 1).getSequence();
+                }
+
+                for(ChangeFeed.Change change : changes)
+                    out.write(change.toEvent());
+
+                out.flush();
+            }
+        } catch(IOException | InterruptedException e) {
+            // The client went away or the server is stopping.
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /********* Import *********/
+
+    // Applies the records of the body as they arrive, see IngestPipeline.
+    private void importRecords(HttpExchange exchange) throws IOException {
+
+        IngestPipeline pipeline = new IngestPipeline();
+        int code = 200;
+        String response;
+
+        try {
+            pipeline.run(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+
+            Json json = new Json().beginObject()
+                    .name("applied").value(pipeline.getApplied())
+                    .name("duplicates").value(pipeline.getDuplicates())
+                    .name("rejected").value(pipeline.getRejected())
+                    .name("rejections").beginArray();
+
+            for(IngestPipeline.Rejection rejection : pipeline.getRejections())
+                json.beginObject().name("line").value(rejection.getLine()).name("reason").value(rejection.getReason()).endObject();
+
+            json.endArray().name("stages").beginArray();
+
+            for(IngestPipeline.Stage stage : pipeline.getStages()) {
+                json.beginObject()
+                    .name("name").value(stage.getName())
+                    .name("processed").value(stage.getProcessed())
+                    .name("throughput").value(stage.getThroughput())
+                    .name("busyMillis").value(stage.getBusyNanos() / 1_000_000)
+                    .name("blockedMillis").value(stage.getBlockedNanos() / 1_000_000)
+                    .name("queueCapacity").value(stage.getQueueCapacity())
+                    .endObject();
+            }
+
+            response = json.endArray().endObject().toString();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            code = 503;
+            response = error("Import interrupted");
+        } catch(RuntimeException e) {
+            code = 500;
+            response = error(e.toString());
+        }
+
+        respond(exchange, code, response);
+    }
+
+    /********* Request helpers *********/
+
+    private static Part findPart(int id) {
+
+        Part part = Inventory.lookupPart(id);
+
+        if(part == null)
+            throw new Status(404, "No part with id " + id);
+
+        return part;
+    }
+
+    private static Product findProduct(int id) {
+
+        Product product = Inventory.lookupProduct(id);
+
+        if(product == null)
+            throw new Status(404, "No product with id " + id);
+
+        return product;
+    }
+
+    // Validates the fields the part and product forms share, shared with IngestPipeline.
+    static InventoryValidator validate(Map<String, String> fields) {
+
+        InventoryValidator v = new InventoryValidator();
+        int errors = v.validate(fields.get("name"), fields.get("price"), fields.get("stock"),
+                                fields.get("min"), fields.get("max"));
+
+        if(errors != 0)
+            throw new IllegalArgumentException(describe(errors));
+
+        return v;
+    }
+
+    private static String describe(int errors) {
+
+        List<String> problems = new ArrayList<>();
+
+        if((errors & InventoryValidator.NAME) != 0)
+            problems.add("name is required");
+        if((errors & InventoryValidator.PRICE) != 0)
+            problems.add("price must be a non-negative number");
+        if((errors & InventoryValidator.STOCK) != 0)
+            problems.add("stock must be a non-negative integer");
+        if((errors & InventoryValidator.MIN) != 0)
+            problems.add("min must be a non-negative integer");
+        if((errors & InventoryValidator.MAX) != 0)
+            problems.add("max must be a non-negative integer");
+        if((errors & InventoryValidator.MIN_OVER_MAX) != 0)
+            problems.add("min must not exceed max");
+        if((errors & InventoryValidator.STOCK_OUT_OF_RANGE) != 0)
+            problems.add("stock must be between min and max");
+
+        return String.join(", ", problems);
+    }
+
+    private static int integer(Map<String, String> fields, String name) {
+
+        String text = fields.get(name);
+        boolean negative = text != null && text.startsWith("-");
+        int value = InventoryValidator.parseCount(negative ? text.substring(1) : text);
+
+        if(value < 0)
+            throw new IllegalArgumentException(name + " must be an integer");
+
+        return negative ? -value : value;
+    }
+
+    private static int pathId(String segment) {
+
+        int id = InventoryValidator.parseCount(segment);
+
+        if(id < 0)
+            throw new Status(404, "No such resource");
+
+        return id;
+    }
+
+    private static RangeQuery rangeQuery(String text) {
+
+        RangeQuery query = RangeQuery.parse(text);
+
+        if(query == null)
+            throw new IllegalArgumentException("Not a range query: " + text);
+
+        return query;
+    }
+
+    // The version in an If-Match header, -1 if there is none.
+    private static long ifMatch(HttpExchange exchange) {
+
+        String tag = exchange.getRequestHeaders().getFirst("If-Match");
+
+        if(tag == null)
+            return -1;
+
+        long version = InventoryValidator.parseCount(tag.replace("\"", "").trim(), StockStamp.MAX_VERSION);
+
+        if(version < 0)
+            throw new IllegalArgumentException("If-Match must be a version number");
+
+        return version;
+    }
+
+    // The decoded value of a query parameter, null if absent.
+    private static String query(HttpExchange exchange, String name) {
+
+        String query = exchange.getRequestURI().getRawQuery();
+
+        if(query == null)
+            return null;
+
+        for(String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+
+            if(key.equals(name))
+                return URLDecoder.decode(eq < 0 ? "" : pair.substring(eq + 1), StandardCharsets.UTF_8);
+        }
+
+        return null;
+    }
+
+    // The fields of a POST or PUT body, empty for other methods.
+    private static Map<String, String> body(HttpExchange exchange) throws IOException {
+
+        String method = exchange.getRequestMethod();
+
+        if(!method.equals("POST") && !method.equals("PUT"))
+            return Collections.emptyMap();
+
+        try(InputStream in = exchange.getRequestBody()) {
+            return Json.parseObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String error(String message) {
+        return new Json().beginObject().name("error").value(message).endObject().toString();
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+
+        if(body == null) {
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
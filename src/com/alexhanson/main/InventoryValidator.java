@@ -0,0 +1,278 @@
+
+package com.alexhanson.main;
+
+/**
+ * The validation rules shared by all inventory items, usable with or without a form.
+ * A validator holds the last parsed value of each field so that a change to one field only
+ * re-parses that field, while checks spanning several fields run against the held values.
+ * Parsing never throws and, for prices of up to 15 digits, does not allocate, so one
+ * instance can validate imported rows at a high rate. Instances are not thread safe, use one per thread.
+ * @author Alex Hanson
+ */
+public class InventoryValidator {
+
+    /** Field and error flag: name is blank. */
+    final public static int NAME = 1;
+    /** Field and error flag: price is not a non-negative decimal number. */
+    final public static int PRICE = 1 << 1;
+    /** Field and error flag: stock is not a non-negative integer. */
+    final public static int STOCK = 1 << 2;
+    /** Field and error flag: min is not a non-negative integer. */
+    final public static int MIN = 1 << 3;
+    /** Field and error flag: max is not a non-negative integer. */
+    final public static int MAX = 1 << 4;
+    /** Error flag: min is greater than max. */
+    final public static int MIN_OVER_MAX = 1 << 5;
+    /** Error flag: stock is outside of the min to max range. */
+    final public static int STOCK_OUT_OF_RANGE = 1 << 6;
+    /** All field flags. */
+    final public static int ALL_FIELDS = NAME | PRICE | STOCK | MIN | MAX;
+
+    // Powers of ten exactly representable as doubles, dividing a price's digits by them
+    // gives the correctly rounded value.
+    final private static double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                                                   1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    // Last parsed field values, negative or NaN when invalid.
+    private boolean name;
+    private double price = Double.NaN;
+    private int stock = -1;
+    private int min = -1;
+    private int max = -1;
+
+    /**
+     * Parses a new value for one field.
+     * @param field One of NAME, PRICE, STOCK, MIN or MAX.
+     * @param text The field's text.
+     * @return The errors of the item after the change, see errors().
+     */
+    public int set(int field, CharSequence text) {
+
+        switch(field) {
+            case NAME:
+                name = text != null && text.length() > 0;
+                break;
+            case PRICE:
+                price = parsePrice(text);
+                break;
+            case STOCK:
+                stock = parseCount(text);
+                break;
+            case MIN:
+                min = parseCount(text);
+                break;
+            case MAX:
+                max = parseCount(text);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+
+        return errors();
+    }
+
+    /**
+     * Parses every field of an item, intended for bulk validation of imported rows.
+     * @param name The item's name.
+     * @param price The item's price.
+     * @param stock The quantity on hand.
+     * @param min The minimum allowable quantity on hand.
+     * @param max The maximum allowable quantity on hand.
+     * @return The errors of the item, see errors().
+     */
+    public int validate(CharSequence name, CharSequence price, CharSequence stock,
+                        CharSequence min, CharSequence max) {
+
+        set(NAME, name);
+        set(PRICE, price);
+        set(STOCK, stock);
+        set(MIN, min);
+
+        return set(MAX, max);
+    }
+
+    /**
+     * The range checks involving min, max and stock only run when all three are valid.
+     * @return Bitwise or of the error flags that apply to the held values, 0 if the item is valid.
+     */
+    public int errors() {
+
+        int errors = 0;
+
+        if(!name)
+            errors |= NAME;
+        if(Double.isNaN(price))
+            errors |= PRICE;
+        if(stock < 0)
+            errors |= STOCK;
+        if(min < 0)
+            errors |= MIN;
+        if(max < 0)
+            errors |= MAX;
+
+        if((errors & (STOCK | MIN | MAX)) == 0) {
+            if(min > max)
+                errors |= MIN_OVER_MAX;
+            else if(stock > max || stock < min)
+                errors |= STOCK_OUT_OF_RANGE;
+        }
+
+        return errors;
+    }
+
+    /**
+     * @return The last parsed price, NaN if invalid.
+     */
+    public double getPrice() {
+        return price;
+    }
+
+    /**
+     * @return The last parsed stock, -1 if invalid.
+     */
+    public int getStock() {
+        return stock;
+    }
+
+    /**
+     * @return The last parsed min, -1 if invalid.
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * @return The last parsed max, -1 if invalid.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /********* Exception free parsing. *********/
+
+    /**
+     * Parses a non-negative integer made up only of decimal digits.
+     * @param text The text to parse.
+     * @return The value, or -1 if text is empty, not all digits, or larger than Integer.MAX_VALUE.
+     */
+    public static int parseCount(CharSequence text) {
+        return (int) parseCount(text, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses a non-negative integer made up only of decimal digits, up to a limit.
+     * @param text The text to parse.
+     * @param max The largest value accepted, not negative.
+     * @return The value, or -1 if text is empty, not all digits, or larger than max.
+     */
+    public static long parseCount(CharSequence text, long max) {
+
+        if(text == null || text.length() == 0)
+            return -1;
+
+        int start = text.charAt(0) == '+' ? 1 : 0;
+
+        if(start == text.length())
+            return -1;
+
+        long value = 0;
+
+        for(int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if(c < '0' || c > '9')
+                return -1;
+
+            // Checked before multiplying, so a limit near Long.MAX_VALUE cannot overflow.
+            if(value > (max - (c - '0')) / 10)
+                return -1;
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+    /**
+     * Checks that text is an optionally signed integer in the range of an int.
+     * @param text The text to check.
+     * @return True if text can be converted to an int, false otherwise.
+     */
+    public static boolean isInteger(CharSequence text) {
+
+        if(text == null || text.length() == 0)
+            return false;
+
+        boolean negative = text.charAt(0) == '-';
+        int start = negative || text.charAt(0) == '+' ? 1 : 0;
+
+        if(start == text.length())
+            return false;
+
+        long value = 0;
+
+        for(int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if(c < '0' || c > '9')
+                return false;
+
+            value = value * 10 + (c - '0');
+
+            if(value > (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses a non-negative decimal number of the form digits[.digits], either side of the
+     * point may be empty but not both. The format is checked before conversion, so conversion
+     * itself cannot fail. Prices whose digits fit in a double exactly, up to 15 of them, are
+     * converted in place, longer ones by Double.parseDouble().
+     * @param text The text to parse.
+     * @return The value, or NaN if text is not in the accepted form.
+     */
+    public static double parsePrice(CharSequence text) {
+
+        if(text == null || text.length() == 0)
+            return Double.NaN;
+
+        int start = text.charAt(0) == '+' ? 1 : 0;
+        boolean digits = false;
+        boolean point = false;
+        // The digits as an integer, and the number of them after the point.
+        long mantissa = 0;
+        int decimals = 0;
+
+        for(int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if(c >= '0' && c <= '9') {
+                digits = true;
+
+                if(mantissa <= Long.MAX_VALUE / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    decimals += point ? 1 : 0;
+                } else {
+                    // Too long to convert in place, see below.
+                    mantissa = Long.MAX_VALUE;
+                }
+            } else if(c == '.' && !point) {
+                point = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+
+        if(!digits)
+            return Double.NaN;
+
+        // Both exact as doubles, so their quotient is rounded once, as parseDouble() rounds.
+        if(mantissa < 1L << 53 && decimals < POWERS_OF_TEN.length)
+            return mantissa / POWERS_OF_TEN[decimals];
+
+        return Double.parseDouble(text.toString());
+    }
+}
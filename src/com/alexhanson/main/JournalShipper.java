@@ -0,0 +1,291 @@
+
+package com.alexhanson.main;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Primary side of journal shipping: streams the change feed of Inventory to standby
+ * processes over TCP, each of which keeps a copy of Inventory ready to take over, see
+ * JournalStandby. Enable it on a server with -Dinventory.journalPort.
+ * <p>
+ * A standby opens the connection with the line "since sequence", -1 when it holds nothing,
+ * and is then sent the changes after that sequence as the change feed serves them, encoded
+ * as the server-sent events of /changes so both share one encoding of each change. A standby
+ * that is new or too far behind first receives a "reset" event followed by every record,
+ * see InventoryServer. When nothing changes for a while a "heartbeat" event carries the
+ * sequence the standby is current to. The standby answers with the line "ack sequence" once
+ * it applied the changes up to that sequence.
+ * <p>
+ * The acknowledgements give the replication lag: the changes sent and not yet applied by a
+ * standby, and the time the oldest of them has been waiting. A standby promoted after the
+ * primary failed holds everything up to its last acknowledgement, so callers needing a bound
+ * on the changes lost can wait for them with awaitReplicated().
+ * @author Alex Hanson
+ */
+public class JournalShipper {
+
+    // Milliseconds without changes after which a heartbeat is sent.
+    final private static long HEARTBEAT = 100;
+
+    // One connected standby.
+    private final class Link {
+
+        final private Socket socket;
+        // Sequence of the last change the standby applied, -1 before the first.
+        private volatile long acked = -1;
+        // Sequences sent and not acknowledged, with the System.nanoTime() they were sent at,
+        // guarded by this.
+        final private ArrayDeque<long[]> sent = new ArrayDeque<>();
+
+        Link(Socket socket) {
+            this.socket = socket;
+        }
+
+        synchronized void sent(long sequence) {
+            sent.add(new long[] {sequence, System.nanoTime()});
+        }
+
+        void acked(long sequence) {
+
+            synchronized(this) {
+                while(!sent.isEmpty() && sent.peek()[0] <= sequence)
+                    sent.poll();
+            }
+
+            acked = sequence;
+
+            synchronized(JournalShipper.this) {
+                JournalShipper.this.notifyAll();
+            }
+        }
+
+        // Nanoseconds the oldest change not acknowledged has waited, 0 if there is none.
+        synchronized long waiting(long now) {
+            return sent.isEmpty() ? 0 : now - sent.peek()[1];
+        }
+    }
+
+    final private ServerSocket server;
+    final private ExecutorService executor;
+    final private List<Link> links = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+
+    /**
+     * Constructor: Binds the journal port, call start() to begin shipping.
+     * @param port The port to listen on, 0 for any free port.
+     * @throws IOException Thrown if the port cannot be bound.
+     */
+    public JournalShipper(int port) throws IOException {
+
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(port));
+        executor = Threads.newThreadPerTaskExecutor("journal-shipper");
+    }
+
+    /**
+     * Begins accepting standbys.
+     */
+    public synchronized void start() {
+
+        if(running)
+            return;
+
+        running = true;
+        executor.execute(this::accept);
+    }
+
+    /**
+     * Disconnects the standbys and closes the journal port.
+     */
+    public synchronized void stop() {
+
+        running = false;
+        close(server);
+
+        for(Link link : links)
+            close(link.socket);
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The port standbys connect to.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return The number of standbys connected.
+     */
+    public int getStandbyCount() {
+        return links.size();
+    }
+
+    /**
+     * @return The sequence of the last change applied by every connected standby, -1 if
+     * there is no standby or one has applied nothing yet.
+     */
+    public long getReplicatedSequence() {
+
+        long replicated = Long.MAX_VALUE;
+
+        for(Link link : links)
+            replicated = Math.min(replicated, link.acked);
+
+        return links.isEmpty() ? -1 : replicated;
+    }
+
+    /**
+     * @return The most changes a connected standby has still to apply, 0 without standbys.
+     */
+    public long getLagChanges() {
+
+        long last = Inventory.getChangeFeed().getLastSequence();
+        long lag = 0;
+
+        for(Link link : links)
+            lag = Math.max(lag, last - Math.max(link.acked, 0));
+
+        return lag;
+    }
+
+    /**
+     * @return The most milliseconds a change sent to a connected standby has waited to be
+     * applied, 0 if every change sent was applied.
+     */
+    public double getLagMillis() {
+
+        long now = System.nanoTime();
+        long lag = 0;
+
+        for(Link link : links)
+            lag = Math.max(lag, link.waiting(now));
+
+        return lag / 1e6;
+    }
+
+    /**
+     * Waits until every connected standby applied the changes up to a sequence, such as the
+     * last of a batch of changes that must survive a failover.
+     * @param sequence The sequence of the change, see ChangeFeed.getLastSequence().
+     * @param timeout The most milliseconds to wait.
+     * @return True if a standby is connected and every standby applied the change in time.
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting.
+     */
+    public synchronized boolean awaitReplicated(long sequence, long timeout) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while(getReplicatedSequence() < sequence) {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if(remaining <= 0)
+                return false;
+
+            wait(remaining);
+        }
+
+        return true;
+    }
+
+    // Accepts standbys until stopped, each shipped to by a task of its own.
+    private void accept() {
+
+        while(running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> ship(new Link(socket)));
+            } catch(IOException e) {
+                // The port was closed by stop(), or the connection failed before it was accepted.
+            }
+        }
+    }
+
+    // Reads the standby's position, then streams changes until it disconnects or the
+    // shipper stops. Acknowledgements are read by a second task.
+    private void ship(Link link) {
+
+        ChangeFeed feed = Inventory.getChangeFeed();
+
+        try(Socket socket = link.socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            String since = in.readLine();
+
+            if(since == null || !since.startsWith("since "))
+                return;
+
+            long after = Long.parseLong(since.substring(6).trim());
+
+            links.add(link);
+            executor.execute(() -> readAcks(link, in));
+
+            while(running) {
+                List<ChangeFeed.Change> changes = after >= 0 ? feed.read(after, HEARTBEAT) : null;
+
+                if(changes == null) {
+                    // New or too far behind: send everything as it stands.
+                    changes = new ArrayList<>();
+                    after = Inventory.snapshot(changes);
+                    out.write(new ChangeFeed.Change(after, "reset", "{}").toEvent());
+                    link.sent(after);
+                } else if(changes.isEmpty()) {
+                    out.write(new ChangeFeed.Change(after, "heartbeat", "{}").toEvent());
+                } else {
+                    after = changes.get(changes.size() - 1).getSequence();
+                    link.sent(after);
+                }
+
+                for(ChangeFeed.Change change : changes)
+                    out.write(change.toEvent());
+
+                out.flush();
+            }
+        } catch(IOException | NumberFormatException | InterruptedException e) {
+            // The standby went away or the shipper is stopping.
+        } finally {
+            links.remove(link);
+        }
+    }
+
+    private void readAcks(Link link, BufferedReader in) {
+
+        try {
+            String line;
+
+            while((line = in.readLine()) != null) {
+                if(line.startsWith("ack "))
+                    link.acked(Long.parseLong(line.substring(4).trim()));
+            }
+        } catch(IOException | NumberFormatException e) {
+            // The standby went away, ship() ends on its next write.
+        } finally {
+            close(link.socket);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+
+        try {
+            closeable.close();
+        } catch(IOException e) {
+            // Closing is all that was wanted.
+        }
+    }
+}
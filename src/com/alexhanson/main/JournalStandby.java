@@ -0,0 +1,288 @@
+
+package com.alexhanson.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Standby side of journal shipping: keeps this process's Inventory in step with a primary
+ * by applying the changes its JournalShipper streams, so that it can take over if the primary
+ * fails. Changes are applied as ChangeFeedClient applies them and acknowledged once applied,
+ * which lets the primary measure how far the standby lags. After a disconnect the standby
+ * reconnects and resumes from the last change it received.
+ * <p>
+ * Run headless with "java com.alexhanson.main.JournalStandby host:port [server port]". The
+ * standby reads commands from standard input: "status" reports its position, and "promote"
+ * stops following the primary, reports the last change applied and, given a server port,
+ * serves Inventory over HTTP from then on, see InventoryServer.
+ * @author Alex Hanson
+ */
+public class JournalStandby {
+
+    final private static long MIN_BACKOFF = 100;
+    final private static long MAX_BACKOFF = 5_000;
+
+    final private String host;
+    final private int port;
+    final private Executor applier;
+
+    // Sequence of the last change handed to the applier, -1 before the first.
+    private volatile long receivedSequence = -1;
+    // Sequence of the last change applied and acknowledged, -1 before the first.
+    private volatile long appliedSequence = -1;
+    private volatile boolean running;
+    private Thread thread;
+    // The open connection, closed by stop() to end a blocked read.
+    private volatile Socket socket;
+    // Writes acknowledgements to the open connection, guarded by this.
+    private Writer acks;
+
+    /**
+     * Constructor: Initializes a standby, call start() to begin following.
+     * @param host The primary's host.
+     * @param port The primary's journal port, see JournalShipper.
+     * @param applier Runs the batches of changes against Inventory, in order.
+     */
+    public JournalStandby(String host, int port, Executor applier) {
+
+        this.host = host;
+        this.port = port;
+        this.applier = applier;
+    }
+
+    /**
+     * Program entry for a headless standby.
+     * @param args The primary's host:port, and optionally the port to serve on once promoted.
+     * @throws Exception Thrown if the server cannot bind its port once promoted.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if(args.length < 1 || args[0].lastIndexOf(':') < 0) {
+            System.err.println("Usage: JournalStandby host:port [server port]");
+            System.exit(2);
+        }
+
+        String address = args[0];
+        int colon = address.lastIndexOf(':');
+        ExecutorService applier = Executors.newSingleThreadExecutor();
+        JournalStandby standby = new JournalStandby(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), applier);
+        InventoryServer server = null;
+
+        standby.start();
+        System.out.println("Standby following " + address);
+
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String command;
+
+        while((command = commands.readLine()) != null) {
+            switch(command.trim()) {
+                case "status":
+                    System.out.println("status " + applier.submit(standby::status).get());
+                    break;
+                case "promote":
+                    long sequence = standby.promote(30_000);
+                    System.out.println("promoted at " + sequence + " " + applier.submit(standby::status).get());
+
+                    if(args.length > 1 && server == null) {
+                        server = new InventoryServer(Integer.parseInt(args[1]));
+                        server.start();
+                        System.out.println("Inventory server listening on port " + server.getPort());
+                    }
+                    break;
+                default:
+                    System.out.println("Unknown command " + command);
+            }
+        }
+
+        // A promoted standby keeps serving, otherwise closing the input ends it.
+        if(server == null)
+            System.exit(0);
+    }
+
+    /**
+     * Begins following the primary on a background thread.
+     */
+    public synchronized void start() {
+
+        if(running)
+            return;
+
+        running = true;
+        thread = new Thread(this::follow, "journal-standby");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops following the primary. Changes already handed to the applier are still applied.
+     */
+    public synchronized void stop() {
+
+        running = false;
+
+        if(thread != null)
+            thread.interrupt();
+
+        try {
+            if(socket != null)
+                socket.close();
+        } catch(IOException e) {
+            // Closing is all that was wanted.
+        }
+    }
+
+    /**
+     * Stops following the primary and waits for the changes received to be applied, after
+     * which this process's Inventory may be changed and served as the primary's was.
+     * @param timeout The most milliseconds to wait for the changes received to be applied.
+     * @return The sequence of the last change applied, -1 if none was.
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting.
+     */
+    public long promote(long timeout) throws InterruptedException {
+
+        stop();
+
+        if(thread != null)
+            thread.join(timeout);
+
+        // The applier runs batches in order, this one follows every batch handed over.
+        CountDownLatch applied = new CountDownLatch(1);
+        applier.execute(applied::countDown);
+        applied.await(timeout, TimeUnit.MILLISECONDS);
+
+        return appliedSequence;
+    }
+
+    /**
+     * @return The sequence of the last change handed to the applier, -1 if none was.
+     */
+    public long getReceivedSequence() {
+        return receivedSequence;
+    }
+
+    /**
+     * @return The sequence of the last change applied, -1 if none was.
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    // The position of the standby and a summary of the Inventory it holds, for comparing
+    // with the primary's. Run by the applier.
+    private String status() {
+
+        long stock = 0;
+
+        for(Part part : Inventory.getAllParts())
+            stock += part.getStock();
+
+        return "received=" + receivedSequence + " applied=" + appliedSequence + " parts=" + Inventory.getAllParts().size()
+               + " products=" + Inventory.getAllProducts().size() + " partStock=" + stock;
+    }
+
+    // Connects, reads changes until the connection ends, and reconnects with growing delays.
+    private void follow() {
+
+        long backoff = MIN_BACKOFF;
+
+        while(running) {
+            try(Socket connection = new Socket()) {
+                connection.connect(new InetSocketAddress(host, port));
+                connection.setTcpNoDelay(true);
+                socket = connection;
+
+                OutputStream out = connection.getOutputStream();
+                out.write(("since " + receivedSequence + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+                synchronized(this) {
+                    acks = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                }
+
+                backoff = MIN_BACKOFF;
+                read(new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8), 1 << 16));
+            } catch(IOException e) {
+                // Retried below.
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    // Parses the events, handing them to the applier in batches of what has arrived.
+    private void read(BufferedReader in) throws IOException {
+
+        List<String[]> batch = new ArrayList<>();
+        long sequence = receivedSequence;
+        String kind = null;
+        String data = null;
+        String line;
+
+        while(running && (line = in.readLine()) != null) {
+            if(line.startsWith("id: ")) {
+                // A malformed id leaves the sequence where it was.
+                long id = InventoryValidator.parseCount(line.substring(4), Long.MAX_VALUE);
+                sequence = id < 0 ? sequence : id;
+            } else if(line.startsWith("event: ")) {
+                kind = line.substring(7);
+            } else if(line.startsWith("data: ")) {
+                data = line.substring(6);
+            } else if(line.isEmpty() && kind != null) {
+                // Heartbeats only advance the sequence acknowledged.
+                if(!kind.equals("heartbeat"))
+                    batch.add(new String[] {kind, data});
+
+                kind = null;
+                data = null;
+
+                if(!in.ready()) {
+                    List<String[]> changes = batch;
+                    long last = sequence;
+
+                    applier.execute(() -> {
+                        ChangeFeedClient.apply(changes);
+                        applied(last);
+                    });
+
+                    receivedSequence = sequence;
+                    batch = new ArrayList<>();
+                }
+            }
+        }
+    }
+
+    // Records and acknowledges the changes applied up to a sequence.
+    private synchronized void applied(long sequence) {
+
+        appliedSequence = sequence;
+
+        try {
+            if(acks != null) {
+                acks.write("ack " + sequence + "\n");
+                acks.flush();
+            }
+        } catch(IOException e) {
+            // The connection was lost, the next connection resumes after the changes received.
+        }
+    }
+}
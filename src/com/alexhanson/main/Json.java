@@ -0,0 +1,482 @@
+
+package com.alexhanson.main;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The small subset of JSON spoken by InventoryServer and the change feed: a writer for
+ * responses and records, and readers for flat request bodies and for whole documents.
+ * @author Alex Hanson
+ */
+public final class Json {
+
+    final private StringBuilder out;
+    // Whether the next value in the current object or array needs a leading comma.
+    private boolean comma;
+
+    /**
+     * Constructor: Initializes an empty document.
+     */
+    public Json() {
+        out = new StringBuilder(128);
+    }
+
+    /**
+     * @return This, after opening an object.
+     */
+    public Json beginObject() {
+        return open('{');
+    }
+
+    /**
+     * @return This, after closing the current object.
+     */
+    public Json endObject() {
+        return close('}');
+    }
+
+    /**
+     * @return This, after opening an array.
+     */
+    public Json beginArray() {
+        return open('[');
+    }
+
+    /**
+     * @return This, after closing the current array.
+     */
+    public Json endArray() {
+        return close(']');
+    }
+
+    /**
+     * Writes a member name, to be followed by its value.
+     * @param name The member name.
+     * @return This.
+     */
+    public Json name(String name) {
+
+        separate();
+        quote(name);
+        out.append(':');
+        comma = false;
+
+        return this;
+    }
+
+    /**
+     * @param value A string, or null.
+     * @return This.
+     */
+    public Json value(String value) {
+
+        separate();
+
+        if(value == null)
+            out.append("null");
+        else
+            quote(value);
+
+        comma = true;
+        return this;
+    }
+
+    /**
+     * @param value A number.
+     * @return This.
+     */
+    public Json value(long value) {
+
+        separate();
+        out.append(value);
+        comma = true;
+
+        return this;
+    }
+
+    /**
+     * @param value A number, written as null if not finite.
+     * @return This.
+     */
+    public Json value(double value) {
+
+        separate();
+        out.append(Double.isFinite(value) ? Double.toString(value) : "null");
+        comma = true;
+
+        return this;
+    }
+
+    /**
+     * @param value A boolean.
+     * @return This.
+     */
+    public Json value(boolean value) {
+
+        separate();
+        out.append(value);
+        comma = true;
+
+        return this;
+    }
+
+    /**
+     * Writes a part as an object of its fields, its source and its version.
+     * @param part The part to write.
+     * @return This.
+     */
+    public Json part(Part part) {
+
+        beginObject()
+            .name("id").value(part.getId())
+            .name("name").value(part.getName())
+            .name("price").value(part.getPrice())
+            .name("stock").value(part.getStock())
+            .name("min").value(part.getMin())
+            .name("max").value(part.getMax());
+
+        if(part instanceof InHouse)
+            name("machineId").value(((InHouse) part).getMachineId());
+        else
+            name("companyName").value(((Outsourced) part).getCompanyName());
+
+        return name("version").value(part.getVersion()).endObject();
+    }
+
+    /**
+     * Writes a part as copied, see part(Part).
+     * @param part The row of the part to write.
+     * @return This.
+     */
+    public Json part(Snapshot.PartRow part) {
+
+        beginObject()
+            .name("id").value(part.getId())
+            .name("name").value(part.getName())
+            .name("price").value(part.getPrice())
+            .name("stock").value(part.getStock())
+            .name("min").value(part.getMin())
+            .name("max").value(part.getMax());
+
+        if(part.isInHouse())
+            name("machineId").value(part.getMachineId());
+        else
+            name("companyName").value(part.getCompanyName());
+
+        return name("version").value(part.getVersion()).endObject();
+    }
+
+    /**
+     * Writes a product as an object of its fields, derived values and version, with arrays
+     * "parts" and "subAssemblies" of {"id", "quantity"} objects. The product is copied with
+     * the lock of its partition held, as other threads may be changing its associations,
+     * and written after the lock is released.
+     * @param product The product to write.
+     * @return This.
+     */
+    public Json product(Product product) {
+        return product(Inventory.copyProduct(product));
+    }
+
+    /**
+     * Writes a product as copied, see product(Product).
+     * @param product The row of the product to write.
+     * @return This.
+     */
+    public Json product(Snapshot.ProductRow product) {
+
+        beginObject()
+            .name("id").value(product.getId())
+            .name("name").value(product.getName())
+            .name("price").value(product.getPrice())
+            .name("stock").value(product.getStock())
+            .name("min").value(product.getMin())
+            .name("max").value(product.getMax())
+            .name("buildable").value(product.getBuildable())
+            .name("materialCost").value(product.getMaterialCost())
+            .name("version").value(product.getVersion());
+
+        name("parts").beginArray();
+
+        for(Map.Entry<Integer, Integer> entry : product.getParts().entrySet())
+            beginObject().name("id").value(entry.getKey())
+                .name("quantity").value(entry.getValue()).endObject();
+
+        endArray().name("subAssemblies").beginArray();
+
+        for(Map.Entry<Integer, Integer> entry : product.getSubAssemblies().entrySet())
+            beginObject().name("id").value(entry.getKey())
+                .name("quantity").value(entry.getValue()).endObject();
+
+        return endArray().endObject();
+    }
+
+    /**
+     * @return The document written so far.
+     */
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    private Json open(char c) {
+
+        separate();
+        out.append(c);
+        comma = false;
+
+        return this;
+    }
+
+    private Json close(char c) {
+
+        out.append(c);
+        comma = true;
+
+        return this;
+    }
+
+    private void separate() {
+
+        if(comma)
+            out.append(',');
+    }
+
+    private void quote(String s) {
+
+        out.append('"');
+
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            switch(c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if(c < 0x20)
+                        out.append(String.format("\\u%04x", (int) c));
+                    else
+                        out.append(c);
+            }
+        }
+
+        out.append('"');
+    }
+
+    /********* Reading *********/
+
+    /**
+     * Reads a flat JSON object. Each value is returned as text: strings unescaped, numbers
+     * and booleans as written, so they can be checked with the InventoryValidator parsers.
+     * @param text The JSON text.
+     * @return The members in document order, null values included as null.
+     * @throws IllegalArgumentException Thrown if text is not a flat JSON object.
+     */
+    public static Map<String, String> parseObject(CharSequence text) throws IllegalArgumentException {
+
+        Reader in = new Reader(text);
+        Map<String, String> members = new LinkedHashMap<>();
+
+        in.expect('{');
+
+        if(!in.skip('}')) {
+            do {
+                String name = in.string();
+                in.expect(':');
+                members.put(name, in.scalar());
+            } while(in.skip(','));
+
+            in.expect('}');
+        }
+
+        if(in.more())
+            throw new IllegalArgumentException("Unexpected text after object at " + in.pos);
+
+        return members;
+    }
+
+    /**
+     * Reads any JSON value: objects become Maps of their members in document order, arrays
+     * Lists, and scalars text as in parseObject().
+     * @param text The JSON text.
+     * @return The value, a Map, List, String or null.
+     * @throws IllegalArgumentException Thrown if text is not a JSON value.
+     */
+    public static Object parse(CharSequence text) throws IllegalArgumentException {
+
+        Reader in = new Reader(text);
+        Object value = in.value();
+
+        if(in.more())
+            throw new IllegalArgumentException("Unexpected text after value at " + in.pos);
+
+        return value;
+    }
+
+    // Cursor over the text of a document.
+    private static final class Reader {
+
+        final private CharSequence text;
+        private int pos;
+
+        Reader(CharSequence text) {
+            this.text = text;
+        }
+
+        boolean more() {
+
+            whitespace();
+            return pos < text.length();
+        }
+
+        boolean skip(char c) {
+
+            whitespace();
+
+            if(pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+
+            return false;
+        }
+
+        void expect(char c) {
+
+            if(!skip(c))
+                throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+        }
+
+        Object value() {
+
+            if(skip('{')) {
+                Map<String, Object> members = new LinkedHashMap<>();
+
+                if(!skip('}')) {
+                    do {
+                        String name = string();
+                        expect(':');
+                        members.put(name, value());
+                    } while(skip(','));
+
+                    expect('}');
+                }
+
+                return members;
+            }
+
+            if(skip('[')) {
+                List<Object> elements = new ArrayList<>();
+
+                if(!skip(']')) {
+                    do {
+                        elements.add(value());
+                    } while(skip(','));
+
+                    expect(']');
+                }
+
+                return elements;
+            }
+
+            return scalar();
+        }
+
+        String scalar() {
+
+            whitespace();
+
+            if(pos < text.length() && text.charAt(pos) == '"')
+                return string();
+
+            int start = pos;
+
+            while(pos < text.length() && "+-.0123456789eEtrufalsn".indexOf(text.charAt(pos)) >= 0)
+                pos++;
+
+            String value = text.subSequence(start, pos).toString();
+
+            if(value.isEmpty())
+                throw new IllegalArgumentException("Expected a string, number, boolean or null at " + start);
+
+            return value.equals("null") ? null : value;
+        }
+
+        String string() {
+
+            expect('"');
+            StringBuilder s = new StringBuilder();
+
+            while(pos < text.length()) {
+                char c = text.charAt(pos++);
+
+                if(c == '"')
+                    return s.toString();
+
+                if(c != '\\') {
+                    s.append(c);
+                    continue;
+                }
+
+                if(pos >= text.length())
+                    break;
+
+                c = text.charAt(pos++);
+
+                switch(c) {
+                    case 'n':
+                        s.append('\n');
+                        break;
+                    case 'r':
+                        s.append('\r');
+                        break;
+                    case 't':
+                        s.append('\t');
+                        break;
+                    case 'b':
+                        s.append('\b');
+                        break;
+                    case 'f':
+                        s.append('\f');
+                        break;
+                    case 'u':
+                        if(pos + 4 > text.length())
+                            throw new IllegalArgumentException("Bad escape at " + pos);
+                        try {
+                            s.append((char) Integer.parseInt(text.subSequence(pos, pos + 4).toString(), 16));
+                        } catch(NumberFormatException e) {
+                            throw new IllegalArgumentException("Bad escape at " + pos);
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        s.append(c);
+                }
+            }
+
+            throw new IllegalArgumentException("Unterminated string");
+        }
+
+        private void whitespace() {
+
+            while(pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+                pos++;
+        }
+    }
+}
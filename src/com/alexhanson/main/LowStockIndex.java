@@ -0,0 +1,167 @@
+
+package com.alexhanson.main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javafx.collections.ObservableList;
+
+/**
+ * Buckets parts by their stock margin, stock minus min, so the parts at or near their
+ * minimum are found without scanning. Moving a part between buckets is O(log n) in the
+ * number of distinct margins. Parts whose margin is at or below the reorder margin are
+ * kept in a live list for display, updated through Inventory.viewUpdate(). Each partition
+ * of Inventory has an index of its own parts, all listing them in the same live list, see
+ * RowList.
+ * @author Alex Hanson
+ */
+public class LowStockIndex {
+
+    // Part ids bucketed by margin, and the margin each part id is filed under.
+    final private TreeMap<Integer, Set<Integer>> buckets;
+    final private HashMap<Integer, Integer> margins;
+
+    // Parts needing reorder, in the order they were listed, shared by the indexes of all partitions.
+    final private RowList<Part> reorder;
+
+    // Parts with a margin at or below this need reorder.
+    private int reorderMargin;
+
+    /**
+     * Constructor: Initializes an empty index that reports parts at or below their minimum.
+     */
+    public LowStockIndex() {
+
+        buckets = new TreeMap<>();
+        margins = new HashMap<>();
+        reorder = new RowList<>(null);
+    }
+
+    /**
+     * Constructor: Initializes an empty index listing the parts needing reorder in the live
+     * list of another, for the parts of another partition of Inventory.
+     * @param shared The index whose list is shared.
+     */
+    public LowStockIndex(LowStockIndex shared) {
+
+        buckets = new TreeMap<>();
+        margins = new HashMap<>();
+        reorder = shared.reorder;
+    }
+
+    /**
+     * Files a part under its current margin, replacing any part filed under the same id.
+     * @param part The part to add or refile.
+     */
+    public void put(Part part) {
+
+        int margin = part.getStock() - part.getMin();
+        Integer old = margins.put(part.getId(), margin);
+
+        if(old != null && old != margin)
+            unfile(part.getId(), old);
+
+        if(old == null || old != margin)
+            buckets.computeIfAbsent(margin, k -> new LinkedHashSet<>()).add(part.getId());
+
+        boolean was = old != null && old <= reorderMargin;
+        boolean is = margin <= reorderMargin;
+
+        if(is)
+            showInReorder(part);
+        else if(was)
+            hideFromReorder(part.getId());
+    }
+
+    /**
+     * @param part The part to drop from the index.
+     */
+    public void remove(Part part) {
+
+        Integer old = margins.remove(part.getId());
+
+        if(old == null)
+            return;
+
+        unfile(part.getId(), old);
+
+        if(old <= reorderMargin)
+            hideFromReorder(part.getId());
+    }
+
+    /**
+     * Changes which parts need reorder. Only the parts in the buckets between the old and
+     * new margins are visited.
+     * @param margin Parts with stock minus min at or below this value need reorder.
+     */
+    public void setReorderMargin(int margin) {
+
+        int old = reorderMargin;
+        reorderMargin = margin;
+
+        if(margin > old) {
+            for(Set<Integer> ids : buckets.subMap(old, false, margin, true).values()) {
+                for(int id : ids)
+                    showInReorder(Inventory.lookupPart(id));
+            }
+        } else if(margin < old) {
+            for(Set<Integer> ids : buckets.subMap(margin, false, old, true).values()) {
+                for(int id : ids)
+                    hideFromReorder(id);
+            }
+        }
+    }
+
+    /**
+     * @return The current reorder margin.
+     */
+    public int getReorderMargin() {
+        return reorderMargin;
+    }
+
+    /**
+     * @return Live, read-only list of the parts needing reorder.
+     */
+    public ObservableList<Part> getReorderView() {
+        return reorder.getView();
+    }
+
+    /**
+     * Lists the ids of parts whose margin is at or below a value, lowest margin first.
+     * @param margin The highest margin to include.
+     * @return The matching part ids.
+     */
+    public List<Integer> idsAtOrBelow(int margin) {
+
+        List<Integer> tmp = new ArrayList<>();
+
+        for(Map.Entry<Integer, Set<Integer>> bucket : buckets.headMap(margin, true).entrySet())
+            tmp.addAll(bucket.getValue());
+
+        return tmp;
+    }
+
+    // Takes a part id out of the bucket for margin, dropping the bucket once empty.
+    private void unfile(int id, int margin) {
+
+        Set<Integer> bucket = buckets.get(margin);
+
+        if(bucket != null && bucket.remove(id) && bucket.isEmpty())
+            buckets.remove(margin);
+    }
+
+    // Lists a part, or sets its row if already listed, with the next view update. Updates
+    // of one part are keyed alike, so only the last of them within a frame is applied.
+    private void showInReorder(Part part) {
+        Inventory.viewUpdate(new RowKey(reorder, part.getId()), () -> reorder.show(part.getId(), part));
+    }
+
+    // Unlists a part, if listed, with the next view update.
+    private void hideFromReorder(int id) {
+        Inventory.viewUpdate(new RowKey(reorder, id), () -> reorder.hide(id));
+    }
+}
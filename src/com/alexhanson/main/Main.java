@@ -1,7 +1,11 @@
 
 package com.alexhanson.main;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import javafx.application.Application;
+import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
 
@@ -10,26 +14,74 @@ import javafx.stage.Stage;
  * @author Alex Hanson
  */
 public class Main extends Application {
-    
+
+    // Set -Dinventory.navTiming=true to report the time taken by each navigation.
+    final private static boolean NAV_TIMING = Boolean.getBoolean("inventory.navTiming");
+
     /**
-     * Program entry.
+     * Program entry. With --server [port] Inventory is served over HTTP instead of showing
+     * the GUI, see InventoryServer. With --follow url the GUI shows a copy of the Inventory
+     * of the server at url, kept in step through its change feed, see ChangeFeedClient.
      * @param args Command line options
+     * @throws IOException Thrown if the server cannot bind its port.
      */
-    public static void main(String [] args) {
-        
+    public static void main(String [] args) throws IOException {
+
+        if(args.length > 0 && args[0].equals("--server")) {
+            InventoryServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         launch(args);
     }
-    
+
     /**
      * Starts the applications GUI interface.
      * @param primaryStage The app's primary Stage.
      */
     @Override
     public void start(Stage primaryStage) {
-        
-        primaryStage.setScene(new Scene(new HomePage(primaryStage)));
+
+        List<String> args = getParameters().getRaw();
+        int follow = args.indexOf("--follow");
+
+        // Changes from other threads reach the views once per frame, see Inventory.setViewUpdates().
+        UpdateDispatcher viewUpdates = new UpdateDispatcher();
+        Inventory.setViewUpdates(viewUpdates);
+
+        if(follow >= 0 && follow + 1 < args.size())
+            new ChangeFeedClient(args.get(follow + 1), viewUpdates).start();
+
+        show(primaryStage, new HomePage(primaryStage));
         primaryStage.show();
     }
-  
-    
+
+    /**
+     * Displays a view on the application stage.
+     * All views share one Scene holding the application's stylesheets, so the stylesheets
+     * are loaded once instead of each time a view is built.
+     * @param appStage The application's primary stage.
+     * @param view The view to display.
+     */
+    public static void show(Stage appStage, Parent view) {
+
+        long start = System.nanoTime();
+        Scene scene = appStage.getScene();
+
+        if(scene == null) {
+            scene = new Scene(view);
+            scene.getStylesheets().addAll(Stylesheets.getAll());
+            appStage.setScene(scene);
+        } else {
+            scene.setRoot(view);
+            appStage.sizeToScene();
+        }
+
+        if(NAV_TIMING) {
+            view.applyCss();
+            view.layout();
+            System.err.printf("%s shown in %.2f ms%n", view.getClass().getSimpleName(),
+                              (System.nanoTime() - start) / 1e6);
+        }
+    }
 }
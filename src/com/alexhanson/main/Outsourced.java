@@ -22,6 +22,7 @@ public class Outsourced extends Part implements ItemSource {
      * @param min The minimum allowable quantity on hand.
      * @param max The maximum allowable quantity on hand.
      * @param companyName The company from which this part was purchased.
+     * @throws IllegalArgumentException Thrown if stock is negative.
      */
     public Outsourced(int id, String name, double price, int stock, int min, int max, String companyName) {
         
@@ -38,10 +39,15 @@ public class Outsourced extends Part implements ItemSource {
     }
     
     /**
+     * Changing the company of a part held in Inventory refiles its value on hand.
      * @param companyName The company from which this product was purchased.
      */
     public void setCompanyName(String companyName) {
+        
         this.companyName = companyName;
+        touch();
+
+        Inventory.partSourceChanged(this);
     }
     
     /**
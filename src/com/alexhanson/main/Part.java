@@ -1,6 +1,11 @@
 
 package com.alexhanson.main;
 
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+
 /**
  * The basis for various types of inventoried parts.
  * @author WGU
@@ -11,7 +16,11 @@ public abstract class Part {
     private int id;
     private String name;
     private double price;
-    private int stock;
+    // Stock and the version stamp of the whole record, see getVersion().
+    final private StockStamp stock;
+    // The stock as last shown, see stockProperty().
+    final private ReadOnlyIntegerWrapper shownStock;
+    final private ReadOnlyLongWrapper shownVersion;
     private int min;
     private int max; 
     
@@ -23,13 +32,16 @@ public abstract class Part {
      * @param stock The quantity on hand of the part.
      * @param min The minimum allowable quantity on hand.
      * @param max The maximum allowable quantity on hand.
+     * @throws IllegalArgumentException Thrown if stock is negative.
      */
     public Part(int id, String name, double price, int stock, int min, int max) {
         
         this.id = id;
         this.name = name;
         this.price = price;
-        this.stock = stock;
+        this.stock = new StockStamp(stock);
+        this.shownStock = new ReadOnlyIntegerWrapper(this, "stock", stock);
+        this.shownVersion = new ReadOnlyLongWrapper(this, "version", this.stock.getVersion());
         this.min = min;
         this.max = max;
     }
@@ -42,10 +54,17 @@ public abstract class Part {
     }
 
     /**
+     * The id of a part held in Inventory is its key there and cannot change.
      * @param id the id to set
+     * @throws IllegalStateException Thrown if the part is held in Inventory.
      */
-    public void setId(int id) {
+    public void setId(int id) throws IllegalStateException {
+        
+        if(Inventory.lookupPart(this.id) == this)
+            throw new IllegalStateException("Cannot change the id of part " + this.id + " held in Inventory");
+        
         this.id = id;
+        stock.touch();
     }
 
     /**
@@ -56,10 +75,14 @@ public abstract class Part {
     }
 
     /**
+     * Renaming a part held in Inventory is published like its other changes.
      * @param name the name to set
      */
     public void setName(String name) {
         this.name = name;
+        stock.touch();
+        
+        Inventory.partRenamed(this);
     }
 
     /**
@@ -70,24 +93,186 @@ public abstract class Part {
     }
 
     /**
+     * Changing the price of a part held in Inventory updates the cost of materials of the
+     * products that depend on it.
      * @param price the price to set
      */
     public void setPrice(double price) {
+        
+        double old = this.price;
         this.price = price;
+        stock.touch();
+        
+        Inventory.partPriceChanged(this, old);
     }
     
     /**
      * @return the stock
      */
     public int getStock() {
-        return stock;
+        return stock.getStock();
+    }
+
+    /**
+     * Observable form of getStock() for display. While the part is held in Inventory the
+     * property follows its stock, updated with the other views of Inventory, see
+     * Inventory.setViewUpdates().
+     * @return The stock property.
+     */
+    public ReadOnlyIntegerProperty stockProperty() {
+        return shownStock.getReadOnlyProperty();
+    }
+
+    /**
+     * Brings stockProperty() and versionProperty() up to date with the next view update.
+     * Called by Inventory each time it publishes the part.
+     */
+    void showStock() {
+        
+        Inventory.viewUpdate(shownStock, () -> {
+            shownStock.set(getStock());
+            shownVersion.set(getVersion());
+            // Read back, so the next change is reported to invalidation listeners as well, such
+            // as the extractor of Inventory's lists, which never read the property themselves.
+            shownVersion.get();
+        });
+    }
+
+    /**
+     * Changing the stock of a part held in Inventory updates the buildable units of the
+     * products using it and the reorder list.
+     * @param stock the stock to set
+     * @throws IllegalArgumentException Thrown if stock is negative.
+     * @throws IllegalStateException Thrown if the part was replaced in or deleted from Inventory.
+     */
+    public void setStock(int stock) throws IllegalArgumentException, IllegalStateException {
+        stockChanged(this.stock.set(stock));
     }
 
     /**
+     * Sets the stock only if the part is unchanged since its version was read, so that an
+     * edit based on a stale read is refused rather than overwriting a concurrent change.
+     * @param expectedVersion The version read along with the values the edit is based on.
      * @param stock the stock to set
+     * @return True if the stock was set, false if the part changed or left Inventory since.
+     * @throws IllegalArgumentException Thrown if stock is negative.
      */
-    public void setStock(int stock) {
-        this.stock = stock;
+    public boolean compareAndSetStock(long expectedVersion, int stock) throws IllegalArgumentException {
+
+        int old = this.stock.compareAndSet(expectedVersion, stock);
+
+        if(old < 0)
+            return false;
+
+        Inventory.partStockChanged(this, old);
+        return true;
+    }
+
+    /**
+     * Atomically adds to or takes from the stock. Concurrent adjustments all apply,
+     * none is lost.
+     * @param delta The change in stock, negative to take stock out.
+     * @return The stock after the change.
+     * @throws IllegalArgumentException Thrown if the change would take stock below zero.
+     * @throws IllegalStateException Thrown if the part was replaced in or deleted from Inventory.
+     */
+    public int adjustStock(int delta) throws IllegalArgumentException, IllegalStateException {
+
+        int old = stockChanged(stock.add(delta));
+
+        if(old == StockStamp.INSUFFICIENT)
+            throw new IllegalArgumentException("Stock cannot go below 0");
+
+        return old + delta;
+    }
+
+    /**
+     * Takes units out of stock if enough are on hand, for example to fill an order.
+     * @param quantity The units to take.
+     * @return True if the units were taken, false if fewer were on hand.
+     * @throws IllegalArgumentException Thrown if quantity is less than 1.
+     * @throws IllegalStateException Thrown if the part was replaced in or deleted from Inventory.
+     */
+    public boolean reserveStock(int quantity) throws IllegalArgumentException, IllegalStateException {
+
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+
+        return stockChanged(stock.add(-quantity)) != StockStamp.INSUFFICIENT;
+    }
+
+    /**
+     * Returns units taken by reserveStock() to stock.
+     * @param quantity The units to return.
+     * @throws IllegalArgumentException Thrown if quantity is less than 1.
+     * @throws IllegalStateException Thrown if the part was replaced in or deleted from Inventory.
+     */
+    public void releaseStock(int quantity) throws IllegalArgumentException, IllegalStateException {
+
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+
+        stockChanged(stock.add(quantity));
+    }
+
+    /**
+     * The version advances with every change to the part, it is the means of detecting that
+     * a part changed since it was read. Stock and version change together atomically.
+     * @return The part's version.
+     */
+    public long getVersion() {
+        return stock.getVersion();
+    }
+
+    /**
+     * Observable form of getVersion() for display, updated with the other views of Inventory
+     * while the part is held there. Any change to the part, not only to its stock, changes it.
+     * @return The version property.
+     */
+    public ReadOnlyLongProperty versionProperty() {
+        return shownVersion.getReadOnlyProperty();
+    }
+
+    /**
+     * Retires the part as it leaves Inventory, refusing all further stock changes so that
+     * writers still holding it look up its replacement instead.
+     * @param expectedVersion The version the replacement was based on, or -1 for any.
+     * @return True if the part was retired, false if it changed since expectedVersion.
+     */
+    boolean retire(long expectedVersion) {
+
+        if(expectedVersion >= 0)
+            return stock.retire(expectedVersion);
+
+        stock.retire();
+        return true;
+    }
+
+    /**
+     * Adds to the stock without throwing, for Inventory to retry against a replacement.
+     * @param delta The change in stock.
+     * @return The stock before the change, StockStamp.RETIRED or StockStamp.INSUFFICIENT.
+     */
+    int tryAdjustStock(int delta) {
+
+        int old = stock.add(delta);
+
+        if(old >= 0)
+            Inventory.partStockChanged(this, old);
+
+        return old;
+    }
+
+    // Reports a stock change made through the stamp to Inventory, returning its result.
+    private int stockChanged(int old) {
+
+        if(old == StockStamp.RETIRED)
+            throw new IllegalStateException("Part " + id + " is no longer held in Inventory");
+
+        if(old >= 0)
+            Inventory.partStockChanged(this, old);
+
+        return old;
     }
 
     /**
@@ -98,10 +283,16 @@ public abstract class Part {
     }
 
     /**
+     * Changing the min of a part held in Inventory updates the reorder list and range indexes.
      * @param min the min to set
      */
     public void setMin(int min) {
+        
+        int old = this.min;
         this.min = min;
+        stock.touch();
+
+        Inventory.partLimitsChanged(this, "min", old);
     }
 
     /**
@@ -115,6 +306,17 @@ public abstract class Part {
      * @param max the max to set
      */
     public void setMax(int max) {
+        int old = this.max;
         this.max = max;
+        stock.touch();
+
+        Inventory.partLimitsChanged(this, "max", old);
+    }
+
+    /**
+     * Advances the version after a change to a field of a subclass.
+     */
+    final protected void touch() {
+        stock.touch();
     }
 }
\ No newline at end of file
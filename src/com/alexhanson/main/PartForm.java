@@ -3,7 +3,7 @@ package com.alexhanson.main;
 
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
-import javafx.scene.Scene;
+import javafx.scene.control.Alert;
 import javafx.scene.control.Label;
 import javafx.scene.control.RadioButton;
 import javafx.scene.control.TextField;
@@ -25,6 +25,12 @@ public class PartForm extends InventoryForm {
     final private RadioButton outSourced;
     final private Label srcLabel;
     final private TextField src;
+    
+    // Whether the source field's error is on display.
+    private boolean srcShown;
+    
+    // Version of the part being modified when the form was populated.
+    private long version;
 
     /**
      * Initializes part form and underlying Inventory form components.
@@ -44,6 +50,10 @@ public class PartForm extends InventoryForm {
         src = new TextField();
         
         src.setPrefWidth(DEFAULT_FORM_FIELD_WIDTH);
+        src.textProperty().addListener((observable, oldValue, newValue) -> {
+            srcShown = true;
+            srcValidation();
+        });
 
         getChildren().add(buildHeader(index));
         getChildren().add(layoutForm());
@@ -51,8 +61,6 @@ public class PartForm extends InventoryForm {
         configToggle(index);
         addFormField(configBtns(index), 1, 6); 
 
-        getStylesheets().add("file:css/part_form.css");
-        
         setPadding(new Insets(30));
     }
     
@@ -104,10 +112,11 @@ public class PartForm extends InventoryForm {
     @Override
     protected void populateForm (int index) {
         
-        Part part  = index >= 0 ? Inventory.getAllParts().get(index) : null;
+        Part part  = index >= 0 ? Inventory.getPartsView().get(index) : null;
         
         if(part != null) {
 
+            version = part.getVersion();
             setId(part.getId());
             setName(part.getName());
             setPrice(part.getPrice());
@@ -129,17 +138,19 @@ public class PartForm extends InventoryForm {
         
         boolean valid = super.formValidation();
         
-        src.getStyleClass().set(ERROR_STATE_STYLES, "");
-                    
-        if(inHouse.isSelected())
-            try {
-                Integer.parseInt(src.getText());
-            } catch(NumberFormatException e) {
-                src.getStyleClass().set(ERROR_STATE_STYLES, "invalid-input");
-                valid = false;
-            }
+        srcShown = true;
+        
+        return srcValidation() && valid;  
+    }
+    
+    // Checks the source field, in-house parts require an integer machine id.
+    private boolean srcValidation() {
+        
+        boolean valid = !inHouse.isSelected() || InventoryValidator.isInteger(src.getText());
         
-        return valid;  
+        markField(src, srcShown && !valid);
+        
+        return valid;
     }
     
     // Provides default configuration of radio buttons
@@ -154,10 +165,12 @@ public class PartForm extends InventoryForm {
         
         inHouse.setOnAction(event -> {
             srcLabel.setText("Machine ID");
+            srcValidation();
         });
 
         outSourced.setOnAction(event -> {
             srcLabel.setText("Company Name");
+            srcValidation();
         });
     }
     
@@ -169,7 +182,7 @@ public class PartForm extends InventoryForm {
         configToggle();
         
         if(index >= 0) {
-            if( ((ItemSource) Inventory.getAllParts().get(index)).getSrcDscp().equals("Company Name") ) {
+            if( ((ItemSource) Inventory.getPartsView().get(index)).getSrcDscp().equals("Company Name") ) {
                 outSourced.setSelected(true);
                 srcLabel.setText("Company Name");
             } else {
@@ -190,13 +203,13 @@ public class PartForm extends InventoryForm {
             
                 if(formValidation()) {
                 
-                    int id = Inventory.getAllParts().size();
+                    int id = Inventory.nextPartId();
 
                     if(inHouse.isSelected()) {
-                        Inventory.addPart(new InHouse(++id, getName(), getPrice(), getStock(), getMin(), getMax(), getSrc(0)));
+                        Inventory.addPart(new InHouse(id, getName(), getPrice(), getStock(), getMin(), getMax(), getSrc(0)));
                     }
                     else {
-                        Inventory.addPart(new Outsourced(++id, getName(), getPrice(), getStock(), getMin(), getMax(), getSrc("")));
+                        Inventory.addPart(new Outsourced(id, getName(), getPrice(), getStock(), getMin(), getMax(), getSrc("")));
                     }
 
                     closeForm();
@@ -224,13 +237,23 @@ public class PartForm extends InventoryForm {
             getSaveBtn().setOnAction(e -> {
 
                 if(formValidation()) {
+                    
+                    Part part;
 
                     if(inHouse.isSelected())
-                        Inventory.updatePart(index,new InHouse(getItemId(), getName(), getPrice(), getStock(), getMin(), getMax(), getSrc(0)));
+                        part = new InHouse(getItemId(), getName(), getPrice(), getStock(), getMin(), getMax(), getSrc(0));
                     else
-                        Inventory.updatePart(index,new Outsourced(getItemId(), getName(), getPrice(), getStock(), getMin(), getMax(), getSrc("")));
-
-                    closeForm();
+                        part = new Outsourced(getItemId(), getName(), getPrice(), getStock(), getMin(), getMax(), getSrc(""));
+                    
+                    // Refused if the part changed since the form was populated, e.g. stock received.
+                    if(Inventory.updatePart(part, version)) {
+                        closeForm();
+                    } else {
+                        Alert w = new Alert(Alert.AlertType.WARNING);
+                        w.setHeaderText("WARNING!");
+                        w.setContentText("Part was changed while being modified, reopen it to see the changes.");
+                        w.show();
+                    }
                 }
             });
         }
@@ -243,7 +266,7 @@ public class PartForm extends InventoryForm {
      */
     @Override
     protected void closeForm() {
-        getStage().setScene(new Scene(new HomePage(getStage())));
+        Main.show(getStage(), new HomePage(getStage()));
     }
     
     /******** Helper methods to grab correct source type for the Part ********/
@@ -1,11 +1,14 @@
 
 package com.alexhanson.main;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.Predicate;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
 import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
 import javafx.geometry.Pos;
-import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
@@ -14,9 +17,8 @@ import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableRow;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
+import javafx.scene.control.Tooltip;
 import javafx.scene.control.cell.PropertyValueFactory;
-import javafx.scene.input.KeyCode;
-import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
@@ -37,18 +39,25 @@ public class PartTableWidget extends VBox {
     final private Button delete;
     
     final private Stage appStage;
-    private FilteredList<Part> data;
+    final private IndexedSortedList<Part> sorted;
+    final private FilteredList<Part> data;
+    
+    // Indexes backing the sortable columns.
+    final private Map<TableColumn<Part, ?>, SortedIndex<Part>> columnIndexes;
     
     /**
      * Constructor: Initializes table display with parts inventory
      * @param appStage Reference to application stage for form redirection.
-     * @param data The parts to display.
+     * @param data The parts to display. Pass a live view such as Inventory.getPartsView()
+     * for the table to follow changes to Inventory.
      */
     public PartTableWidget(Stage appStage, ObservableList<Part> data) {
         
         super();
         this.appStage = appStage;
-        this.data = new FilteredList<>(data);
+        this.sorted = new IndexedSortedList<>(data);
+        this.data = new FilteredList<>(sorted);
+        this.columnIndexes = new HashMap<>();
         
         table = new TableView<>(this.data);
         search = new TextField();
@@ -64,7 +73,6 @@ public class PartTableWidget extends VBox {
         setMinWidth(650);
         
         getStyleClass().add("border-box");
-        getStylesheets().add("file:css/tablewidget.css");
     }
     
     // Provides lay out of the title and search bar.
@@ -108,6 +116,8 @@ public class PartTableWidget extends VBox {
         });
         
         search.setPromptText("Search by Part ID or Name");
+        search.setTooltip(new Tooltip("Search by Part ID or Name, or by ranges of price,\n"
+                                      + "stock, min and max e.g. stock<10 price>50"));
         search.setMinWidth(180);
         search.setAlignment(Pos.CENTER);
     }
@@ -116,10 +126,10 @@ public class PartTableWidget extends VBox {
     @SuppressWarnings("unchecked")
     private void tableConfig() {
         
-        TableColumn<Part, String> id = new TableColumn<>("Part ID");
+        TableColumn<Part, Number> id = new TableColumn<>("Part ID");
         TableColumn<Part, String> n = new TableColumn<>("Part Name");
-        TableColumn<Part, String> stock = new TableColumn<>("Inventory Level");
-        TableColumn<Part, String> cost =   new TableColumn<>("Price/Cost per Unit");
+        TableColumn<Part, Number> stock = new TableColumn<>("Inventory Level");
+        TableColumn<Part, Number> cost =   new TableColumn<>("Price/Cost per Unit");
         
         id.setPrefWidth(90);
         n.setPrefWidth(120);
@@ -131,13 +141,27 @@ public class PartTableWidget extends VBox {
         stock.getStyleClass().add("table-col-label");
         cost.getStyleClass().add("table-col-label");
         
-        id.setCellValueFactory(new PropertyValueFactory<>("id"));
+        // Numeric columns hold their primitive values so they display and sort as numbers.
+        id.setCellValueFactory(c -> new ReadOnlyIntegerWrapper(c.getValue().getId()));
         n.setCellValueFactory(new PropertyValueFactory<>("name"));
-        stock.setCellValueFactory(new PropertyValueFactory<>("stock"));
-        cost.setCellValueFactory(new PropertyValueFactory<>("price"));
+        // Bound to the part's stock property so the cells follow stock changes, once per frame.
+        stock.setCellValueFactory(c -> c.getValue().stockProperty());
+        cost.setCellValueFactory(c -> new ReadOnlyDoubleWrapper(c.getValue().getPrice()));
         
         table.getColumns().addAll(id, n, stock, cost);
         
+        // Sorting walks an index maintained by the sorted view rather than sorting rows.
+        columnIndexes.put(id, sorted.addIndex(Part::getId));
+        columnIndexes.put(stock, sorted.addIndex(Part::getStock));
+        columnIndexes.put(cost, sorted.addIndex(Part::getPrice));
+        n.setSortable(false);
+        
+        table.setSortPolicy(tv -> {
+            TableColumn<Part, ?> col = tv.getSortOrder().isEmpty() ? null : tv.getSortOrder().get(0);
+            sorted.sortBy(columnIndexes.get(col), col == null || col.getSortType() == TableColumn.SortType.ASCENDING);
+            return true;
+        });
+        
         // Mouse event that allows user to deselect a row by clicking again.
         table.setRowFactory(tv -> {
             final TableRow<Part> r = new TableRow<>();
@@ -184,7 +208,7 @@ public class PartTableWidget extends VBox {
     private void btnConfig() {
   
         add.setOnAction(e -> { 
-            appStage.setScene(new Scene(new PartForm(appStage, -1)));
+            Main.show(appStage, new PartForm(appStage, -1));
         });
         
         modify.setOnAction(e -> { 
@@ -192,7 +216,7 @@ public class PartTableWidget extends VBox {
             Part tmp = table.getSelectionModel().getSelectedItem();
             
             if(tmp != null) {
-                appStage.setScene(new Scene(new PartForm(appStage, data.getSource().indexOf(tmp))));
+                Main.show(appStage, new PartForm(appStage, sorted.getSource().indexOf(tmp)));
             }
         });
         
@@ -207,14 +231,20 @@ public class PartTableWidget extends VBox {
                 c.setContentText("Are you sure you want to delete part?");
                 c.showAndWait().ifPresent(response -> {
                                     if (response == ButtonType.OK) {
-                                        if(Inventory.deletePart(tmp)) {
-                                            data = new FilteredList<>(Inventory.getAllParts());
-                                            table.setItems(data);
-                                            // force a firing of change event to update output
-                                            // while leaving original search text;
-                                            String deleteSearch = search.getText();
-                                            search.setText("");
-                                            search.fireEvent(new KeyEvent(KeyEvent.KEY_TYPED, deleteSearch, deleteSearch, KeyCode.ALPHANUMERIC, false, false, false, false));
+                                        
+                                        if(!Inventory.isPartInUse(tmp.getId())) {
+                                            
+                                            // The table is bound to a live view of Inventory, the
+                                            // removal reaches it through the filtered list.
+                                            if(Inventory.deletePart(tmp)) {
+                                                enableDisableBtns();
+                                            }
+                                        } else {
+                                            Alert w = new Alert(Alert.AlertType.WARNING);
+                                            w.setHeaderText("WARNING!");
+                                            w.setContentText("Cannot delete part used by "
+                                                    + Inventory.lookupProductsUsing(tmp.getId()).size() + " product(s)!");
+                                            w.show();
                                         }
                                     }
                                 });
@@ -233,14 +263,21 @@ public class PartTableWidget extends VBox {
     
     // Provides the test for addition to search results.
     private boolean searchPart(Part part, String text) {
-        return( Integer.toString(part.getId()).startsWith(text) ||
-                part.getName().toLowerCase().startsWith(text.toLowerCase()));
+        return SearchFilter.matches(part.getId(), part.getName(), text);
     }
     
     // Defines the criteria by which parts are added to the filtered results
     // of the user search. Uses searchPart to determine addition of an item.
     // Provides default true value for an empty list.
     private Predicate<Part> createPredicate(String text){
+        
+        // Range queries such as "stock<10 price>50" test each row as it stands, so rows added
+        // or changed later are tested again by the filtered list.
+        RangeQuery query = RangeQuery.parse(text);
+        
+        if(query != null)
+            return query::matches;
+        
         return part -> {
             if(text == null || text.isEmpty())
                 return true;
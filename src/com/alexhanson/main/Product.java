@@ -1,7 +1,20 @@
 
 package com.alexhanson.main;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
@@ -11,11 +24,29 @@ import javafx.collections.ObservableList;
  */
 public class Product {
     
-    private ObservableList<Part> associatedParts;
+    // Units of each associated part needed to build one product, keyed by part id in the
+    // order parts were added. Parts are held by id and resolved through Inventory.
+    private LinkedHashMap<Integer, Integer> associatedParts;
+    // Units of each sub-assembly product needed to build one product, keyed by product id.
+    private LinkedHashMap<Integer, Integer> subAssemblies;
+    // Memoized explosion into leaf part requirements, null when it must be recomputed.
+    private volatile Map<Integer, Long> explosion;
+    // Units of this product the stock of its associated parts allows building, and the
+    // property showing it.
+    private volatile int buildableUnits;
+    final private ReadOnlyIntegerWrapper buildable;
+    // Cost of the parts and sub-assemblies needed to build one unit, maintained incrementally,
+    // and the property showing it.
+    private volatile double unitMaterialCost;
+    final private ReadOnlyDoubleWrapper materialCost;
     private int id;
     private String name;
     private double price;
-    private int stock;
+    // Stock and the version stamp of the whole record, see getVersion().
+    final private StockStamp stock;
+    // The stock as last shown, see stockProperty().
+    final private ReadOnlyIntegerWrapper shownStock;
+    final private ReadOnlyLongWrapper shownVersion;
     private int min;
     private int max;
     
@@ -27,16 +58,22 @@ public class Product {
      * @param stock The quantity on hand of the product.
      * @param min The minimum allowable quantity on hand
      * @param max The maximum allowable quantity on hand.
+     * @throws IllegalArgumentException Thrown if stock is negative.
      */
     public Product(int id, String name, double price, int stock, int min, int max) {
         
         this.id    = id;
         this.name  = name;
         this.price = price;
-        this.stock = stock;
+        this.stock = new StockStamp(stock);
+        this.shownStock = new ReadOnlyIntegerWrapper(this, "stock", stock);
+        this.shownVersion = new ReadOnlyLongWrapper(this, "version", this.stock.getVersion());
         this.min   = min;
         this.max   = max;
-        this.associatedParts = FXCollections.observableArrayList();
+        this.associatedParts = new LinkedHashMap<>();
+        this.subAssemblies = new LinkedHashMap<>();
+        this.buildable = new ReadOnlyIntegerWrapper(this, "buildable");
+        this.materialCost = new ReadOnlyDoubleWrapper(this, "materialCost");
         
     }
     
@@ -49,11 +86,17 @@ public class Product {
     }
     
     /**
+     * The id must not be changed while the product is held in Inventory, which indexes products by id.
      * @param id the id to set
+     * @throws IllegalStateException Thrown if the product is held in Inventory.
      */
-    
-    public void setId(int id) {
+    public void setId(int id) throws IllegalStateException {
+        
+        if(Inventory.lookupProduct(this.id) == this)
+            throw new IllegalStateException("Cannot change the id of product " + this.id + " held in Inventory");
+        
         this.id = id;
+        stock.touch();
     }
     
     /**
@@ -64,10 +107,14 @@ public class Product {
     }
 
     /**
+     * Renaming a product held in Inventory is published like its other changes.
      * @param name the name to set
      */
     public void setName(String name) {
         this.name = name;
+        stock.touch();
+        
+        Inventory.productRenamed(this);
     }
 
     /**
@@ -81,21 +128,178 @@ public class Product {
      * @param price the price to set
      */
     public void setPrice(double price) {
+        double old = this.price;
         this.price = price;
+        stock.touch();
+        
+        Inventory.productFieldsChanged(this, "price", old);
     }
     
     /**
      * @return the stock
      */
     public int getStock() {
-        return stock;
+        return stock.getStock();
+    }
+    
+    /**
+     * Observable form of getStock() for display. While the product is held in Inventory the
+     * property follows its stock, updated with the other views of Inventory.
+     * @return The stock property.
+     */
+    public ReadOnlyIntegerProperty stockProperty() {
+        return shownStock.getReadOnlyProperty();
+    }
+    
+    /**
+     * Brings stockProperty() and versionProperty() up to date with the next view update.
+     * Called by Inventory each time it publishes the product.
+     */
+    void showStock() {
+        
+        Inventory.viewUpdate(shownStock, () -> {
+            shownStock.set(getStock());
+            shownVersion.set(getVersion());
+            // Read back, so the next change is reported to invalidation listeners as well, such
+            // as the extractor of Inventory's lists, which never read the property themselves.
+            shownVersion.get();
+        });
     }
 
     /**
+     * Changing the stock of a product held in Inventory updates the buildable units of the
+     * products containing it.
      * @param stock the stock to set
+     * @throws IllegalArgumentException Thrown if stock is negative.
+     * @throws IllegalStateException Thrown if the product was replaced in or deleted from Inventory.
+     */
+    public void setStock(int stock) throws IllegalArgumentException, IllegalStateException {
+        stockChanged(this.stock.set(stock));
+    }
+    
+    /**
+     * Sets the stock only if the product is unchanged since its version was read, so that an
+     * edit based on a stale read is refused rather than overwriting a concurrent change.
+     * @param expectedVersion The version read along with the values the edit is based on.
+     * @param stock the stock to set
+     * @return True if the stock was set, false if the product changed or left Inventory since.
+     * @throws IllegalArgumentException Thrown if stock is negative.
+     */
+    public boolean compareAndSetStock(long expectedVersion, int stock) throws IllegalArgumentException {
+        
+        int old = this.stock.compareAndSet(expectedVersion, stock);
+        
+        if(old < 0)
+            return false;
+        
+        Inventory.productStockChanged(this, old);
+        return true;
+    }
+    
+    /**
+     * Atomically adds to or takes from the stock. Concurrent adjustments all apply,
+     * none is lost.
+     * @param delta The change in stock, negative to take stock out.
+     * @return The stock after the change.
+     * @throws IllegalArgumentException Thrown if the change would take stock below zero.
+     * @throws IllegalStateException Thrown if the product was replaced in or deleted from Inventory.
+     */
+    public int adjustStock(int delta) throws IllegalArgumentException, IllegalStateException {
+        
+        int old = stockChanged(stock.add(delta));
+        
+        if(old == StockStamp.INSUFFICIENT)
+            throw new IllegalArgumentException("Stock cannot go below 0");
+        
+        return old + delta;
+    }
+    
+    /**
+     * Takes units out of stock if enough are on hand, for example to fill an order.
+     * @param quantity The units to take.
+     * @return True if the units were taken, false if fewer were on hand.
+     * @throws IllegalArgumentException Thrown if quantity is less than 1.
+     * @throws IllegalStateException Thrown if the product was replaced in or deleted from Inventory.
      */
-    public void setStock(int stock) {
-        this.stock = stock;
+    public boolean reserveStock(int quantity) throws IllegalArgumentException, IllegalStateException {
+        
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        
+        return stockChanged(stock.add(-quantity)) != StockStamp.INSUFFICIENT;
+    }
+    
+    /**
+     * Returns units taken by reserveStock() to stock.
+     * @param quantity The units to return.
+     * @throws IllegalArgumentException Thrown if quantity is less than 1.
+     * @throws IllegalStateException Thrown if the product was replaced in or deleted from Inventory.
+     */
+    public void releaseStock(int quantity) throws IllegalArgumentException, IllegalStateException {
+        
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        
+        stockChanged(stock.add(quantity));
+    }
+    
+    /**
+     * The version advances with every change to the product, including its associated parts
+     * and sub-assemblies. Stock and version change together atomically.
+     * @return The product's version.
+     */
+    public long getVersion() {
+        return stock.getVersion();
+    }
+
+    /**
+     * Observable form of getVersion() for display, updated with the other views of Inventory
+     * while the product is held there. Any change to the product, not only to its stock, changes it.
+     * @return The version property.
+     */
+    public ReadOnlyLongProperty versionProperty() {
+        return shownVersion.getReadOnlyProperty();
+    }
+    
+    /**
+     * Retires the product as it leaves Inventory, see Part.retire().
+     * @param expectedVersion The version the replacement was based on, or -1 for any.
+     * @return True if the product was retired, false if it changed since expectedVersion.
+     */
+    boolean retire(long expectedVersion) {
+        
+        if(expectedVersion >= 0)
+            return stock.retire(expectedVersion);
+        
+        stock.retire();
+        return true;
+    }
+    
+    /**
+     * Adds to the stock without throwing, for Inventory to retry against a replacement.
+     * @param delta The change in stock.
+     * @return The stock before the change, StockStamp.RETIRED or StockStamp.INSUFFICIENT.
+     */
+    int tryAdjustStock(int delta) {
+        
+        int old = stock.add(delta);
+        
+        if(old >= 0)
+            Inventory.productStockChanged(this, old);
+        
+        return old;
+    }
+    
+    // Reports a stock change made through the stamp to Inventory, returning its result.
+    private int stockChanged(int old) {
+        
+        if(old == StockStamp.RETIRED)
+            throw new IllegalStateException("Product " + id + " is no longer held in Inventory");
+        
+        if(old >= 0)
+            Inventory.productStockChanged(this, old);
+        
+        return old;
     }
 
     /**
@@ -109,7 +313,11 @@ public class Product {
      * @param min the min to set
      */
     public void setMin(int min) {
+        int old = this.min;
         this.min = min;
+        stock.touch();
+        
+        Inventory.productFieldsChanged(this, "min", old);
     }
 
     /**
@@ -123,14 +331,55 @@ public class Product {
      * @param max the max to set
      */
     public void setMax(int max) {
+        int old = this.max;
         this.max = max;
+        stock.touch();
+        
+        Inventory.productFieldsChanged(this, "max", old);
     }
     
     /**
+     * Associates one unit of a part with this product, see addAssociatedPart(Part, int).
      * @param part The Part to add to the list of associated parts for this product.
      */
     public void addAssociatedPart(Part part) {
-        associatedParts.add(part);
+        addAssociatedPart(part, 1);
+    }
+    
+    /**
+     * Associates a part with this product. A product holds each part id at most once,
+     * adding a part whose id is already associated replaces the earlier quantity.
+     * Only the part's id is kept, the part is resolved through Inventory when needed.
+     * @param part The Part to add to the list of associated parts for this product.
+     * @param quantity The units of part needed to build one product.
+     * @throws IllegalArgumentException Thrown if quantity is less than 1.
+     */
+    public void addAssociatedPart(Part part, int quantity) throws IllegalArgumentException {
+        
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        
+        // Derived state is shared with stock changes made on other threads.
+        Inventory.lockPartition(id);
+        
+        try {
+            boolean replaced = associatedParts.put(part.getId(), quantity) != null;
+
+            if(replaced || associatedParts.size() == 1)
+                recomputeBuildable();
+            else
+                setBuildable(Math.min(buildableUnits, stockOf(part.getId()) / quantity));
+
+            if(!replaced)
+                Inventory.associationAdded(this, part.getId());
+
+            invalidateExplosion();
+            recomputeMaterialCost();
+            stock.touch();
+            Inventory.productStructureChanged(this);
+        } finally {
+            Inventory.unlockPartition(id);
+        }
     }
     
     /**
@@ -138,27 +387,384 @@ public class Product {
      * @return True if the part is deleted, false otherwise.
      */
     public boolean deleteAssociatedPart(Part part) {
+        
+        Inventory.lockPartition(id);
+        
+        try {
+            Integer quantity = associatedParts.remove(part.getId());
+
+            if(quantity == null)
+                return false;
+
+            int units = stockOf(part.getId()) / quantity;
+            Inventory.associationRemoved(this, part.getId());
+
+            // Only the part limiting the buildable units can raise it when removed.
+            if(units <= buildableUnits)
+                recomputeBuildable();
+
+            invalidateExplosion();
+            recomputeMaterialCost();
+            stock.touch();
+            Inventory.productStructureChanged(this);
+
+            return true;
+        } finally {
+            Inventory.unlockPartition(id);
+        }
+    }
+    
+    /**
+     * @param partId The id of a Part.
+     * @return True if a part with this id is associated with this product, false otherwise.
+     */
+    public boolean hasAssociatedPart(int partId) {
+        return associatedParts.containsKey(partId);
+    }
+    
+    /**
+     * @param partId The id of a Part.
+     * @return The units of the part needed to build one product, 0 if the part is not associated.
+     */
+    public int getAssociatedQuantity(int partId) {
+        return associatedParts.getOrDefault(partId, 0);
+    }
+    
+    /**
+     * @return Unmodifiable live view of the ids of this product's associated parts, not a copy.
+     */
+    public Set<Integer> getAssociatedPartIds() {
+        return Collections.unmodifiableSet(associatedParts.keySet());
+    }
+    
+    /**
+     * Associated parts are resolved through Inventory, parts no longer held there are left out.
+     * @return A copy of this product's list of associated parts.
+     */
+    public ObservableList<Part> getAllAssociated() {
+        
+        ArrayList<Part> tmp = new ArrayList<>(associatedParts.size());
+        
+        for(int partId : associatedParts.keySet()) {
+            Part part = Inventory.lookupPart(partId);
+            
+            if(part != null)
+                tmp.add(part);
+        }
+        
+        return FXCollections.observableList(tmp);
+    }
+    
+    /******** Sub-assemblies ********/
+    
+    /**
+     * Makes another product a sub-assembly of this one. Like parts, sub-assemblies are held
+     * by id and resolved through Inventory. Adding a product that is already a sub-assembly
+     * replaces the earlier quantity.
+     * @param product The product to use as a sub-assembly.
+     * @param quantity The units of product needed to build one of this product.
+     * @throws IllegalArgumentException Thrown if quantity is less than 1, or if this product
+     * is, directly or through other sub-assemblies, a sub-assembly of product.
+     */
+    public void addSubAssembly(Product product, int quantity) throws IllegalArgumentException {
+        
+        if(quantity < 1)
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        
+        // Every partition is locked, the check reads the sub-assemblies of products in any of them.
+        Inventory.lockIndexes();
+        
+        try {
+            // Checked under the lock, so two products cannot be made sub-assemblies of each other at once.
+            if(product.containsAssembly(id))
+                throw new IllegalArgumentException("Product " + product.getId() + " already contains product " + id);
+            
+            if(subAssemblies.put(product.getId(), quantity) == null)
+                Inventory.subAssemblyAdded(this, product.getId());
+
+            recomputeBuildable();
+            invalidateExplosion();
+            recomputeMaterialCost();
+            stock.touch();
+            Inventory.productStructureChanged(this);
+        } finally {
+            Inventory.unlockIndexes();
+        }
+    }
+    
+    /**
+     * @param product The product to remove from this product's sub-assemblies.
+     * @return True if the sub-assembly is removed, false otherwise.
+     */
+    public boolean deleteSubAssembly(Product product) {
+        
+        Inventory.lockPartition(id);
+        
+        try {
+            if(subAssemblies.remove(product.getId()) == null)
+                return false;
+
+            Inventory.subAssemblyRemoved(this, product.getId());
+            recomputeBuildable();
+            invalidateExplosion();
+            recomputeMaterialCost();
+            stock.touch();
+            Inventory.productStructureChanged(this);
 
-        Part tmp;
+            return true;
+        } finally {
+            Inventory.unlockPartition(id);
+        }
+    }
+    
+    /**
+     * @param productId The id of a Product.
+     * @return The units of the product needed to build one of this product, 0 if it is not a sub-assembly.
+     */
+    public int getSubAssemblyQuantity(int productId) {
+        return subAssemblies.getOrDefault(productId, 0);
+    }
+    
+    /**
+     * @return Unmodifiable live view of the ids of this product's sub-assemblies, not a copy.
+     */
+    public Set<Integer> getSubAssemblyIds() {
+        return Collections.unmodifiableSet(subAssemblies.keySet());
+    }
+    
+    /**
+     * Explodes this product into the leaf parts needed to build one unit, multiplying
+     * quantities down through all levels of sub-assemblies. The result is memoized and only
+     * recomputed after this product or one of its sub-assemblies changed structure.
+     * Sub-assemblies not held in Inventory are left out until they are added to it.
+     * Safe to call from several threads while Inventory is not being modified.
+     * @return Unmodifiable map of part id to units needed.
+     */
+    public Map<Integer, Long> explode() {
+        
+        Map<Integer, Long> result = explosion;
         
-        for(int index = 0; index < associatedParts.size(); index++) {
+        if(result != null)
+            return result;
+        
+        HashMap<Integer, Long> tmp = new HashMap<>();
+        
+        for(Map.Entry<Integer, Integer> entry : associatedParts.entrySet())
+            tmp.merge(entry.getKey(), (long) entry.getValue(), Long::sum);
+        
+        for(Map.Entry<Integer, Integer> entry : subAssemblies.entrySet()) {
+            Product sub = Inventory.lookupProduct(entry.getKey());
+            long units = entry.getValue();
             
-            tmp = (Part) associatedParts.get(index);
+            if(sub != null) {
+                for(Map.Entry<Integer, Long> part : sub.explode().entrySet())
+                    tmp.merge(part.getKey(), part.getValue() * units, Long::sum);
+            }
+        }
+        
+        result = Collections.unmodifiableMap(tmp);
+        explosion = result;
+        
+        return result;
+    }
+    
+    /**
+     * Refreshes state derived from a sub-assembly after it was updated or replaced in Inventory.
+     */
+    void subAssemblyChanged() {
+        recomputeBuildable();
+        invalidateExplosion();
+        recomputeMaterialCost();
+    }
+    
+    // Drops the memoized explosion of this product and of every product containing it.
+    // A product is only memoized after its sub-assemblies are, so the walk can stop at
+    // a product that holds no explosion.
+    private void invalidateExplosion() {
+        
+        if(explosion == null)
+            return;
+        
+        explosion = null;
+        
+        for(int parentId : Inventory.lookupAssemblyUsers(id)) {
+            Product parent = Inventory.lookupProduct(parentId);
+            
+            if(parent != null)
+                parent.invalidateExplosion();
+        }
+    }
+    
+    // Checks whether productId is this product or one of its sub-assemblies at any depth.
+    private boolean containsAssembly(int productId) {
+        
+        ArrayDeque<Product> pending = new ArrayDeque<>();
+        HashSet<Integer> seen = new HashSet<>();
+        pending.push(this);
+        
+        while(!pending.isEmpty()) {
+            Product p = pending.pop();
             
-            if(part.getId() == tmp.getId()) {
-                associatedParts.remove(index);
+            if(p.getId() == productId)
                 return true;
+            
+            for(int subId : p.subAssemblies.keySet()) {
+                Product sub = Inventory.lookupProduct(subId);
+                
+                if(sub != null && seen.add(subId))
+                    pending.push(sub);
             }
         }
         
         return false;
     }
     
+    /******** Cost of materials ********/
+    
     /**
-     * @return A copy of this product's list of associated parts.
+     * The cost of materials is the sum of part price times quantity over the associated parts,
+     * plus sub-assembly cost of materials times quantity. It is kept up to date as part prices
+     * and the product's structure change, only products depending on a change are visited.
+     * Each is recomputed from its direct parts and sub-assemblies rather than adjusted by the
+     * difference, so the cost stays the exact sum however many changes were made.
+     * @return Cost of the materials needed to build one unit.
      */
-    public ObservableList<Part> getAllAssociated() {
-        return FXCollections.observableList(new ArrayList<>(associatedParts));
+    public double getMaterialCost() {
+        return unitMaterialCost;
+    }
+    
+    /**
+     * Observable form of getMaterialCost() for display, updated with the other views of Inventory.
+     * @return The cost of materials property.
+     */
+    public ReadOnlyDoubleProperty materialCostProperty() {
+        return materialCost.getReadOnlyProperty();
+    }
+    
+    /**
+     * Applies a change to the price of an associated part.
+     * @param partId The id of the part.
+     */
+    void partPriceChanged(int partId) {
+        
+        if(associatedParts.containsKey(partId))
+            recomputeMaterialCost();
+    }
+    
+    // Sets the cost of materials, showing it with the next view update.
+    private void setMaterialCost(double cost) {
+        
+        unitMaterialCost = cost;
+        
+        Inventory.viewUpdate(materialCost, () -> materialCost.set(unitMaterialCost));
+    }
+    
+    /**
+     * Recomputes the cost of materials from the direct parts and sub-assemblies, in time
+     * proportional to their number, then has the products containing this one recomputed if
+     * it changed, see Inventory.materialCostChanged().
+     */
+    void recomputeMaterialCost() {
+        
+        double cost = 0;
+        
+        for(Map.Entry<Integer, Integer> entry : associatedParts.entrySet()) {
+            Part part = Inventory.lookupPart(entry.getKey());
+            
+            if(part != null)
+                cost += part.getPrice() * entry.getValue();
+        }
+        
+        for(Map.Entry<Integer, Integer> entry : subAssemblies.entrySet()) {
+            Product sub = Inventory.lookupProduct(entry.getKey());
+            
+            if(sub != null)
+                cost += sub.getMaterialCost() * entry.getValue();
+        }
+        
+        if(cost == unitMaterialCost)
+            return;
+        
+        setMaterialCost(cost);
+        Inventory.materialCostChanged(this);
+    }
+    
+    /******** Buildable units ********/
+    
+    /**
+     * The buildable units are the smallest, over all associated parts and sub-assemblies, of the
+     * stock on hand divided by the quantity needed per product. A product without parts has none.
+     * @return Units of this product that can be built from parts on hand.
+     */
+    public int getBuildable() {
+        return buildableUnits;
+    }
+    
+    /**
+     * Observable form of getBuildable() for display, updated with the other views of Inventory.
+     * @return The buildable units property.
+     */
+    public ReadOnlyIntegerProperty buildableProperty() {
+        return buildable.getReadOnlyProperty();
+    }
+    
+    /**
+     * Updates the buildable units after the stock of an associated part changed.
+     * Lowering stock is applied directly, raising it only triggers a rescan of the
+     * associated parts when the part may have been the one limiting the buildable units.
+     * Concurrent changes may be reported out of order, so the current stock is read from
+     * the part rather than derived from oldStock.
+     * @param part The associated part, as now held in Inventory.
+     * @param oldStock The part's stock before the change.
+     */
+    void partStockChanged(Part part, int oldStock) {
+        
+        Integer quantity = associatedParts.get(part.getId());
+        
+        if(quantity == null)
+            return;
+        
+        int oldUnits = oldStock / quantity;
+        int newUnits = part.getStock() / quantity;
+        
+        if(newUnits < buildableUnits)
+            setBuildable(newUnits);
+        else if(newUnits > oldUnits && oldUnits <= buildableUnits)
+            recomputeBuildable();
+    }
+    
+    /**
+     * Rescans the associated parts and sub-assemblies for the buildable units.
+     */
+    void recomputeBuildable() {
+        
+        int units = associatedParts.isEmpty() && subAssemblies.isEmpty() ? 0 : Integer.MAX_VALUE;
+        
+        for(Map.Entry<Integer, Integer> entry : associatedParts.entrySet())
+            units = Math.min(units, stockOf(entry.getKey()) / entry.getValue());
+        
+        for(Map.Entry<Integer, Integer> entry : subAssemblies.entrySet()) {
+            Product sub = Inventory.lookupProduct(entry.getKey());
+            units = Math.min(units, (sub == null ? 0 : sub.getStock()) / entry.getValue());
+        }
+        
+        setBuildable(units);
+    }
+    
+    // Sets the buildable units, showing them with the next view update.
+    private void setBuildable(int units) {
+        
+        buildableUnits = units;
+        
+        Inventory.viewUpdate(buildable, () -> buildable.set(buildableUnits));
+    }
+    
+    // Stock of a part held in Inventory, parts not held there have none.
+    private static int stockOf(int partId) {
+        
+        Part part = Inventory.lookupPart(partId);
+        
+        return part == null ? 0 : part.getStock();
     }
     
 }
@@ -1,12 +1,13 @@
 
 package com.alexhanson.main;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.Predicate;
-import javafx.collections.ObservableList;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
 import javafx.collections.transformation.FilteredList;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
-import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
@@ -32,10 +33,15 @@ public class ProductForm extends InventoryForm {
     final private TableView<Part> availableParts;
     final private FilteredList<Part> partSearch;
     final private TableView<Part> assocParts;
+    // Quantity per product of each part in the associated parts table, keyed by part id.
+    final private Map<Integer, Integer> assocQty;
     final private TextField search;
     final private Button removePart;
     final private Button addPart;
     
+    // Version of the product being modified when the form was populated.
+    private long version;
+    
     /**
      * Constructor: Initializes the layout and controls of a product form.
      * @param appStage Reference to application Stage for redirection.
@@ -48,8 +54,8 @@ public class ProductForm extends InventoryForm {
         partSearch = new FilteredList<>(Inventory.getAllParts());
         availableParts = new TableView<> (partSearch);
         
-        assocParts = index >= 0 ? new TableView<>(Inventory.getAllProducts().get(index).getAllAssociated()) :
-                                  new TableView<> ();
+        assocParts = new TableView<> ();
+        assocQty = new HashMap<>();
         
         search = new TextField();
         removePart = new Button("Remove Associated Part");
@@ -74,7 +80,7 @@ public class ProductForm extends InventoryForm {
         getChildren().add(partFormContainer);
         
         this.setPadding(new Insets(20));
-        getStylesheets().add("file:css/product_form.css");
+        getStyleClass().add("product-form");
     }
     
     /**
@@ -175,8 +181,7 @@ public class ProductForm extends InventoryForm {
     }
     
     private boolean searchPart(Part part, String text) {
-        return( Integer.toString(part.getId()).startsWith(text) ||
-                part.getName().toLowerCase().startsWith(text.toLowerCase()));
+        return SearchFilter.matches(part.getId(), part.getName(), text);
     }
     
     // Configures the available and associated parts tables.
@@ -205,6 +210,14 @@ public class ProductForm extends InventoryForm {
         
         table.getColumns().addAll(id, n, stock, cost);
         
+        if(table == assocParts) {
+            TableColumn<Part, Number> qty = new TableColumn<>("Qty");
+            qty.setMinWidth(60);
+            qty.getStyleClass().add("table-col-label");
+            qty.setCellValueFactory(c -> new ReadOnlyIntegerWrapper(assocQty.getOrDefault(c.getValue().getId(), 0)));
+            table.getColumns().add(qty);
+        }
+        
         table.setRowFactory(tv -> {
             final TableRow<Part> r = new TableRow<>();
             
@@ -255,9 +268,10 @@ public class ProductForm extends InventoryForm {
     @Override
     protected void populateForm (int index) {
         
-        Product prod = index >= 0 ? Inventory.getAllProducts().get(index) : null;
+        Product prod = index >= 0 ? Inventory.getProductsView().get(index) : null;
     
         if(prod != null) {
+            version = prod.getVersion();
             setId(prod.getId());
             setName(prod.getName());
             setPrice(prod.getPrice());
@@ -266,6 +280,9 @@ public class ProductForm extends InventoryForm {
             setMin(prod.getMin());
             
             assocParts.setItems(prod.getAllAssociated());
+            
+            for(Part part : assocParts.getItems())
+                assocQty.put(part.getId(), prod.getAssociatedQuantity(part.getId()));
                         
         }
     }
@@ -281,35 +298,30 @@ public class ProductForm extends InventoryForm {
             
                 if(formValidation()) {
                 
-                    int id = Inventory.getAllProducts().size();
-
-                    Inventory.addProduct(new Product(++id, getName(), getPrice(), getStock(), getMin(), getMax()));
+                    Product prod = new Product(Inventory.nextProductId(), getName(), getPrice(), getStock(), getMin(), getMax());
                     
-                    if(assocParts.getItems().size() > 0) {
-                        
-                        for(Part part : assocParts.getItems()) {
-                            Inventory.lookupProduct(id).addAssociatedPart(part);
-                        }
+                    for(Part part : assocParts.getItems()) {
+                        prod.addAssociatedPart(part, assocQty.get(part.getId()));
                     }
 
+                    Inventory.addProduct(prod);
+
                     closeForm();
                 }
             });
         
-        // add part to assoc parts
+        // add part to assoc parts, adding an associated part again raises its quantity
         addPart.setOnAction(e -> { 
             
             Part part = availableParts.getSelectionModel().getSelectedItem();
             
-            for(Part p : assocParts.getItems()) {
-                if(part != null && part.getId() == p.getId()) {
-                    part = null;
-                }
+            if(part != null) {
+                if(assocQty.merge(part.getId(), 1, Integer::sum) == 1)
+                    assocParts.getItems().add(part);
+                else
+                    assocParts.refresh();
             }
             
-            if(part != null)
-                assocParts.getItems().add(part);
-            
             availableParts.getSelectionModel().clearSelection();
             enableDisableBtns(availableParts);
         });
@@ -327,6 +339,7 @@ public class ProductForm extends InventoryForm {
                 c.showAndWait().ifPresent(response -> {
                                     if (response == ButtonType.OK) {
                                         assocParts.getItems().remove(part);
+                                        assocQty.remove(part.getId());
                                         assocParts.getSelectionModel().clearSelection();
                                         enableDisableBtns(assocParts);
                                     }
@@ -367,19 +380,38 @@ public class ProductForm extends InventoryForm {
 
                 if(formValidation()) {
                     
-                    Inventory.updateProduct(index, new Product(getItemId(), getName(), getPrice(), getStock(), getMin(), getMax()));
+                    Product prod = Inventory.lookupProduct(getItemId());
                     
-                    Product prod = Inventory.getAllProducts().get(index);
-                    ObservableList<Part> tmp = prod.getAllAssociated();
+                    // Refused if the product changed since the form was populated, e.g. units built.
+                    if(prod == null || !prod.compareAndSetStock(version, getStock())) {
+                        Alert w = new Alert(Alert.AlertType.WARNING);
+                        w.setHeaderText("WARNING!");
+                        w.setContentText("Product was changed while being modified, reopen it to see the changes.");
+                        w.show();
+                        return;
+                    }
                     
-                    for(Part part : tmp) {
-                        prod.deleteAssociatedPart(part);
+                    prod.setName(getName());
+                    prod.setPrice(getPrice());
+                    prod.setMin(getMin());
+                    prod.setMax(getMax());
+                    
+                    // Apply only the difference between the saved and edited associations.
+                    for(Part part : prod.getAllAssociated()) {
+                        if(!assocQty.containsKey(part.getId()))
+                            prod.deleteAssociatedPart(part);
                     }
                     
                     for(Part part : assocParts.getItems()) {
-                        prod.addAssociatedPart(part);
+                        int qty = assocQty.get(part.getId());
+                        
+                        if(prod.getAssociatedQuantity(part.getId()) != qty)
+                            prod.addAssociatedPart(part, qty);
                     }
                     
+                    // Report the edit to views of Inventory.
+                    Inventory.updateProduct(prod);
+                    
                     closeForm();
                 }
             });
@@ -394,7 +426,7 @@ public class ProductForm extends InventoryForm {
      */
     @Override
     protected void closeForm() {
-        getStage().setScene(new Scene(new HomePage(getStage())));
+        Main.show(getStage(), new HomePage(getStage()));
     }
 }
 
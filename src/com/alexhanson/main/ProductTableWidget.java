@@ -1,11 +1,14 @@
 
 package com.alexhanson.main;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.Predicate;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
 import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
 import javafx.geometry.Pos;
-import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
@@ -14,9 +17,8 @@ import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableRow;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
+import javafx.scene.control.Tooltip;
 import javafx.scene.control.cell.PropertyValueFactory;
-import javafx.scene.input.KeyCode;
-import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
@@ -37,18 +39,25 @@ public class ProductTableWidget extends VBox {
     final private Button delete;
     
     final private Stage appStage;
-    private FilteredList<Product> data;
+    final private IndexedSortedList<Product> sorted;
+    final private FilteredList<Product> data;
+    
+    // Indexes backing the sortable columns.
+    final private Map<TableColumn<Product, ?>, SortedIndex<Product>> columnIndexes;
     
     /**
      * Constructor: Initializes table display with products inventory.
      * @param appStage Reference to application's Stage for redirection.
-     * @param data The products to display.
+     * @param data The products to display. Pass a live view such as Inventory.getProductsView()
+     * for the table to follow changes to Inventory.
      */
     public ProductTableWidget(Stage appStage, ObservableList<Product> data) {
         
         super();
         this.appStage = appStage;
-        this.data = new FilteredList<>(data);
+        this.sorted = new IndexedSortedList<>(data);
+        this.data = new FilteredList<>(sorted);
+        this.columnIndexes = new HashMap<>();
         
         table = new TableView<>(this.data);
         search = new TextField();
@@ -64,7 +73,6 @@ public class ProductTableWidget extends VBox {
         setMinWidth(650);
         
         getStyleClass().add("border-box");
-        getStylesheets().add("file:css/tablewidget.css");
     }
     
     // Provides layout for widget title and search bar.
@@ -106,6 +114,8 @@ public class ProductTableWidget extends VBox {
         });
         
         search.setPromptText("Search by Product ID or Name");
+        search.setTooltip(new Tooltip("Search by Product ID or Name, or by ranges of price,\n"
+                                      + "stock, min and max e.g. stock<10 price>50"));
         search.setMinWidth(180);
         search.setAlignment(Pos.CENTER);
     }
@@ -113,27 +123,51 @@ public class ProductTableWidget extends VBox {
     @SuppressWarnings("unchecked")
     private void tableConfig() {
         
-        TableColumn<Product, String> id = new TableColumn<>("Product ID");
+        TableColumn<Product, Number> id = new TableColumn<>("Product ID");
         TableColumn<Product, String> n = new TableColumn<>("Product Name");
-        TableColumn<Product, String> stock = new TableColumn<>("Inventory Level");
-        TableColumn<Product, String> cost = new TableColumn<>("Price/Cost per Unit");
+        TableColumn<Product, Number> stock = new TableColumn<>("Inventory Level");
+        TableColumn<Product, Number> cost = new TableColumn<>("Price/Cost per Unit");
+        TableColumn<Product, Number> buildable = new TableColumn<>("Buildable");
+        TableColumn<Product, Number> materials = new TableColumn<>("Materials");
         
         id.setPrefWidth(90);
         n.setPrefWidth(120);
         stock.setPrefWidth(130);
         cost.setPrefWidth(150);
+        buildable.setPrefWidth(90);
+        materials.setPrefWidth(100);
         
         id.getStyleClass().add("table-col-label");
         n.getStyleClass().add("table-col-label");
         stock.getStyleClass().add("table-col-label");
         cost.getStyleClass().add("table-col-label");
+        buildable.getStyleClass().add("table-col-label");
+        materials.getStyleClass().add("table-col-label");
         
-        id.setCellValueFactory(new PropertyValueFactory<>("id"));
+        // Numeric columns hold their primitive values so they display and sort as numbers.
+        id.setCellValueFactory(c -> new ReadOnlyIntegerWrapper(c.getValue().getId()));
         n.setCellValueFactory(new PropertyValueFactory<>("name"));
-        stock.setCellValueFactory(new PropertyValueFactory<>("stock"));
-        cost.setCellValueFactory(new PropertyValueFactory<>("price"));
+        cost.setCellValueFactory(c -> new ReadOnlyDoubleWrapper(c.getValue().getPrice()));
+        // Bound to the product's properties so the cells follow stock and part price changes.
+        stock.setCellValueFactory(c -> c.getValue().stockProperty());
+        buildable.setCellValueFactory(c -> c.getValue().buildableProperty());
+        materials.setCellValueFactory(c -> c.getValue().materialCostProperty());
+        
+        table.getColumns().addAll(id, n, stock, cost, buildable, materials);
         
-        table.getColumns().addAll(id, n, stock, cost);
+        // Sorting walks an index maintained by the sorted view rather than sorting rows.
+        columnIndexes.put(id, sorted.addIndex(Product::getId));
+        columnIndexes.put(stock, sorted.addIndex(Product::getStock));
+        columnIndexes.put(cost, sorted.addIndex(Product::getPrice));
+        n.setSortable(false);
+        buildable.setSortable(false);
+        materials.setSortable(false);
+        
+        table.setSortPolicy(tv -> {
+            TableColumn<Product, ?> col = tv.getSortOrder().isEmpty() ? null : tv.getSortOrder().get(0);
+            sorted.sortBy(columnIndexes.get(col), col == null || col.getSortType() == TableColumn.SortType.ASCENDING);
+            return true;
+        });
         
         table.setRowFactory( tv -> {
             final TableRow<Product> r = new TableRow<>();
@@ -177,7 +211,7 @@ public class ProductTableWidget extends VBox {
     private void btnConfig() {
         
         add.setOnAction(e -> { 
-            appStage.setScene(new Scene(new ProductForm(appStage, -1)));
+            Main.show(appStage, new ProductForm(appStage, -1));
         });
         
         modify.setOnAction(e -> { 
@@ -185,7 +219,7 @@ public class ProductTableWidget extends VBox {
             Product tmp = table.getSelectionModel().getSelectedItem();
                     
             if(tmp != null)
-                appStage.setScene(new Scene(new ProductForm(appStage, data.getSource().indexOf(tmp))));
+                Main.show(appStage, new ProductForm(appStage, sorted.getSource().indexOf(tmp)));
         });
         
         delete.setOnAction(e -> {
@@ -200,21 +234,18 @@ public class ProductTableWidget extends VBox {
                 c.showAndWait().ifPresent(response -> {
                                     if (response == ButtonType.OK) {
                                         
-                                        if(tmp.getAllAssociated().isEmpty()){
+                                        if(tmp.getAssociatedPartIds().isEmpty() && tmp.getSubAssemblyIds().isEmpty()
+                                                && Inventory.lookupProductsContaining(tmp.getId()).isEmpty()){
                                             
+                                            // The table is bound to a live view of Inventory, the
+                                            // removal reaches it through the filtered list.
                                             if(Inventory.deleteProduct(tmp)) {
-                                                data = new FilteredList<>(Inventory.getAllProducts());
-                                                table.setItems(data);
-                                                // force a firing of change event to update output
-                                                // while leaving original search text;
-                                                String deleteSearch = search.getText();
-                                                search.setText("");
-                                                search.fireEvent(new KeyEvent(KeyEvent.KEY_TYPED, deleteSearch, deleteSearch, KeyCode.ALPHANUMERIC, false, false, false, false));
+                                                enableDisableBtns();
                                             }
                                         }else {
                                             Alert w = new Alert(Alert.AlertType.WARNING);
                                             w.setHeaderText("WARNING!");
-                                            w.setContentText("Cannont delete product with associated parts!");
+                                            w.setContentText("Cannont delete product with associated parts or assemblies!");
                                             w.show();
                                         }
                                     }
@@ -233,11 +264,18 @@ public class ProductTableWidget extends VBox {
     }
     
     private boolean searchPart(Product prod, String text) {
-        return( Integer.toString(prod.getId()).startsWith(text) ||
-                prod.getName().toLowerCase().startsWith(text.toLowerCase()));
+        return SearchFilter.matches(prod.getId(), prod.getName(), text);
     }
     
     private Predicate<Product> createPredicate(String text){
+        
+        // Range queries such as "stock<10 price>50" test each row as it stands, so rows added
+        // or changed later are tested again by the filtered list.
+        RangeQuery query = RangeQuery.parse(text);
+        
+        if(query != null)
+            return query::matches;
+        
         return prod -> {
             if(text == null || text.isEmpty())
                 return true;
@@ -0,0 +1,144 @@
+
+package com.alexhanson.main;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Ordered indexes over several numeric fields of a set of items, answering RangeQuery.
+ * Each field is kept in a SortedIndex, so a range of one field is found by two binary
+ * searches. A query over several fields walks only the narrowest of its ranges and checks
+ * the other fields of the items found, taking O(log n + k) for k items in that range.
+ * @author Alex Hanson
+ * @param <E> The type of item indexed.
+ */
+public class RangeIndex<E> {
+
+    // Index of each field, keyed by field name.
+    final private Map<String, SortedIndex<E>> fields;
+
+    /**
+     * Constructor: Initializes an index without fields.
+     */
+    public RangeIndex() {
+        fields = new LinkedHashMap<>();
+    }
+
+    /**
+     * Adds a field to index. Fields must be added before any item.
+     * @param name The field's name, as used in queries.
+     * @param key Function providing the field's value.
+     */
+    public void addField(String name, ToDoubleFunction<? super E> key) {
+        fields.put(name, new SortedIndex<>(key));
+    }
+
+    /**
+     * @param item The item to add to every field's index.
+     */
+    public void insert(E item) {
+
+        for(SortedIndex<E> index : fields.values())
+            index.insert(item);
+    }
+
+    /**
+     * @param item The item to remove from every field's index.
+     */
+    public void remove(E item) {
+
+        for(SortedIndex<E> index : fields.values())
+            index.remove(item);
+    }
+
+    /**
+     * Files an item in place of another in every field's index, see SortedIndex.replace().
+     * @param item The item to replace.
+     * @param replacement The item to file in its place.
+     */
+    public void replace(E item, E replacement) {
+
+        for(SortedIndex<E> index : fields.values())
+            index.replace(item, replacement);
+    }
+
+    /**
+     * Refiles an item after a change to one field, the other fields being left alone.
+     * @param item The changed item.
+     * @param name The name of the field that changed.
+     * @param oldValue The field's value before the change.
+     */
+    public void reposition(E item, String name, double oldValue) {
+        fields.get(name).reposition(item, oldValue);
+    }
+
+    /**
+     * Refiles an item in every field whose index no longer matches its value. Callers that
+     * know the field changed use reposition(E, String, double), which visits that field only.
+     * @param item The changed item.
+     */
+    public void reposition(E item) {
+
+        for(SortedIndex<E> index : fields.values()) {
+            int pos = index.indexOf(item);
+
+            if(pos >= 0 && index.keyAt(pos) != index.keyOf(item))
+                index.reposition(item);
+        }
+    }
+
+    /**
+     * Finds the items matching a query, in ascending order of the field whose range is narrowest.
+     * @param query The query to answer.
+     * @return The matching items.
+     * @throws IllegalArgumentException Thrown if the query constrains a field that is not indexed.
+     */
+    public List<E> query(RangeQuery query) throws IllegalArgumentException {
+
+        SortedIndex<E> narrowest = null;
+        int from = 0;
+        int to = 0;
+
+        for(Map.Entry<String, RangeQuery.Bounds> entry : query.getBounds().entrySet()) {
+            SortedIndex<E> index = fields.get(entry.getKey());
+
+            if(index == null)
+                throw new IllegalArgumentException("Field " + entry.getKey() + " is not indexed");
+
+            RangeQuery.Bounds b = entry.getValue();
+            int lo = b.isLowInclusive() ? index.lowerBound(b.getLow()) : index.upperBound(b.getLow());
+            int hi = b.isHighInclusive() ? index.upperBound(b.getHigh()) : index.lowerBound(b.getHigh());
+
+            if(narrowest == null || Math.max(hi - lo, 0) < to - from) {
+                narrowest = index;
+                from = lo;
+                to = Math.max(hi, lo);
+            }
+        }
+
+        List<E> tmp = new ArrayList<>();
+
+        for(int i = from; i < to; i++) {
+            E item = narrowest.get(i);
+
+            if(matches(item, query))
+                tmp.add(item);
+        }
+
+        return tmp;
+    }
+
+    // Checks every bound of query against the item's current field values.
+    private boolean matches(E item, RangeQuery query) {
+
+        for(Map.Entry<String, RangeQuery.Bounds> entry : query.getBounds().entrySet()) {
+            if(!entry.getValue().contains(fields.get(entry.getKey()).keyOf(item)))
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,224 @@
+
+package com.alexhanson.main;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A conjunction of ranges over the numeric fields of inventory items, such as
+ * "stock &lt; 10 AND price &gt; 50". Each field may appear more than once, its ranges are
+ * intersected. Queries are answered by RangeIndex.
+ * @author Alex Hanson
+ */
+public final class RangeQuery {
+
+    /** The fields a query may constrain. */
+    final public static String[] FIELDS = {"price", "stock", "min", "max"};
+
+    /**
+     * The values of one field a query accepts, an interval whose ends may be open or closed.
+     */
+    public static final class Bounds {
+
+        private double low = Double.NEGATIVE_INFINITY;
+        private boolean lowInclusive = true;
+        private double high = Double.POSITIVE_INFINITY;
+        private boolean highInclusive = true;
+
+        /**
+         * @param value A value of the field.
+         * @return True if value lies within the bounds.
+         */
+        public boolean contains(double value) {
+            return (lowInclusive ? value >= low : value > low)
+                   && (highInclusive ? value <= high : value < high);
+        }
+
+        /**
+         * @return The lowest value accepted, or the open lower end.
+         */
+        public double getLow() {
+            return low;
+        }
+
+        /**
+         * @return True if getLow() itself is accepted.
+         */
+        public boolean isLowInclusive() {
+            return lowInclusive;
+        }
+
+        /**
+         * @return The highest value accepted, or the open upper end.
+         */
+        public double getHigh() {
+            return high;
+        }
+
+        /**
+         * @return True if getHigh() itself is accepted.
+         */
+        public boolean isHighInclusive() {
+            return highInclusive;
+        }
+
+        // Narrows the lower end to value if that is tighter.
+        private void raiseLow(double value, boolean inclusive) {
+
+            if(value > low || (value == low && !inclusive)) {
+                low = value;
+                lowInclusive = inclusive;
+            }
+        }
+
+        // Narrows the upper end to value if that is tighter.
+        private void lowerHigh(double value, boolean inclusive) {
+
+            if(value < high || (value == high && !inclusive)) {
+                high = value;
+                highInclusive = inclusive;
+            }
+        }
+    }
+
+    // Bounds keyed by field name, in the order the fields first appear.
+    final private Map<String, Bounds> bounds;
+
+    private RangeQuery(Map<String, Bounds> bounds) {
+        this.bounds = Collections.unmodifiableMap(bounds);
+    }
+
+    /**
+     * @return The bounds of each constrained field, keyed by field name.
+     */
+    public Map<String, Bounds> getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Tests a part against the query as it stands, without the indexes, for views that
+     * re-test rows as they change.
+     * @param part The part to test.
+     * @return True if the part's fields lie within every bound.
+     */
+    public boolean matches(Part part) {
+        return matches(part.getPrice(), part.getStock(), part.getMin(), part.getMax());
+    }
+
+    /**
+     * Tests a product against the query as it stands, see matches(Part).
+     * @param product The product to test.
+     * @return True if the product's fields lie within every bound.
+     */
+    public boolean matches(Product product) {
+        return matches(product.getPrice(), product.getStock(), product.getMin(), product.getMax());
+    }
+
+    // Tests the values of FIELDS, given in the same order.
+    private boolean matches(double... values) {
+
+        for(int i = 0; i < FIELDS.length; i++) {
+            Bounds b = bounds.get(FIELDS[i]);
+
+            if(b != null && !b.contains(values[i]))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses a query made of terms "field op value" separated by spaces or "and", where
+     * field is one of FIELDS, op is one of &lt; &lt;= &gt; &gt;= = and value a non-negative
+     * number. Case and the spaces within a term are not significant. Like InventoryValidator,
+     * parsing does not throw, so any search text can be tried as a query.
+     * @param text The text to parse.
+     * @return The query, or null if text is not a query.
+     */
+    public static RangeQuery parse(CharSequence text) {
+
+        if(text == null)
+            return null;
+
+        Map<String, Bounds> bounds = new LinkedHashMap<>();
+        int i = 0;
+        int n = text.length();
+
+        while(true) {
+            i = skipSpaces(text, i);
+
+            if(i == n)
+                break;
+
+            int start = i;
+
+            while(i < n && Character.isLetter(text.charAt(i)))
+                i++;
+
+            String word = text.subSequence(start, i).toString().toLowerCase();
+
+            if(word.equals("and") && !bounds.isEmpty())
+                continue;
+
+            if(!isField(word))
+                return null;
+
+            i = skipSpaces(text, i);
+
+            if(i == n)
+                return null;
+
+            char op = text.charAt(i++);
+            boolean orEqual = i < n && text.charAt(i) == '=' && op != '=';
+
+            if(orEqual)
+                i++;
+
+            if(op != '<' && op != '>' && op != '=')
+                return null;
+
+            i = skipSpaces(text, i);
+            start = i;
+
+            while(i < n && (Character.isDigit(text.charAt(i)) || text.charAt(i) == '.'))
+                i++;
+
+            double value = InventoryValidator.parsePrice(text.subSequence(start, i));
+
+            if(Double.isNaN(value))
+                return null;
+
+            Bounds b = bounds.computeIfAbsent(word, k -> new Bounds());
+
+            if(op == '<')
+                b.lowerHigh(value, orEqual);
+            else if(op == '>')
+                b.raiseLow(value, orEqual);
+            else {
+                b.raiseLow(value, true);
+                b.lowerHigh(value, true);
+            }
+        }
+
+        return bounds.isEmpty() ? null : new RangeQuery(bounds);
+    }
+
+    private static boolean isField(String word) {
+
+        for(String field : FIELDS) {
+            if(field.equals(word))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static int skipSpaces(CharSequence text, int i) {
+
+        while(i < text.length() && Character.isWhitespace(text.charAt(i)))
+            i++;
+
+        return i;
+    }
+}
@@ -0,0 +1,83 @@
+
+package com.alexhanson.main;
+
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.collections.ObservableList;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+
+/**
+ * Display widget for the parts needing reorder.
+ * The table follows a live list, so parts appear and leave as their stock changes.
+ * @author Alex Hanson
+ */
+public class ReorderTableWidget extends VBox {
+
+    final private TableView<Part> table;
+
+    /**
+     * Constructor: Initializes table display with the parts needing reorder.
+     * @param data The parts to display, such as Inventory.getReorderView().
+     */
+    public ReorderTableWidget(ObservableList<Part> data) {
+
+        super();
+        table = new TableView<>(data);
+
+        buildHeader();
+        tableConfig();
+
+        getStyleClass().add("border-box");
+    }
+
+    // Provides layout for widget title.
+    private void buildHeader() {
+
+        Label n = new Label("Needs Reorder");
+        n.getStyleClass().add("table-title");
+        getChildren().add(n);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void tableConfig() {
+
+        TableColumn<Part, Number> id = new TableColumn<>("Part ID");
+        TableColumn<Part, String> n = new TableColumn<>("Part Name");
+        TableColumn<Part, Number> stock = new TableColumn<>("Inventory Level");
+        TableColumn<Part, Number> min = new TableColumn<>("Min");
+
+        id.setPrefWidth(90);
+        n.setPrefWidth(120);
+        stock.setPrefWidth(130);
+        min.setPrefWidth(90);
+
+        id.getStyleClass().add("table-col-label");
+        n.getStyleClass().add("table-col-label");
+        stock.getStyleClass().add("table-col-label");
+        min.getStyleClass().add("table-col-label");
+
+        id.setCellValueFactory(c -> new ReadOnlyIntegerWrapper(c.getValue().getId()));
+        n.setCellValueFactory(new PropertyValueFactory<>("name"));
+        stock.setCellValueFactory(c -> c.getValue().stockProperty());
+        min.setCellValueFactory(c -> new ReadOnlyIntegerWrapper(c.getValue().getMin()));
+
+        table.getColumns().addAll(id, n, stock, min);
+
+        // The list is ordered by when parts ran low, sorting a live unmodifiable list is not supported.
+        id.setSortable(false);
+        n.setSortable(false);
+        stock.setSortable(false);
+        min.setSortable(false);
+
+        table.setPrefHeight(150);
+        HBox tableContainer = new HBox(table);
+        tableContainer.getStyleClass().add("table-container");
+        tableContainer.setAlignment(Pos.CENTER_LEFT);
+        getChildren().add(tableContainer);
+    }
+}
@@ -0,0 +1,39 @@
+
+package com.alexhanson.main;
+
+/**
+ * Key of the updates to one row of an owner, such as a list or an index, for an
+ * UpdateDispatcher. Keys are equal when made for the same owner object and row id.
+ * @author Alex Hanson
+ */
+public final class RowKey {
+
+    final private Object owner;
+    final private int id;
+
+    /**
+     * Constructor: Initializes a key.
+     * @param owner The object owning the row, compared by identity.
+     * @param id The id of the row.
+     */
+    public RowKey(Object owner, int id) {
+        this.owner = owner;
+        this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if(!(o instanceof RowKey))
+            return false;
+
+        RowKey other = (RowKey) o;
+
+        return other.owner == owner && other.id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(owner) * 31 + id;
+    }
+}
@@ -0,0 +1,90 @@
+
+package com.alexhanson.main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import javafx.beans.Observable;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.util.Callback;
+
+/**
+ * A live list of rows for display, each row showing the record held for one id, kept in line
+ * with records held elsewhere by showing and hiding them by id. Rows are listed in the order
+ * their ids were first shown. Each listed id's listing sequence is recorded, and the
+ * sequences ascend along the list, so an id's row is found by binary search and showing or
+ * hiding a record costs O(log n) plus moving the rows after it.
+ * <p>
+ * Rows are changed through Inventory.viewUpdate(), which applies one update at a time.
+ * @param <E> The type of the records shown.
+ * @author Alex Hanson
+ */
+public final class RowList<E> {
+
+    final private ObservableList<E> rows;
+    final private ObservableList<E> view;
+    // Sequence each listed id was listed with, and the sequences in list order.
+    final private HashMap<Integer, Long> listed = new HashMap<>();
+    private long[] sequences = new long[16];
+    private long nextSequence;
+
+    /**
+     * Constructor: Initializes an empty list.
+     * @param extractor The properties of a record whose changes are reported as updates of
+     * its row, or null to report only rows shown again.
+     */
+    public RowList(Callback<E, Observable[]> extractor) {
+
+        rows = extractor == null ? FXCollections.observableArrayList() : FXCollections.observableArrayList(extractor);
+        view = FXCollections.unmodifiableObservableList(rows);
+    }
+
+    /**
+     * @return Live, read-only list of the rows.
+     */
+    public ObservableList<E> getView() {
+        return view;
+    }
+
+    /**
+     * Lists a record at the end, or sets the row of its id if already listed.
+     * @param id The id of the record.
+     * @param record The record to show.
+     */
+    public void show(int id, E record) {
+
+        Long sequence = listed.get(id);
+
+        if(sequence != null) {
+            rows.set(rowOf(sequence), record);
+            return;
+        }
+
+        if(rows.size() == sequences.length)
+            sequences = Arrays.copyOf(sequences, sequences.length * 2);
+
+        sequences[rows.size()] = nextSequence;
+        listed.put(id, nextSequence++);
+        rows.add(record);
+    }
+
+    /**
+     * Unlists the record of an id, if listed.
+     * @param id The id of the record.
+     */
+    public void hide(int id) {
+
+        Long sequence = listed.remove(id);
+
+        if(sequence == null)
+            return;
+
+        int row = rowOf(sequence);
+        System.arraycopy(sequences, row + 1, sequences, row, rows.size() - row - 1);
+        rows.remove(row);
+    }
+
+    private int rowOf(long sequence) {
+        return Arrays.binarySearch(sequences, 0, rows.size(), sequence);
+    }
+}
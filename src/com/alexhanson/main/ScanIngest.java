@@ -0,0 +1,430 @@
+
+package com.alexhanson.main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes barcode scan events, one per item scanned, and applies them to part stock as one net
+ * change per part per window of time. Scanners emit hundreds of events a second for the same
+ * part, applying each as a change of its own would update the indexes and views that often,
+ * where a window of 100 ms updates them ten times a second at most.
+ * <p>
+ * Events are lines of text, "partId" for one unit scanned in, or "partId quantity" with a
+ * signed quantity, separated by a space, comma or tab. They are read from TCP connections,
+ * see listen(), or from a file other processes append to, see tail(). Each source parses its
+ * input as it arrives and sums each read's events by part before adding them to the window,
+ * so a busy source touches the shared window once per part per read.
+ * <p>
+ * Each net change is applied with Inventory.adjustPartStock(), so it adds to the stock as it
+ * stands: changes made meanwhile through other paths are kept, and edits based on a stock
+ * read before are refused rather than overwriting it, see Part.compareAndSetStock(). A net
+ * change for an unknown part, or taking stock above Integer.MAX_VALUE, is rejected whole and
+ * counted. Scans are physical, so a net change that would take stock below zero is not
+ * rejected: the units on hand are taken and the rest is carried into the next window, where
+ * it nets against the units scanned in meanwhile. Units still carried are held by
+ * getUnapplied(), also once stopped.
+ * @author Alex Hanson
+ */
+public class ScanIngest {
+
+    /** Window length used by the default constructor, in milliseconds. */
+    final public static long DEFAULT_WINDOW = 100;
+
+    // Bytes read from a source at a time.
+    final private static int READ_SIZE = 1 << 16;
+    // Milliseconds between checks of a tailed file for appended events.
+    final private static long TAIL_POLL = 20;
+
+    // Net quantity scanned per part id in the current window. Each entry is taken whole by
+    // remove() when the window is applied, later scans and units carried start a new entry.
+    final private ConcurrentHashMap<Integer, Integer> window = new ConcurrentHashMap<>();
+    final private long windowMillis;
+    final private ScheduledExecutorService windows;
+    final private ExecutorService sources;
+    final private List<Closeable> open = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    final private AtomicLong scans = new AtomicLong();
+    final private AtomicLong malformed = new AtomicLong();
+    final private AtomicLong applied = new AtomicLong();
+    final private AtomicLong rejected = new AtomicLong();
+    final private AtomicLong carried = new AtomicLong();
+    final private AtomicLong windowCount = new AtomicLong();
+    private volatile String lastRejection;
+
+    /**
+     * Constructor: Initializes an ingest applying windows of DEFAULT_WINDOW milliseconds.
+     */
+    public ScanIngest() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructor: Initializes an ingest and begins applying windows, add sources with
+     * listen() and tail().
+     * @param windowMillis The length of a window in milliseconds.
+     * @throws IllegalArgumentException Thrown if windowMillis is less than 1.
+     */
+    public ScanIngest(long windowMillis) throws IllegalArgumentException {
+
+        if(windowMillis < 1)
+            throw new IllegalArgumentException("Window must be at least 1 ms");
+
+        this.windowMillis = windowMillis;
+        windows = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "scan-windows");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sources = Threads.newThreadPerTaskExecutor("scan-source");
+        windows.scheduleAtFixedRate(this::applyWindow, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Accepts connections from scanners on a port, reading events from each until it closes.
+     * @param port The port to listen on, 0 for any free port.
+     * @return The port listened on.
+     * @throws IOException Thrown if the port cannot be bound.
+     */
+    public int listen(int port) throws IOException {
+
+        ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress(port));
+        open.add(server);
+
+        sources.execute(() -> {
+            while(running) {
+                try {
+                    Socket socket = server.accept();
+                    open.add(socket);
+                    sources.execute(() -> read(socket));
+                } catch(IOException e) {
+                    // The port was closed by stop(), or the connection failed before it was accepted.
+                }
+            }
+        });
+
+        return server.getLocalPort();
+    }
+
+    /**
+     * Reads events appended to a file, from its current end, until stopped. A file truncated
+     * meanwhile is read again from its start.
+     * @param file The file scanners append to.
+     * @throws IOException Thrown if the file cannot be opened.
+     */
+    public void tail(Path file) throws IOException {
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(channel.size());
+        open.add(channel);
+
+        sources.execute(() -> tail(channel));
+    }
+
+    /**
+     * Closes the sources and applies the events already read. Units carried for lack of
+     * stock are left in getUnapplied().
+     */
+    public void stop() {
+
+        running = false;
+
+        for(Closeable closeable : open) {
+            try {
+                closeable.close();
+            } catch(IOException e) {
+                // Closing is all that was wanted.
+            }
+        }
+
+        sources.shutdownNow();
+        windows.shutdown();
+
+        // The sources add what they read as they end, the window then applies all of it.
+        try {
+            sources.awaitTermination(1, TimeUnit.SECONDS);
+            windows.awaitTermination(windowMillis * 10, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        applyWindow();
+    }
+
+    /**
+     * Adds events to the current window, as a source does for the events it read.
+     * @param partId The id of the part scanned.
+     * @param quantity The units scanned, negative for units taken out.
+     */
+    public void scan(int partId, int quantity) {
+
+        scans.incrementAndGet();
+        window.merge(partId, quantity, Integer::sum);
+    }
+
+    /**
+     * @return The number of events read.
+     */
+    public long getScans() {
+        return scans.get();
+    }
+
+    /**
+     * @return The number of lines that were not events, skipped.
+     */
+    public long getMalformed() {
+        return malformed.get();
+    }
+
+    /**
+     * @return The number of net changes applied to part stock.
+     */
+    public long getApplied() {
+        return applied.get();
+    }
+
+    /**
+     * @return The number of net changes rejected, see getLastRejection().
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The number of net changes carried into the next window for lack of stock.
+     */
+    public long getCarried() {
+        return carried.get();
+    }
+
+    /**
+     * @return A copy of the net quantities not yet applied, by part id, including those
+     * carried for lack of stock.
+     */
+    public Map<Integer, Integer> getUnapplied() {
+        return new HashMap<>(window);
+    }
+
+    /**
+     * @return The number of windows applied that held events.
+     */
+    public long getWindows() {
+        return windowCount.get();
+    }
+
+    /**
+     * @return The reason the last net change was rejected, null if none was.
+     */
+    public String getLastRejection() {
+        return lastRejection;
+    }
+
+    // Applies the net change of each part scanned since the last window.
+    private void applyWindow() {
+
+        if(window.isEmpty())
+            return;
+
+        windowCount.incrementAndGet();
+
+        for(Integer partId : window.keySet()) {
+            Integer quantity = window.remove(partId);
+
+            if(quantity == null || quantity == 0)
+                continue;
+
+            try {
+                Inventory.adjustPartStock(partId, quantity);
+                applied.incrementAndGet();
+            } catch(IllegalArgumentException e) {
+                Part part = Inventory.lookupPart(partId);
+
+                if(part == null || quantity > 0) {
+                    rejected.incrementAndGet();
+                    lastRejection = e.getMessage();
+                    continue;
+                }
+
+                // Takes the units on hand, unless they changed meanwhile, and carries the rest.
+                int available = part.getStock();
+                int taken = available > 0 && Inventory.reservePartStock(partId, available) ? available : 0;
+
+                if(taken > 0)
+                    applied.incrementAndGet();
+
+                window.merge(partId, quantity + taken, Integer::sum);
+                carried.incrementAndGet();
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+
+        Events events = new Events();
+
+        try(InputStream in = socket.getInputStream()) {
+            byte[] buffer = new byte[READ_SIZE];
+            int n;
+
+            while(running && (n = in.read(buffer)) > 0)
+                events.parse(buffer, n);
+        } catch(IOException e) {
+            // The scanner went away or the ingest is stopping.
+        } finally {
+            events.end();
+            open.remove(socket);
+        }
+    }
+
+    // Reads what was appended since the last read, waiting TAIL_POLL between reads that
+    // find nothing.
+    private void tail(FileChannel channel) {
+
+        Events events = new Events();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+
+        try {
+            while(running) {
+                buffer.clear();
+                int n = channel.read(buffer);
+
+                if(n > 0) {
+                    events.parse(buffer.array(), n);
+                    continue;
+                }
+
+                if(channel.size() < channel.position()) {
+                    // Truncated, rotated logs start over.
+                    events.discard();
+                    channel.position(0);
+                    continue;
+                }
+
+                Thread.sleep(TAIL_POLL);
+            }
+        } catch(IOException | InterruptedException e) {
+            // The file was closed by stop().
+        }
+    }
+
+    // Parses events from the bytes of one source, which may split lines anywhere, summing
+    // them by part until the read is done.
+    private final class Events {
+
+        final private Map<Integer, int[]> sums = new HashMap<>();
+        private long count;
+        // The line being parsed: its fields so far, the number of fields begun, whether the
+        // current field has digits and whether the quantity is negative.
+        private long id;
+        private long quantity;
+        private int fields;
+        private boolean digits;
+        private boolean negative;
+        private boolean invalid;
+
+        void parse(byte[] bytes, int length) {
+
+            for(int i = 0; i < length; i++) {
+                byte b = bytes[i];
+
+                if(b >= '0' && b <= '9') {
+                    if(!digits) {
+                        fields++;
+                        digits = true;
+                    }
+
+                    if(fields == 1)
+                        id = id * 10 + (b - '0');
+                    else
+                        quantity = quantity * 10 + (b - '0');
+
+                    invalid |= id > Integer.MAX_VALUE || quantity > Integer.MAX_VALUE;
+                } else if(b == '\n') {
+                    endLine();
+                } else if(b == ' ' || b == ',' || b == '\t') {
+                    invalid |= negative && !digits;
+                    digits = false;
+                } else if(b == '-' && fields == 1 && !digits && !negative) {
+                    negative = true;
+                } else if(b != '\r') {
+                    invalid = true;
+                }
+            }
+
+            flush();
+        }
+
+        // Ends the source, a last line without a newline is still an event.
+        void end() {
+            endLine();
+            flush();
+        }
+
+        // Drops the line being parsed and the events not yet added.
+        void discard() {
+            sums.clear();
+            count = 0;
+            reset();
+        }
+
+        private void endLine() {
+
+            if(fields > 0 || negative || invalid) {
+                // A part id, then optionally a quantity.
+                if(invalid || fields > 2 || (negative && fields < 2)) {
+                    malformed.incrementAndGet();
+                } else {
+                    int units = fields == 2 ? (int) (negative ? -quantity : quantity) : 1;
+                    sums.computeIfAbsent((int) id, k -> new int[1])[0] += units;
+                    count++;
+                }
+            }
+
+            reset();
+        }
+
+        private void reset() {
+            id = 0;
+            quantity = 0;
+            fields = 0;
+            digits = false;
+            negative = false;
+            invalid = false;
+        }
+
+        // Adds the events of the read to the window.
+        private void flush() {
+
+            if(count == 0)
+                return;
+
+            scans.addAndGet(count);
+
+            for(Map.Entry<Integer, int[]> sum : sums.entrySet())
+                window.merge(sum.getKey(), sum.getValue()[0], Integer::sum);
+
+            sums.clear();
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+
+package com.alexhanson.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A consistent, read-only view of Inventory as of one commit, for reports that take a while
+ * such as valuations, exports and reconciliations. Opening a snapshot pins its version:
+ * changes committed afterwards create new versions of the rows they change and are not seen
+ * through it, and writers never wait for it. Changes made together with every partition of
+ * Inventory locked, such as a production run, are committed together, so a snapshot sees all
+ * of them or none.
+ * <p>
+ * Snapshots must be closed, the versions only they still need are reclaimed then.
+ * <pre>
+ * try(Snapshot s = Inventory.openSnapshot()) {
+ *     double value = s.getTotalValue();
+ * }
+ * </pre>
+ * @author Alex Hanson
+ */
+public class Snapshot implements AutoCloseable {
+
+    /**
+     * A Part as committed.
+     */
+    public static final class PartRow {
+
+        final private int id;
+        final private String name;
+        final private double price;
+        final private int stock;
+        final private int min;
+        final private int max;
+        final private int machineId;
+        final private String companyName;
+        final private long version;
+
+        PartRow(Part part) {
+
+            this.id = part.getId();
+            this.name = part.getName();
+            this.price = part.getPrice();
+            this.stock = part.getStock();
+            this.min = part.getMin();
+            this.max = part.getMax();
+            this.machineId = part instanceof InHouse ? ((InHouse) part).getMachineId() : 0;
+            this.companyName = part instanceof Outsourced ? ((Outsourced) part).getCompanyName() : null;
+            this.version = part.getVersion();
+        }
+
+        /**
+         * @return the id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the price
+         */
+        public double getPrice() {
+            return price;
+        }
+
+        /**
+         * @return the stock
+         */
+        public int getStock() {
+            return stock;
+        }
+
+        /**
+         * @return the min
+         */
+        public int getMin() {
+            return min;
+        }
+
+        /**
+         * @return the max
+         */
+        public int getMax() {
+            return max;
+        }
+
+        /**
+         * @return True for an InHouse part, which has a machine id, false for an Outsourced
+         * part, which has a company name.
+         */
+        public boolean isInHouse() {
+            return companyName == null;
+        }
+
+        /**
+         * @return The machine id of an InHouse part, 0 for an Outsourced part.
+         */
+        public int getMachineId() {
+            return machineId;
+        }
+
+        /**
+         * @return The company name of an Outsourced part, null for an InHouse part.
+         */
+        public String getCompanyName() {
+            return companyName;
+        }
+
+        /**
+         * @return The version of the Part when committed, see Part.getVersion().
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * A Product as committed, with its parts and sub-assemblies.
+     */
+    public static final class ProductRow {
+
+        final private int id;
+        final private String name;
+        final private double price;
+        final private int stock;
+        final private int min;
+        final private int max;
+        final private int buildable;
+        final private double materialCost;
+        final private long version;
+        final private Map<Integer, Integer> parts;
+        final private Map<Integer, Integer> subAssemblies;
+
+        // Called with the product's partition locked, as the associations are read.
+        ProductRow(Product product) {
+
+            this.id = product.getId();
+            this.name = product.getName();
+            this.price = product.getPrice();
+            this.stock = product.getStock();
+            this.min = product.getMin();
+            this.max = product.getMax();
+            this.buildable = product.getBuildable();
+            this.materialCost = product.getMaterialCost();
+            this.version = product.getVersion();
+
+            Map<Integer, Integer> tmp = new LinkedHashMap<>();
+
+            for(int partId : product.getAssociatedPartIds())
+                tmp.put(partId, product.getAssociatedQuantity(partId));
+
+            this.parts = Collections.unmodifiableMap(tmp);
+            tmp = new LinkedHashMap<>();
+
+            for(int subId : product.getSubAssemblyIds())
+                tmp.put(subId, product.getSubAssemblyQuantity(subId));
+
+            this.subAssemblies = Collections.unmodifiableMap(tmp);
+        }
+
+        /**
+         * @return the id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the price
+         */
+        public double getPrice() {
+            return price;
+        }
+
+        /**
+         * @return the stock
+         */
+        public int getStock() {
+            return stock;
+        }
+
+        /**
+         * @return the min
+         */
+        public int getMin() {
+            return min;
+        }
+
+        /**
+         * @return the max
+         */
+        public int getMax() {
+            return max;
+        }
+
+        /**
+         * @return The units of the Product that could be built when committed, see
+         * Product.getBuildable().
+         */
+        public int getBuildable() {
+            return buildable;
+        }
+
+        /**
+         * @return The cost of materials of the Product when committed, see
+         * Product.getMaterialCost().
+         */
+        public double getMaterialCost() {
+            return materialCost;
+        }
+
+        /**
+         * @return The version of the Product when committed, see Product.getVersion().
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return Units of each associated part needed per unit, by part id in the order added.
+         */
+        public Map<Integer, Integer> getParts() {
+            return parts;
+        }
+
+        /**
+         * @return Units of each sub-assembly needed per unit, by product id in the order added.
+         */
+        public Map<Integer, Integer> getSubAssemblies() {
+            return subAssemblies;
+        }
+    }
+
+    final private VersionStore versions;
+    final private long sequence;
+    private boolean closed;
+
+    Snapshot(VersionStore versions, long sequence) {
+        this.versions = versions;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return The commit the snapshot shows Inventory as of.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param partId The id of a Part.
+     * @return The Part as committed, null if no Part had this id.
+     * @throws IllegalStateException Thrown if the snapshot was closed.
+     */
+    public PartRow lookupPart(int partId) throws IllegalStateException {
+
+        checkOpen();
+
+        return (PartRow) versions.readPart(partId, sequence);
+    }
+
+    /**
+     * @param productId The id of a Product.
+     * @return The Product as committed, null if no Product had this id.
+     * @throws IllegalStateException Thrown if the snapshot was closed.
+     */
+    public ProductRow lookupProduct(int productId) throws IllegalStateException {
+
+        checkOpen();
+
+        return (ProductRow) versions.readProduct(productId, sequence);
+    }
+
+    /**
+     * @return All Parts as committed, by ascending id.
+     * @throws IllegalStateException Thrown if the snapshot was closed.
+     */
+    public List<PartRow> getParts() throws IllegalStateException {
+
+        checkOpen();
+
+        List<PartRow> tmp = new ArrayList<>();
+
+        for(Object row : versions.readParts(sequence))
+            tmp.add((PartRow) row);
+
+        return tmp;
+    }
+
+    /**
+     * @return All Products as committed, by ascending id.
+     * @throws IllegalStateException Thrown if the snapshot was closed.
+     */
+    public List<ProductRow> getProducts() throws IllegalStateException {
+
+        checkOpen();
+
+        List<ProductRow> tmp = new ArrayList<>();
+
+        for(Object row : versions.readProducts(sequence))
+            tmp.add((ProductRow) row);
+
+        return tmp;
+    }
+
+    /**
+     * @return The value on hand, price times stock, of all Parts as committed.
+     * @throws IllegalStateException Thrown if the snapshot was closed.
+     */
+    public double getTotalValue() throws IllegalStateException {
+
+        double total = 0;
+
+        for(PartRow part : getParts())
+            total += part.getPrice() * part.getStock();
+
+        return total;
+    }
+
+    /**
+     * Releases the snapshot's version, reclaiming the versions no other snapshot needs.
+     * Closing a closed snapshot does nothing.
+     */
+    @Override
+    public void close() {
+
+        synchronized(this) {
+            if(closed)
+                return;
+
+            closed = true;
+        }
+
+        Inventory.snapshotClosed(sequence);
+    }
+
+    private synchronized void checkOpen() {
+
+        if(closed)
+            throw new IllegalStateException("Snapshot " + sequence + " is closed");
+    }
+}
@@ -0,0 +1,307 @@
+
+package com.alexhanson.main;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Keeps a set of items ordered by a primitive numeric key.
+ * Items and their keys are stored in parallel arrays, so finding a position is a binary
+ * search over a double[] rather than a comparison of boxed cell values. Items with equal
+ * keys keep the order in which they were inserted.
+ * <p>
+ * Each item is filed under the key it had when inserted and a sequence number telling it
+ * apart from items with equal keys, both recorded for it. An item is therefore found by
+ * binary search however long the run of equal keys, and after its key changed. Removing
+ * an item costs O(log n) plus moving the items after it, refiling one moves only the items
+ * between its old and new positions. An item is indexed at most once.
+ * @author Alex Hanson
+ * @param <E> The type of item indexed.
+ */
+public class SortedIndex<E> {
+
+    // Extracts the sort key of an item.
+    final private ToDoubleFunction<? super E> key;
+
+    // Items in ascending order of key then sequence, with the key and sequence each was
+    // inserted with.
+    private Object[] items;
+    private double[] keys;
+    private long[] sequences;
+    private int size;
+    // Sequence of the next item inserted, later items follow earlier ones with equal keys.
+    private long nextSequence;
+
+    // The key and sequence each indexed item was filed under.
+    final private IdentityHashMap<Object, Filed> filed = new IdentityHashMap<>();
+
+    private static final class Filed {
+
+        final private double key;
+        final private long sequence;
+
+        Filed(double key, long sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Constructor: Initializes an empty index.
+     * @param key Function providing the key an item is ordered by.
+     */
+    public SortedIndex(ToDoubleFunction<? super E> key) {
+
+        this.key = key;
+        this.items = new Object[16];
+        this.keys = new double[16];
+        this.sequences = new long[16];
+    }
+
+    /**
+     * Adds an item after any items with an equal key.
+     * @param item The item to add.
+     * @return The position the item was placed at.
+     */
+    public int insert(E item) {
+
+        double k = key.applyAsDouble(item);
+        long sequence = nextSequence++;
+        // The sequence is the highest yet, so the item goes after every equal key.
+        int pos = upperBound(k);
+
+        if(size == items.length) {
+            items = Arrays.copyOf(items, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+            sequences = Arrays.copyOf(sequences, size * 2);
+        }
+
+        System.arraycopy(items, pos, items, pos + 1, size - pos);
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+        System.arraycopy(sequences, pos, sequences, pos + 1, size - pos);
+        items[pos] = item;
+        keys[pos] = k;
+        sequences[pos] = sequence;
+        filed.put(item, new Filed(k, sequence));
+        size++;
+
+        return pos;
+    }
+
+    /**
+     * Removes an item from the index.
+     * @param item The item to remove.
+     * @return The position the item was removed from, or -1 if it was not indexed.
+     */
+    public int remove(E item) {
+
+        int pos = indexOf(item);
+
+        if(pos >= 0) {
+            removeAt(pos);
+            filed.remove(item);
+        }
+
+        return pos;
+    }
+
+    /**
+     * Finds the position of an item by binary search on the key and sequence it was filed
+     * under, whether or not its key changed since.
+     * @param item The item to look for.
+     * @return The position of the item, or -1 if it is not indexed.
+     */
+    public int indexOf(E item) {
+
+        Filed f = filed.get(item);
+
+        if(f == null)
+            return -1;
+
+        int lo = 0;
+        int hi = size;
+
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if(keys[mid] < f.key || (keys[mid] == f.key && sequences[mid] < f.sequence))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo < size && items[lo] == item ? lo : -1;
+    }
+
+    /**
+     * Moves an item whose key has changed to its new position. An item whose key is
+     * unchanged stays where it is.
+     * @param item The item to move.
+     * @return The new position of the item, or -1 if it was not indexed.
+     */
+    public int reposition(E item) {
+
+        int pos = indexOf(item);
+        double k = key.applyAsDouble(item);
+
+        if(pos < 0 || keys[pos] == k)
+            return pos;
+
+        return move(pos, item, k);
+    }
+
+    /**
+     * Files an item in place of another, such as a record replacing an older copy. With an
+     * equal key the replacement takes the other's position without moving any item.
+     * @param item The item to replace.
+     * @param replacement The item to file in its place.
+     * @return The position of the replacement.
+     */
+    public int replace(E item, E replacement) {
+
+        int pos = indexOf(item);
+
+        if(pos < 0)
+            return insert(replacement);
+
+        double k = key.applyAsDouble(replacement);
+        filed.remove(item);
+
+        if(keys[pos] != k)
+            return move(pos, replacement, k);
+
+        items[pos] = replacement;
+        filed.put(replacement, new Filed(k, sequences[pos]));
+        return pos;
+    }
+
+    /**
+     * Moves an item whose key has changed to its new position. The key each item was filed
+     * under is recorded, so oldKey is not needed to find it, see reposition(E).
+     * @param item The item to move.
+     * @param oldKey The key the item had before the change.
+     * @return The new position of the item, or -1 if it was not indexed.
+     */
+    public int reposition(E item, double oldKey) {
+        return reposition(item);
+    }
+
+    /**
+     * @param item An item, indexed or not.
+     * @return The item's current key.
+     */
+    public double keyOf(E item) {
+        return key.applyAsDouble(item);
+    }
+
+    /**
+     * @param pos Position in ascending key order.
+     * @return The item at pos.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int pos) {
+
+        if(pos < 0 || pos >= size)
+            throw new IndexOutOfBoundsException(pos);
+
+        return (E) items[pos];
+    }
+
+    /**
+     * @param pos Position in ascending key order.
+     * @return The key recorded for the item at pos.
+     */
+    public double keyAt(int pos) {
+
+        if(pos < 0 || pos >= size)
+            throw new IndexOutOfBoundsException(pos);
+
+        return keys[pos];
+    }
+
+    /**
+     * @return The number of items indexed.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param k The key to search for.
+     * @return The first position whose key is greater than or equal to k.
+     */
+    public int lowerBound(double k) {
+
+        int lo = 0;
+        int hi = size;
+
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if(keys[mid] < k)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * @param k The key to search for.
+     * @return The first position whose key is strictly greater than k.
+     */
+    public int upperBound(double k) {
+
+        int lo = 0;
+        int hi = size;
+
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if(keys[mid] <= k)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    // Refiles the item at pos under a new key, after any items with an equal key, shifting
+    // only the items between its old and new positions.
+    private int move(int pos, Object item, double k) {
+
+        long sequence = nextSequence++;
+        int to = upperBound(k);
+
+        if(to > pos) {
+            // The item itself is counted before the new position.
+            to--;
+            System.arraycopy(items, pos + 1, items, pos, to - pos);
+            System.arraycopy(keys, pos + 1, keys, pos, to - pos);
+            System.arraycopy(sequences, pos + 1, sequences, pos, to - pos);
+        } else {
+            System.arraycopy(items, to, items, to + 1, pos - to);
+            System.arraycopy(keys, to, keys, to + 1, pos - to);
+            System.arraycopy(sequences, to, sequences, to + 1, pos - to);
+        }
+
+        items[to] = item;
+        keys[to] = k;
+        sequences[to] = sequence;
+        filed.put(item, new Filed(k, sequence));
+
+        return to;
+    }
+
+    // Closes the gap left by the item at pos.
+    private void removeAt(int pos) {
+
+        System.arraycopy(items, pos + 1, items, pos, size - pos - 1);
+        System.arraycopy(keys, pos + 1, keys, pos, size - pos - 1);
+        System.arraycopy(sequences, pos + 1, sequences, pos, size - pos - 1);
+        items[--size] = null;
+    }
+}
@@ -0,0 +1,187 @@
+
+package com.alexhanson.main;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stock of an inventory item together with a version stamp, changed atomically.
+ * Both are packed into one long so that every change is a single compare-and-set:
+ * writers never lock, and a writer that lost a race retries against the new value.
+ * The version advances with every change. A retired stamp belongs to an item that was
+ * replaced in or deleted from Inventory, and refuses all further stock changes so that
+ * writers holding the old item find the current one instead.
+ * <p>
+ * Stock is never negative, so the stock changes return the stock before the change, or a
+ * negative status: RETIRED, INSUFFICIENT or CONFLICT.
+ * @author Alex Hanson
+ */
+public final class StockStamp {
+
+    /** Returned by the stock changes when the stamp is retired. */
+    final public static int RETIRED = -1;
+    /** Returned by add() when the change would take stock below zero. */
+    final public static int INSUFFICIENT = -2;
+    /** Returned by compareAndSet() when the version has moved on. */
+    final public static int CONFLICT = -3;
+
+    /** The largest version of a stamp, versions wrap around to 0 after it. */
+    final public static long MAX_VERSION = 0xFFFFFFFEL;
+
+    // Version reserved for retired stamps, versions wrap around before reaching it.
+    final private static long RETIRED_VERSION = MAX_VERSION + 1;
+
+    // Version in the high 32 bits, stock in the low 32 bits.
+    final private AtomicLong state;
+
+    /**
+     * Constructor: Initializes a stamp at version 0.
+     * @param stock The initial stock.
+     * @throws IllegalArgumentException Thrown if stock is negative.
+     */
+    public StockStamp(int stock) throws IllegalArgumentException {
+
+        checkStock(stock);
+        state = new AtomicLong(pack(0, stock));
+    }
+
+    /**
+     * @return The current stock.
+     */
+    public int getStock() {
+        return (int) state.get();
+    }
+
+    /**
+     * @return The current version.
+     */
+    public long getVersion() {
+        return state.get() >>> 32;
+    }
+
+    /**
+     * @return True if the item no longer accepts stock changes.
+     */
+    public boolean isRetired() {
+        return getVersion() == RETIRED_VERSION;
+    }
+
+    /**
+     * Sets the stock regardless of version.
+     * @param stock The new stock.
+     * @return The stock before the change, or RETIRED.
+     * @throws IllegalArgumentException Thrown if stock is negative.
+     */
+    public int set(int stock) throws IllegalArgumentException {
+
+        checkStock(stock);
+        long current;
+
+        do {
+            current = state.get();
+
+            if(current >>> 32 == RETIRED_VERSION)
+                return RETIRED;
+        } while(!state.compareAndSet(current, pack(next(current), stock)));
+
+        return (int) current;
+    }
+
+    /**
+     * Sets the stock only if the version is unchanged.
+     * @param expectedVersion The version the caller last read.
+     * @param stock The new stock.
+     * @return The stock before the change, RETIRED or CONFLICT.
+     * @throws IllegalArgumentException Thrown if stock is negative.
+     */
+    public int compareAndSet(long expectedVersion, int stock) throws IllegalArgumentException {
+
+        checkStock(stock);
+        long current = state.get();
+
+        if(current >>> 32 == RETIRED_VERSION)
+            return RETIRED;
+        if(current >>> 32 != expectedVersion)
+            return CONFLICT;
+
+        return state.compareAndSet(current, pack(next(current), stock)) ? (int) current : CONFLICT;
+    }
+
+    /**
+     * Adds to the stock, retrying until the change applies against the current value.
+     * @param delta The change in stock, negative to take stock out.
+     * @return The stock before the change, RETIRED or INSUFFICIENT.
+     */
+    public int add(int delta) {
+
+        long current;
+        long stock;
+
+        do {
+            current = state.get();
+            stock = (int) current + (long) delta;
+
+            if(current >>> 32 == RETIRED_VERSION)
+                return RETIRED;
+            if(stock < 0)
+                return INSUFFICIENT;
+            if(stock > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Stock cannot exceed " + Integer.MAX_VALUE);
+        } while(!state.compareAndSet(current, pack(next(current), (int) stock)));
+
+        return (int) current;
+    }
+
+    /**
+     * Advances the version without changing the stock, marking a change to another field.
+     */
+    public void touch() {
+
+        long current;
+
+        do {
+            current = state.get();
+
+            if(current >>> 32 == RETIRED_VERSION)
+                return;
+        } while(!state.compareAndSet(current, pack(next(current), (int) current)));
+    }
+
+    /**
+     * Retires the stamp whatever its version.
+     */
+    public void retire() {
+        state.getAndUpdate(current -> pack(RETIRED_VERSION, (int) current));
+    }
+
+    /**
+     * Retires the stamp only if the version is unchanged.
+     * @param expectedVersion The version the caller last read.
+     * @return True if the stamp was retired by this call.
+     */
+    public boolean retire(long expectedVersion) {
+
+        long current = state.get();
+
+        return current >>> 32 == expectedVersion && expectedVersion != RETIRED_VERSION
+               && state.compareAndSet(current, pack(RETIRED_VERSION, (int) current));
+    }
+
+    // Negative stock would read as one of the statuses returned with it.
+    private static void checkStock(int stock) {
+
+        if(stock < 0)
+            throw new IllegalArgumentException("Stock cannot be negative");
+    }
+
+    // The version following the one held in current.
+    private static long next(long current) {
+
+        long version = (current >>> 32) + 1;
+
+        return version == RETIRED_VERSION ? 0 : version;
+    }
+
+    private static long pack(long version, int stock) {
+        return version << 32 | (stock & 0xFFFFFFFFL);
+    }
+}
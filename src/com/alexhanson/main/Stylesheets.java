@@ -0,0 +1,56 @@
+
+package com.alexhanson.main;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Locates the application's stylesheets once for all views.
+ * Binary stylesheets (css/*.bss) produced by the build are preferred, falling back
+ * to the .css sources on the classpath and then to the css directory of the working
+ * directory, as used when running from the IDE without a full build.
+ * @author Alex Hanson
+ */
+public final class Stylesheets {
+
+    // Stylesheet names, without extension, in the order they are applied.
+    final private static String[] NAMES = {
+        "homepage", "tablewidget", "inventory_form", "part_form", "product_form"
+    };
+
+    // Resolved stylesheet URLs, located on first use.
+    private static List<String> urls;
+
+    private Stylesheets() {}
+
+    /**
+     * @return Unmodifiable list of URLs for all of the application's stylesheets.
+     */
+    public static synchronized List<String> getAll() {
+
+        if(urls == null) {
+            List<String> tmp = new ArrayList<>();
+
+            for(String name : NAMES)
+                tmp.add(locate(name));
+
+            urls = Collections.unmodifiableList(tmp);
+        }
+
+        return urls;
+    }
+
+    // Finds the best available form of the named stylesheet.
+    private static String locate(String name) {
+
+        URL url = Stylesheets.class.getResource("/css/" + name + ".bss");
+
+        if(url == null)
+            url = Stylesheets.class.getResource("/css/" + name + ".css");
+
+        return url != null ? url.toExternalForm() : new File("css", name + ".css").toURI().toString();
+    }
+}
@@ -0,0 +1,36 @@
+
+package com.alexhanson.main;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thread creation shared by the headless parts of the application.
+ * @author Alex Hanson
+ */
+public final class Threads {
+
+    private Threads() {
+    }
+
+    /**
+     * Provides an executor running each task on a thread of its own: a virtual thread when
+     * the JDK provides them, which first shipped in Java 21, and otherwise a daemon thread
+     * from a cached pool, so that callers build for Java 15. Tasks blocking on I/O or on
+     * queues then cost little more than their stack.
+     * @param name The name of the platform threads, virtual threads are unnamed.
+     * @return The executor.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
+
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
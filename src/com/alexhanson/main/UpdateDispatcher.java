@@ -0,0 +1,112 @@
+
+package com.alexhanson.main;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * Carries updates of observable state from any thread to the JavaFX application thread,
+ * applying them at most once per frame however fast they arrive. Updates are keyed by what
+ * they update, such as a property or a table row (see RowKey), and an update replaces the
+ * one pending under its key, so a row changed a thousand times within a frame is redrawn
+ * once. Updates under distinct keys are applied in the order their keys were first submitted.
+ * <p>
+ * A single Platform.runLater starts a timer when updates arrive to an idle dispatcher. The
+ * timer applies everything pending on each pulse and stops on the first pulse with nothing
+ * to apply, so an idle dispatcher costs the application thread nothing.
+ * @author Alex Hanson
+ */
+public class UpdateDispatcher implements Executor {
+
+    final private Object lock = new Object();
+    final private AnimationTimer timer;
+
+    // Updates waiting for the next pulse, by key.
+    private LinkedHashMap<Object, Runnable> pending;
+    // Whether the timer is started, or a start is on its way to the application thread.
+    private boolean running;
+
+    /**
+     * Constructor: Initializes an idle dispatcher. The JavaFX toolkit must be started
+     * before updates are submitted.
+     */
+    public UpdateDispatcher() {
+
+        pending = new LinkedHashMap<>();
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                pulse();
+            }
+        };
+    }
+
+    /**
+     * Submits an update for the next pulse, replacing any update pending under the same key.
+     * Safe to call from any thread.
+     * @param key What the update updates, compared with equals().
+     * @param update The update, run on the application thread.
+     */
+    public void submit(Object key, Runnable update) {
+
+        synchronized(lock) {
+            pending.put(key, update);
+
+            if(running)
+                return;
+
+            running = true;
+        }
+
+        Platform.runLater(timer::start);
+    }
+
+    /**
+     * Runs a task with the updates of the next pulse, after those already submitted.
+     * Tasks are never merged.
+     * @param task The task, run on the application thread.
+     */
+    @Override
+    public void execute(Runnable task) {
+        submit(new Object(), task);
+    }
+
+    /**
+     * @return The number of updates waiting for the next pulse.
+     */
+    public int getPendingCount() {
+
+        synchronized(lock) {
+            return pending.size();
+        }
+    }
+
+    // Applies the updates pending at the start of the pulse, those submitted meanwhile wait
+    // for the next one. A failing update is reported without holding up the others.
+    private void pulse() {
+
+        LinkedHashMap<Object, Runnable> updates;
+
+        synchronized(lock) {
+            if(pending.isEmpty()) {
+                running = false;
+                timer.stop();
+                return;
+            }
+
+            updates = pending;
+            pending = new LinkedHashMap<>();
+        }
+
+        for(Runnable update : updates.values()) {
+            try {
+                update.run();
+            } catch(RuntimeException e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+}
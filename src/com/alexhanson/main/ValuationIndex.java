@@ -0,0 +1,272 @@
+
+package com.alexhanson.main;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/**
+ * Running totals of the value on hand, price times stock, of parts by source: the machine
+ * of in-house parts and the company of outsourced parts. Each part's counted value is
+ * remembered, so refiling a part after any change adjusts the totals by the difference
+ * without visiting other parts, and changes may be refiled in any order. The totals are
+ * read at once, their properties and the list of sources are updated through
+ * Inventory.viewUpdate(), one update per source changed.
+ * <p>
+ * One index counts the parts of every partition of Inventory. Each part is refiled by the
+ * holder of its partition's lock, and each source's counts are changed under the source's
+ * monitor, so only changes to parts of the same source wait for each other.
+ * @author Alex Hanson
+ */
+public class ValuationIndex {
+
+    /**
+     * The parts of one source and their total value, updated as the parts change.
+     */
+    public static final class Source {
+
+        final private String name;
+        // Counts and totals as maintained, and the properties showing them.
+        private volatile int count;
+        private volatile double amount;
+        final private ReadOnlyIntegerWrapper parts;
+        final private ReadOnlyDoubleWrapper value;
+        // Whether the source is in the list of sources, read and set by view updates only.
+        private boolean listed;
+        // Whether the source was dropped once it had no parts, guarded by the source.
+        private boolean dropped;
+
+        private Source(String name) {
+            this.name = name;
+            this.parts = new ReadOnlyIntegerWrapper(this, "parts");
+            this.value = new ReadOnlyDoubleWrapper(this, "value");
+        }
+
+        /**
+         * @return Description of the source, e.g. "Machine 12" or a company name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of parts from this source.
+         */
+        public int getParts() {
+            return count;
+        }
+
+        /**
+         * @return The number of parts from this source, as a property.
+         */
+        public ReadOnlyIntegerProperty partsProperty() {
+            return parts.getReadOnlyProperty();
+        }
+
+        /**
+         * @return The value on hand of the parts from this source.
+         */
+        public double getValue() {
+            return amount;
+        }
+
+        /**
+         * @return The value on hand of the parts from this source, as a property.
+         */
+        public ReadOnlyDoubleProperty valueProperty() {
+            return value.getReadOnlyProperty();
+        }
+    }
+
+    // The source and value each part id is counted under.
+    private static final class Counted {
+
+        final private Source source;
+        final private double value;
+
+        Counted(Source source, double value) {
+            this.source = source;
+            this.value = value;
+        }
+    }
+
+    final private ConcurrentHashMap<Integer, Source> byMachine;
+    final private ConcurrentHashMap<String, Source> byCompany;
+    final private ConcurrentHashMap<Integer, Counted> counted;
+
+    // Sources with at least one part, and a read-only view of them.
+    final private ObservableList<Source> sources;
+    final private ObservableList<Source> sourcesView;
+
+    final private DoubleAdder sum;
+    final private ReadOnlyDoubleWrapper total;
+
+    /**
+     * Constructor: Initializes an index without parts.
+     */
+    public ValuationIndex() {
+
+        byMachine = new ConcurrentHashMap<>();
+        byCompany = new ConcurrentHashMap<>();
+        counted = new ConcurrentHashMap<>();
+        sources = FXCollections.observableArrayList();
+        sourcesView = FXCollections.unmodifiableObservableList(sources);
+        sum = new DoubleAdder();
+        total = new ReadOnlyDoubleWrapper(this, "total");
+    }
+
+    /**
+     * Counts a part at its current source and value, replacing what was counted for its id.
+     * Called with the lock of the part's partition held.
+     * @param part The part to add or refile.
+     */
+    public void put(Part part) {
+
+        double value = part.getPrice() * part.getStock();
+        Counted old = counted.get(part.getId());
+
+        if(old != null && old.source == sourceOf(part)) {
+            synchronized(old.source) {
+                add(old.source, value - old.value);
+            }
+
+            counted.put(part.getId(), new Counted(old.source, value));
+            return;
+        }
+
+        if(old != null)
+            leave(old);
+
+        // A source dropped by another part meanwhile is found again, as a new source.
+        while(true) {
+            Source source = sourceOf(part);
+
+            synchronized(source) {
+                if(source.dropped)
+                    continue;
+
+                source.count++;
+                add(source, value);
+            }
+
+            counted.put(part.getId(), new Counted(source, value));
+            return;
+        }
+    }
+
+    /**
+     * Called with the lock of the part's partition held.
+     * @param part The part to stop counting.
+     */
+    public void remove(Part part) {
+
+        Counted old = counted.remove(part.getId());
+
+        if(old != null)
+            leave(old);
+    }
+
+    /**
+     * @return The value on hand of all parts.
+     */
+    public double getTotal() {
+        return sum.sum();
+    }
+
+    /**
+     * @return The value on hand of all parts, as a property.
+     */
+    public ReadOnlyDoubleProperty totalProperty() {
+        return total.getReadOnlyProperty();
+    }
+
+    /**
+     * @param machineId The id of a machine.
+     * @return The value on hand of the in-house parts made by the machine.
+     */
+    public double getMachineValue(int machineId) {
+
+        Source source = byMachine.get(machineId);
+
+        return source == null ? 0 : source.getValue();
+    }
+
+    /**
+     * @param companyName The name of a company.
+     * @return The value on hand of the parts bought from the company.
+     */
+    public double getCompanyValue(String companyName) {
+
+        Source source = byCompany.get(companyName);
+
+        return source == null ? 0 : source.getValue();
+    }
+
+    /**
+     * @return Live, read-only list of the sources with at least one part, in the order they appeared.
+     */
+    public ObservableList<Source> getSourcesView() {
+        return sourcesView;
+    }
+
+    // Finds or creates the source of a part.
+    private Source sourceOf(Part part) {
+
+        if(part instanceof InHouse)
+            return byMachine.computeIfAbsent(((InHouse) part).getMachineId(), id -> new Source("Machine " + id));
+
+        return byCompany.computeIfAbsent(((ItemSource) part).getSrc(), Source::new);
+    }
+
+    // Takes a counted part out of its source, dropping the source once it has no parts.
+    private void leave(Counted old) {
+
+        Source source = old.source;
+
+        synchronized(source) {
+            source.count--;
+
+            if(source.count > 0) {
+                add(source, -old.value);
+                return;
+            }
+
+            // A source without parts is never counted under again, its last update unlists it.
+            add(source, -source.amount);
+            source.dropped = true;
+            byMachine.values().remove(source);
+            byCompany.values().remove(source);
+        }
+    }
+
+    // Adds to the value of a source, holding its monitor.
+    private void add(Source source, double delta) {
+
+        source.amount += delta;
+        sum.add(delta);
+
+        show(source);
+        Inventory.viewUpdate(total, () -> total.set(sum.sum()));
+    }
+
+    // Shows a source's counts and its place in the list of sources with the next view update.
+    private void show(Source source) {
+
+        Inventory.viewUpdate(source, () -> {
+            source.parts.set(source.count);
+            source.value.set(source.amount);
+
+            if(source.count > 0 && !source.listed)
+                sources.add(source);
+            else if(source.count == 0 && source.listed)
+                sources.remove(source);
+
+            source.listed = source.count > 0;
+        });
+    }
+}
@@ -0,0 +1,96 @@
+
+package com.alexhanson.main;
+
+import javafx.beans.binding.Bindings;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.ObservableList;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+
+/**
+ * Display widget summarizing the value on hand of parts, in total and by machine or company.
+ * The figures are bound to running totals, so they follow every change without rescanning.
+ * @author Alex Hanson
+ */
+public class ValuationWidget extends VBox {
+
+    final private TableView<ValuationIndex.Source> table;
+
+    /**
+     * Constructor: Initializes the summary with the given totals.
+     * @param total The value on hand of all parts, such as Inventory.totalValueProperty().
+     * @param sources The sources of parts, such as Inventory.getValuationView().
+     */
+    public ValuationWidget(ReadOnlyDoubleProperty total, ObservableList<ValuationIndex.Source> sources) {
+
+        super();
+        table = new TableView<>(sources);
+
+        buildHeader(total);
+        tableConfig();
+
+        getStyleClass().add("border-box");
+    }
+
+    // Provides layout for widget title and the total.
+    private void buildHeader(ReadOnlyDoubleProperty total) {
+
+        Label n = new Label("Inventory Value");
+        n.getStyleClass().add("table-title");
+
+        Label t = new Label();
+        t.textProperty().bind(Bindings.format("Total: %.2f", total));
+
+        HBox header = new HBox(20, n, t);
+        header.setAlignment(Pos.CENTER_LEFT);
+        getChildren().add(header);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void tableConfig() {
+
+        TableColumn<ValuationIndex.Source, String> src = new TableColumn<>("Machine / Company");
+        TableColumn<ValuationIndex.Source, Number> parts = new TableColumn<>("Parts");
+        TableColumn<ValuationIndex.Source, Number> value = new TableColumn<>("Value");
+
+        src.setPrefWidth(160);
+        parts.setPrefWidth(80);
+        value.setPrefWidth(120);
+
+        src.getStyleClass().add("table-col-label");
+        parts.getStyleClass().add("table-col-label");
+        value.getStyleClass().add("table-col-label");
+
+        // Parts and value are bound to the source's properties so the rows update in place.
+        src.setCellValueFactory(c -> new ReadOnlyStringWrapper(c.getValue().getName()));
+        parts.setCellValueFactory(c -> c.getValue().partsProperty());
+        value.setCellValueFactory(c -> c.getValue().valueProperty());
+
+        value.setCellFactory(c -> new TableCell<>() {
+            @Override
+            protected void updateItem(Number item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty || item == null ? null : String.format("%.2f", item.doubleValue()));
+            }
+        });
+
+        table.getColumns().addAll(src, parts, value);
+
+        // Sorting a live unmodifiable list is not supported.
+        src.setSortable(false);
+        parts.setSortable(false);
+        value.setSortable(false);
+
+        table.setPrefHeight(150);
+        HBox tableContainer = new HBox(table);
+        tableContainer.getStyleClass().add("table-container");
+        tableContainer.setAlignment(Pos.CENTER_LEFT);
+        getChildren().add(tableContainer);
+    }
+}
@@ -0,0 +1,426 @@
+
+package com.alexhanson.main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Committed versions of the rows of Inventory, read by Snapshots. Each row id has a chain of
+ * versions, newest first, each stamped with the commit that made it. A reader pinned at a
+ * commit reads the newest version stamped at or before it, walking the chain without locks.
+ * <p>
+ * The chains are partitioned by row id as Inventory is, each partition written only by the
+ * holder of its lock. Rows written under it are pending, invisible to readers, until commit()
+ * is called as the lock is released: the commit stamps them with the next sequence and then
+ * makes that sequence visible to new readers, so a reader never sees part of a commit. Each
+ * partition commits without the others' locks or a monitor: commits of different partitions
+ * stamp their rows at once, and each is made visible once those numbered before it are, by
+ * whichever commit finishes the last of them, so none waits for another. A version is kept
+ * only while a pinned reader, or a reader pinning now, could reach it: chains written by a
+ * commit are trimmed once it is visible, as it is made or at the partition's next commit,
+ * and chains kept long for a reader are trimmed again once it unpins.
+ * @author Alex Hanson
+ */
+public class VersionStore {
+
+    // Sequence of versions not yet committed, above any a reader pins.
+    final private static long PENDING = Long.MAX_VALUE;
+
+    // One version of a row, a null row for a deletion, linked to older versions still needed.
+    private static final class Version {
+
+        // PENDING until committed.
+        private volatile long sequence;
+        final private Object row;
+        private volatile Version older;
+
+        Version(long sequence, Object row, Version older) {
+            this.sequence = sequence;
+            this.row = row;
+            this.older = older;
+        }
+    }
+
+    // The version chains of one kind of row in one partition, by id.
+    private final class Chains {
+
+        final private ConcurrentSkipListMap<Integer, Version> heads = new ConcurrentSkipListMap<>();
+        // Ids written since the last commit, ids written by commits not yet visible when they
+        // were made, and ids whose chains are kept long for readers.
+        final private Set<Integer> written = new LinkedHashSet<>();
+        final private Set<Integer> untrimmed = new LinkedHashSet<>();
+        final private Set<Integer> held = new LinkedHashSet<>();
+
+        void put(int id, Object row) {
+
+            Version head = heads.get(id);
+
+            // A row written twice in one commit keeps only its last version.
+            if(head != null && head.sequence == PENDING)
+                head = head.older;
+
+            heads.put(id, new Version(PENDING, row, head));
+            written.add(id);
+        }
+
+        // Stamps the versions written since the last commit with its sequence.
+        void stamp(long sequence) {
+
+            for(int id : written)
+                heads.get(id).sequence = sequence;
+        }
+
+        // Trims the chains written by visible commits, or leaves those of the last commit
+        // for the next if pinned is null, as it is not visible yet.
+        void trimWritten(long[] pinned) {
+
+            untrimmed.addAll(written);
+            written.clear();
+
+            if(pinned == null)
+                return;
+
+            for(int id : untrimmed)
+                trim(id, pinned);
+
+            untrimmed.clear();
+        }
+
+        Object read(int id, long sequence) {
+
+            for(Version v = heads.get(id); v != null; v = v.older) {
+                if(v.sequence <= sequence)
+                    return v.row;
+            }
+
+            return null;
+        }
+
+        void readAll(long sequence, Map<Integer, Object> rows) {
+
+            for(Map.Entry<Integer, Version> entry : heads.entrySet()) {
+                for(Version v = entry.getValue(); v != null; v = v.older) {
+                    if(v.sequence <= sequence) {
+                        if(v.row != null)
+                            rows.put(entry.getKey(), v.row);
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Drops the versions of a chain no reader in pinned can reach, and the chain itself
+        // once only a deletion is left. Readers walking the chain meanwhile are unaffected,
+        // the links of dropped versions are left as they were.
+        void trim(int id, long[] pinned) {
+
+            Version head = heads.get(id);
+
+            if(head == null)
+                return;
+
+            Version kept = head;
+
+            for(Version v = head.older; v != null; v = v.older) {
+                if(reaches(pinned, v.sequence, kept.sequence)) {
+                    if(kept.older != v)
+                        kept.older = v;
+
+                    kept = v;
+                }
+            }
+
+            if(kept.older != null)
+                kept.older = null;
+
+            if(head.older != null)
+                held.add(id);
+            else
+                held.remove(id);
+
+            if(head.older == null && head.row == null)
+                heads.remove(id, head);
+        }
+    }
+
+    // The chains of each partition.
+    final private Chains[] parts;
+    final private Chains[] products;
+
+    // The newest commit visible to readers, the newest commit numbered, the commits stamped
+    // but not yet visible, and the number of readers pinned at each commit.
+    private volatile long committed;
+    final private AtomicLong numbered = new AtomicLong();
+    final private ConcurrentSkipListSet<Long> finished = new ConcurrentSkipListSet<>();
+    final private ConcurrentSkipListMap<Long, Integer> pins = new ConcurrentSkipListMap<>();
+
+    // Held chains to trim, with the index lock held, after readers unpinned.
+    private volatile boolean sweepRequested;
+    final private ArrayDeque<Object[]> sweepQueue = new ArrayDeque<>();
+
+    /**
+     * Constructor: Initializes an empty store.
+     * @param partitions The number of partitions of Inventory.
+     */
+    VersionStore(int partitions) {
+
+        parts = new Chains[partitions];
+        products = new Chains[partitions];
+
+        for(int i = 0; i < partitions; i++) {
+            parts[i] = new Chains();
+            products[i] = new Chains();
+        }
+    }
+
+    /**
+     * Writes the current state of a Part for the next commit. Called with the lock of its
+     * partition held.
+     * @param part The part, as held in Inventory.
+     */
+    void putPart(Part part) {
+        parts[slot(part.getId())].put(part.getId(), new Snapshot.PartRow(part));
+    }
+
+    /**
+     * Writes the current state of a Product for the next commit. Called with the lock of its
+     * partition held.
+     * @param product The product, as held in Inventory.
+     */
+    void putProduct(Product product) {
+        products[slot(product.getId())].put(product.getId(), new Snapshot.ProductRow(product));
+    }
+
+    /**
+     * Writes the deletion of a Part for the next commit. Called with the lock of its partition held.
+     * @param partId The id of the part.
+     */
+    void deletePart(int partId) {
+        parts[slot(partId)].put(partId, null);
+    }
+
+    /**
+     * Writes the deletion of a Product for the next commit. Called with the lock of its
+     * partition held.
+     * @param productId The id of the product.
+     */
+    void deleteProduct(int productId) {
+        products[slot(productId)].put(productId, null);
+    }
+
+    /**
+     * Commits the rows written in one partition, see commit(). Called with the lock of the
+     * partition held, before it is released.
+     * @param partition The partition.
+     */
+    void commit(int partition) {
+        commit(partition, partition + 1);
+    }
+
+    /**
+     * Makes the rows written since the last commit visible to readers pinning from now on, and
+     * drops the versions they replaced unless a pinned reader needs them. Called with the lock
+     * of every partition held, before they are released.
+     */
+    void commit() {
+        commit(0, parts.length);
+    }
+
+    /**
+     * Pins the newest commit for a reader.
+     * @return The commit pinned.
+     */
+    long pin() {
+
+        while(true) {
+            long sequence = committed;
+            pins.merge(sequence, 1, Integer::sum);
+
+            // A commit made meanwhile may have trimmed without this pin, the newer one is pinned instead.
+            if(committed == sequence)
+                return sequence;
+
+            pins.computeIfPresent(sequence, (k, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Releases a pin taken by pin(). The versions kept for it are dropped by sweep().
+     * @param sequence The commit pinned.
+     */
+    void unpin(long sequence) {
+
+        pins.compute(sequence, (k, count) -> {
+            if(count == null)
+                throw new IllegalArgumentException("Commit " + sequence + " is not pinned");
+
+            return count == 1 ? null : count - 1;
+        });
+
+        sweepRequested = true;
+    }
+
+    /**
+     * Trims chains kept long for readers that have since unpinned. Called with the lock of every
+     * partition held, a limited number of chains at a time so writers are not held up for long.
+     * @param limit The most chains to trim.
+     * @return True if chains remain to be trimmed.
+     */
+    boolean sweep(int limit) {
+
+        // Each unpin queues the chains held at the time once, those still needed stay held.
+        if(sweepRequested) {
+            sweepRequested = false;
+
+            for(int i = 0; i < parts.length; i++) {
+                for(int id : parts[i].held)
+                    sweepQueue.add(new Object[] {parts[i], id});
+
+                for(int id : products[i].held)
+                    sweepQueue.add(new Object[] {products[i], id});
+            }
+        }
+
+        long[] pinned = pinned();
+
+        for(int i = 0; i < limit && !sweepQueue.isEmpty(); i++) {
+            Object[] chain = sweepQueue.poll();
+            ((Chains) chain[0]).trim((Integer) chain[1], pinned);
+        }
+
+        return !sweepQueue.isEmpty() || sweepRequested;
+    }
+
+    /**
+     * @return The number of row versions held, including the newest of each row.
+     */
+    int size() {
+
+        int n = 0;
+
+        for(int i = 0; i < parts.length; i++)
+            n += size(parts[i]) + size(products[i]);
+
+        return n;
+    }
+
+    Object readPart(int partId, long sequence) {
+        return parts[slot(partId)].read(partId, sequence);
+    }
+
+    Object readProduct(int productId, long sequence) {
+        return products[slot(productId)].read(productId, sequence);
+    }
+
+    List<Object> readParts(long sequence) {
+        return readAll(parts, sequence);
+    }
+
+    List<Object> readProducts(long sequence) {
+        return readAll(products, sequence);
+    }
+
+    // Stamps and trims the rows written in partitions from to to, as one commit.
+    private void commit(int from, int to) {
+
+        boolean written = false;
+
+        for(int i = from; i < to; i++)
+            written |= !parts[i].written.isEmpty() || !products[i].written.isEmpty();
+
+        if(!written)
+            return;
+
+        long sequence = numbered.incrementAndGet();
+
+        // The rows are stamped before the commit is made visible, readers pinning it see all.
+        for(int i = from; i < to; i++) {
+            parts[i].stamp(sequence);
+            products[i].stamp(sequence);
+        }
+
+        // Commits become visible in order, a reader pinning one sees every commit before it.
+        // The commit is listed finished before the visible one is checked, so if commits
+        // before it are still stamping, the one finishing last sees it and makes it visible.
+        // Only the commit that takes the next sequence off the list makes it visible.
+        finished.add(sequence);
+
+        for(long next = committed + 1; finished.remove(next); next++)
+            committed = next;
+
+        // Trimmed once visible: a reader pinning an older commit meanwhile is either listed
+        // by now or sees this one when it checks, see pin(). Otherwise the partition's next
+        // commit trims them.
+        long[] pinned = committed >= sequence ? pinned() : null;
+
+        for(int i = from; i < to; i++) {
+            parts[i].trimWritten(pinned);
+            products[i].trimWritten(pinned);
+        }
+    }
+
+    // The partition of a row id, as Inventory partitions records.
+    private int slot(int id) {
+        return Math.floorMod(id, parts.length);
+    }
+
+    // The rows of every partition as of sequence, by ascending id.
+    private static List<Object> readAll(Chains[] partitions, long sequence) {
+
+        Map<Integer, Object> rows = partitions.length == 1 ? new LinkedHashMap<>() : new TreeMap<>();
+
+        for(Chains chains : partitions)
+            chains.readAll(sequence, rows);
+
+        return new ArrayList<>(rows.values());
+    }
+
+    private static int size(Chains chains) {
+
+        int n = 0;
+
+        for(Map.Entry<Integer, Version> entry : chains.heads.entrySet()) {
+            for(Version v = entry.getValue(); v != null; v = v.older)
+                n++;
+        }
+
+        return n;
+    }
+
+    // The commits readers are pinned at, ascending, followed by the newest commit, which
+    // readers may pin at any moment.
+    private long[] pinned() {
+
+        List<Long> sequences = new ArrayList<>(pins.keySet());
+        long[] pinned = new long[sequences.size() + 1];
+        int i = 0;
+
+        for(long sequence : sequences)
+            pinned[i++] = sequence;
+
+        pinned[i] = committed;
+
+        return pinned;
+    }
+
+    // Whether a reader pinned in pinned reads the version stamped from, given the nearest
+    // newer version kept is stamped to.
+    private static boolean reaches(long[] pinned, long from, long to) {
+
+        for(long sequence : pinned) {
+            if(sequence >= from && sequence < to)
+                return true;
+        }
+
+        return false;
+    }
+}